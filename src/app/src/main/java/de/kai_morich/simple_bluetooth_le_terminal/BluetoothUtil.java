@@ -27,6 +27,8 @@ public class BluetoothUtil {
     static class Device implements Comparable<Device> {
         BluetoothDevice device;
         String name;
+        int rssi = DeviceCache.RSSI_UNKNOWN;
+        boolean known;
 
         @SuppressLint("MissingPermission")
         public Device(BluetoothDevice device) {
@@ -34,8 +36,20 @@ public class BluetoothUtil {
             this.name = device.getName();
         }
 
+        /**
+         * from DeviceCache, without slow getName()
+         */
+        public Device(BluetoothDevice device, DeviceCache.Entry entry) {
+            this.device = device;
+            this.name = entry.name;
+            this.rssi = entry.rssi;
+            this.known = true;
+        }
+
         public BluetoothDevice getDevice() { return device; }
         public String getName() { return name; }
+        public int getRssi() { return rssi; }
+        public boolean isKnown() { return known; }
 
         @Override
         public boolean equals(Object o) {
@@ -45,10 +59,14 @@ public class BluetoothUtil {
         }
 
         /**
-         * sort by name, then address. sort named devices first
+         * sort known devices first by rssi, then by name, then address. sort named devices first
          */
         @Override
         public int compareTo(Device other) {
+            if(this.known != other.known)
+                return this.known ? -1 : +1;
+            if(this.known && this.rssi != other.rssi)
+                return this.rssi > other.rssi ? -1 : +1;
             boolean thisValid = this.name!=null && !this.name.isEmpty();
             boolean otherValid = other.name!=null && !other.name.isEmpty();
             if(thisValid && otherValid) {
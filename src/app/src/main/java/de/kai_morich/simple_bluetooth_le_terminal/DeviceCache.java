@@ -0,0 +1,210 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+
+/**
+ * persist known devices, so the device list can be shown and the last device connected without scan
+ *   - devices are known after first successful connect, scan results only update rssi and last seen
+ *   - ranked by last rssi, devices not seen for MAX_AGE are dropped
+ *
+ * used from UI thread, scan thread and binder thread, so all methods are synchronized
+ */
+class DeviceCache {
+
+    private static final String PREFERENCES = "devices";
+    private static final String KEY_DEVICES = "devices";
+    private static final String KEY_LAST_DEVICE = "last_device";
+    private static final String KEY_AUTO_CONNECT = "auto_connect";
+    private static final String KEY_SCAN_FILTER = "scan_filter";
+    private static final String KEY_PACING_PREFIX = "pacing_";
+    private static final String KEY_L2CAP_PREFIX = "l2cap_";
+    private static final int MAX_DEVICES = 20;
+    private static final long MAX_AGE = 30L * 24 * 60 * 60 * 1000;
+    static final int RSSI_UNKNOWN = Integer.MIN_VALUE;
+
+    static class Entry implements Comparable<Entry> {
+        final String address;
+        String name;
+        String profile;
+        int rssi = RSSI_UNKNOWN;
+        long lastSeen;
+
+        Entry(String address) { this.address = address; }
+
+        /**
+         * strongest signal first, then most recently seen
+         */
+        @Override
+        public int compareTo(Entry other) {
+            if (rssi != other.rssi)
+                return rssi > other.rssi ? -1 : 1;
+            return Long.compare(other.lastSeen, lastSeen);
+        }
+    }
+
+    private static DeviceCache instance;
+
+    private final SharedPreferences preferences;
+    private final HashMap<String, Entry> entries = new HashMap<>();
+    private boolean dirty;
+
+    static synchronized DeviceCache get(Context context) {
+        if (instance == null)
+            instance = new DeviceCache(context.getApplicationContext());
+        return instance;
+    }
+
+    private DeviceCache(Context context) {
+        preferences = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+        long now = System.currentTimeMillis();
+        try {
+            JSONArray array = new JSONArray(preferences.getString(KEY_DEVICES, "[]"));
+            for (int i = 0; i < array.length(); i++) {
+                JSONObject object = array.getJSONObject(i);
+                Entry entry = new Entry(object.getString("address"));
+                entry.name = object.optString("name", null);
+                entry.profile = object.optString("profile", null);
+                entry.rssi = object.optInt("rssi", RSSI_UNKNOWN);
+                entry.lastSeen = object.optLong("lastSeen");
+                if (now - entry.lastSeen < MAX_AGE)
+                    entries.put(entry.address, entry);
+            }
+        } catch (JSONException ignored) {
+            entries.clear(); // start over with corrupt preferences
+        }
+    }
+
+    synchronized ArrayList<Entry> getDevices() {
+        ArrayList<Entry> list = new ArrayList<>(entries.values());
+        Collections.sort(list);
+        return list;
+    }
+
+    synchronized boolean isKnown(String address) {
+        return entries.containsKey(address);
+    }
+
+    /**
+     * only updates known devices, call save() after scan
+     */
+    synchronized void onScanResult(String address, int rssi) {
+        Entry entry = entries.get(address);
+        if (entry != null) {
+            if (rssi != RSSI_UNKNOWN)
+                entry.rssi = rssi;
+            entry.lastSeen = System.currentTimeMillis();
+            dirty = true;
+        }
+    }
+
+    synchronized void onConnected(String address, String name, String profile) {
+        Entry entry = entries.get(address);
+        if (entry == null) {
+            entry = new Entry(address);
+            entries.put(address, entry);
+        }
+        entry.name = name;
+        entry.profile = profile;
+        entry.lastSeen = System.currentTimeMillis();
+        dirty = true;
+        preferences.edit().putString(KEY_LAST_DEVICE, address).apply();
+        save();
+    }
+
+    synchronized String getLastDevice() {
+        String address = preferences.getString(KEY_LAST_DEVICE, null);
+        return address != null && entries.containsKey(address) ? address : null;
+    }
+
+    synchronized boolean isAutoConnect() {
+        return preferences.getBoolean(KEY_AUTO_CONNECT, false);
+    }
+
+    synchronized void setAutoConnect(boolean autoConnect) {
+        preferences.edit().putBoolean(KEY_AUTO_CONNECT, autoConnect).apply();
+    }
+
+    /**
+     * off by default, as many serial modules don't advertise their service uuid
+     */
+    synchronized boolean isScanFilter() {
+        return preferences.getBoolean(KEY_SCAN_FILTER, false);
+    }
+
+    synchronized void setScanFilter(boolean scanFilter) {
+        preferences.edit().putBoolean(KEY_SCAN_FILTER, scanFilter).apply();
+    }
+
+    /**
+     * write pacing of device, kept separate from entries, so it also works for not yet known devices
+     * @return null if not paced
+     */
+    synchronized WritePacer getWritePacer(String address) {
+        String[] values = preferences.getString(KEY_PACING_PREFIX + address, "").split(",");
+        try {
+            if (values.length != 2 && values.length != 3)
+                return null;
+            return new WritePacer(Integer.parseInt(values[0]), Integer.parseInt(values[1]), values.length == 3 && values[2].equals("r"));
+        } catch (IllegalArgumentException ignored) {
+            return null; // includes NumberFormatException
+        }
+    }
+
+    /**
+     * @param baudRate 0 to disable pacing
+     * @param replies device replies to each line, see WritePacer
+     */
+    synchronized void setWritePacing(String address, int baudRate, int bufferSize, boolean replies) {
+        if (baudRate > 0)
+            preferences.edit().putString(KEY_PACING_PREFIX + address, baudRate + "," + bufferSize + (replies ? ",r" : "")).apply();
+        else
+            preferences.edit().remove(KEY_PACING_PREFIX + address).apply();
+    }
+
+    /**
+     * high throughput mode of device, see L2capSocket
+     */
+    synchronized boolean isL2capEnabled(String address) {
+        return preferences.getBoolean(KEY_L2CAP_PREFIX + address, false);
+    }
+
+    synchronized void setL2capEnabled(String address, boolean enabled) {
+        if (enabled)
+            preferences.edit().putBoolean(KEY_L2CAP_PREFIX + address, true).apply();
+        else
+            preferences.edit().remove(KEY_L2CAP_PREFIX + address).apply();
+    }
+
+    synchronized void save() {
+        if (!dirty)
+            return;
+        ArrayList<Entry> list = getDevices();
+        JSONArray array = new JSONArray();
+        try {
+            for (int i = 0; i < list.size() && i < MAX_DEVICES; i++) {
+                Entry entry = list.get(i);
+                JSONObject object = new JSONObject();
+                object.put("address", entry.address);
+                object.put("name", entry.name);
+                object.put("profile", entry.profile);
+                object.put("rssi", entry.rssi);
+                object.put("lastSeen", entry.lastSeen);
+                array.put(object);
+            }
+        } catch (JSONException ignored) {
+            return; // only thrown for NaN numbers
+        }
+        preferences.edit().putString(KEY_DEVICES, array.toString()).apply();
+        dirty = false;
+    }
+
+}
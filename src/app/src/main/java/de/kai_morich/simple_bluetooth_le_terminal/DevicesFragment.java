@@ -5,6 +5,11 @@ import android.annotation.SuppressLint;
 import android.app.AlertDialog;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
@@ -14,7 +19,9 @@ import android.location.LocationManager;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Looper;
+import android.os.ParcelUuid;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
@@ -27,38 +34,55 @@ import android.widget.TextView;
 import androidx.activity.result.ActivityResultLauncher;
 import androidx.activity.result.contract.ActivityResultContracts;
 import androidx.annotation.NonNull;
+import androidx.annotation.RequiresApi;
 import androidx.fragment.app.Fragment;
 import androidx.fragment.app.ListFragment;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.UUID;
 
 /**
  * show list of BLE devices
+ *
+ * scan results are deduplicated on a background thread, where also the slow getName() is called.
+ * new devices are handed over to the UI thread in batches, at most once per frame
  */
 public class DevicesFragment extends ListFragment {
 
     private enum ScanState { NONE, LE_SCAN, DISCOVERY, DISCOVERY_FINISHED }
     private ScanState scanState = ScanState.NONE;
     private static final long LE_SCAN_PERIOD = 10000; // similar to bluetoothAdapter.startDiscovery
+    private static final long LE_SCAN_REPORT_DELAY = 500; // batch results in bluetooth controller, if supported
+    private static final long SCAN_UPDATE_PERIOD = 16; // at most one list update per frame
     private final Handler leScanStopHandler = new Handler();
     private final BluetoothAdapter.LeScanCallback leScanCallback;
+    private ScanCallback leScannerCallback; // API 21+, created lazily to not load class on older devices
     private final Runnable leScanStopCallback;
+    private final Runnable scanUpdateCallback;
     private final BroadcastReceiver discoveryBroadcastReceiver;
     private final IntentFilter discoveryIntentFilter;
 
     private Menu menu;
     private BluetoothAdapter bluetoothAdapter;
+    private DeviceCache deviceCache;
     private final ArrayList<BluetoothUtil.Device> listItems = new ArrayList<>();
     private ArrayAdapter<BluetoothUtil.Device> listAdapter;
+    private HandlerThread scanThread;
+    private Handler scanHandler;
+    private final HashMap<String, Integer> scanRssis = new HashMap<>(); // last rssi per address, only accessed in scanThread
+    private final ArrayList<BluetoothUtil.Device> scanResults = new ArrayList<>(); // scanThread -> UI thread, guarded by itself
+    private final HashMap<String, Integer> scanRssiUpdates = new HashMap<>(); // for devices already in list, guarded by scanResults
+    private boolean scanUpdatePending; // guarded by scanResults
     ActivityResultLauncher<String[]> requestBluetoothPermissionLauncherForStartScan;
     ActivityResultLauncher<String> requestLocationPermissionLauncherForStartScan;
 
     public DevicesFragment() {
         leScanCallback = (device, rssi, scanRecord) -> {
-            if(device != null && getActivity() != null) {
-                getActivity().runOnUiThread(() -> { updateScan(device); });
-            }
+            if(device != null)
+                onScanResult(device, rssi);
         };
         discoveryBroadcastReceiver = new BroadcastReceiver() {
             @SuppressLint("MissingPermission")
@@ -66,9 +90,9 @@ public class DevicesFragment extends ListFragment {
             public void onReceive(Context context, Intent intent) {
                 if(BluetoothDevice.ACTION_FOUND.equals(intent.getAction())) {
                     BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-                    if(device.getType() != BluetoothDevice.DEVICE_TYPE_CLASSIC && getActivity() != null) {
-                        getActivity().runOnUiThread(() -> updateScan(device));
-                    }
+                    short rssi = intent.getShortExtra(BluetoothDevice.EXTRA_RSSI, Short.MIN_VALUE);
+                    if(device.getType() != BluetoothDevice.DEVICE_TYPE_CLASSIC)
+                        onScanResult(device, rssi != Short.MIN_VALUE ? rssi : DeviceCache.RSSI_UNKNOWN);
                 }
                 if(BluetoothAdapter.ACTION_DISCOVERY_FINISHED.equals(intent.getAction())) {
                     scanState = ScanState.DISCOVERY_FINISHED; // don't cancel again
@@ -80,6 +104,7 @@ public class DevicesFragment extends ListFragment {
         discoveryIntentFilter.addAction(BluetoothDevice.ACTION_FOUND);
         discoveryIntentFilter.addAction(BluetoothAdapter.ACTION_DISCOVERY_FINISHED);
         leScanStopCallback = this::stopScan; // w/o explicit Runnable, a new lambda would be created on each postDelayed, which would not be found again by removeCallbacks
+        scanUpdateCallback = this::updateScan;
         requestBluetoothPermissionLauncherForStartScan = registerForActivityResult(
                 new ActivityResultContracts.RequestMultiplePermissions(),
                 granted -> BluetoothUtil.onPermissionsResult(this, granted, this::startScan));
@@ -104,6 +129,10 @@ public class DevicesFragment extends ListFragment {
         setHasOptionsMenu(true);
         if(getActivity().getPackageManager().hasSystemFeature(PackageManager.FEATURE_BLUETOOTH))
             bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+        deviceCache = DeviceCache.get(getActivity());
+        scanThread = new HandlerThread("scan");
+        scanThread.start();
+        scanHandler = new Handler(scanThread.getLooper());
         listAdapter = new ArrayAdapter<BluetoothUtil.Device>(getActivity(), 0, listItems) {
             @NonNull
             @Override
@@ -117,10 +146,29 @@ public class DevicesFragment extends ListFragment {
                 if(deviceName == null || deviceName.isEmpty())
                     deviceName = "<unnamed>";
                 text1.setText(deviceName);
-                text2.setText(device.getDevice().getAddress());
+                if(device.getRssi() != DeviceCache.RSSI_UNKNOWN)
+                    text2.setText(device.getDevice().getAddress() + "   " + device.getRssi() + " dBm");
+                else
+                    text2.setText(device.getDevice().getAddress());
                 return view;
             }
         };
+        addKnownDevices();
+    }
+
+    /**
+     * known devices are shown immediately, without waiting for scan results
+     */
+    private void addKnownDevices() {
+        if(bluetoothAdapter == null)
+            return;
+        for(DeviceCache.Entry entry : deviceCache.getDevices()) {
+            BluetoothUtil.Device device = new BluetoothUtil.Device(bluetoothAdapter.getRemoteDevice(entry.address), entry);
+            int pos = Collections.binarySearch(listItems, device);
+            if (pos < 0)
+                listItems.add(-pos - 1, device);
+        }
+        listAdapter.notifyDataSetChanged();
     }
 
     @Override
@@ -138,6 +186,9 @@ public class DevicesFragment extends ListFragment {
     public void onCreateOptionsMenu(@NonNull Menu menu, MenuInflater inflater) {
         inflater.inflate(R.menu.menu_devices, menu);
         this.menu = menu;
+        menu.findItem(R.id.auto_connect).setChecked(deviceCache.isAutoConnect());
+        menu.findItem(R.id.scan_filter).setChecked(deviceCache.isScanFilter());
+        menu.findItem(R.id.simulator).setVisible(BuildConfig.DEBUG);
         if (bluetoothAdapter == null) {
             menu.findItem(R.id.bt_settings).setEnabled(false);
             menu.findItem(R.id.ble_scan).setEnabled(false);
@@ -163,6 +214,8 @@ public class DevicesFragment extends ListFragment {
             setEmptyText("<use SCAN to refresh devices>");
             if (menu != null)
                 menu.findItem(R.id.ble_scan).setEnabled(true);
+            if (listItems.isEmpty())
+                addKnownDevices(); // e.g. after bluetooth was enabled
         }
     }
 
@@ -173,6 +226,13 @@ public class DevicesFragment extends ListFragment {
         getActivity().unregisterReceiver(discoveryBroadcastReceiver);
     }
 
+    @Override
+    public void onDestroy() {
+        leScanStopHandler.removeCallbacks(scanUpdateCallback);
+        scanThread.quit();
+        super.onDestroy();
+    }
+
     @Override
     public void onDestroyView() {
         super.onDestroyView();
@@ -188,6 +248,18 @@ public class DevicesFragment extends ListFragment {
         } else if (id == R.id.ble_scan_stop) {
             stopScan();
             return true;
+        } else if (id == R.id.auto_connect) {
+            deviceCache.setAutoConnect(!item.isChecked());
+            item.setChecked(deviceCache.isAutoConnect());
+            return true;
+        } else if (id == R.id.scan_filter) {
+            deviceCache.setScanFilter(!item.isChecked());
+            item.setChecked(deviceCache.isScanFilter());
+            return true;
+        } else if (id == R.id.simulator) {
+            stopScan();
+            openTerminal(DeviceSimulator.ADDRESS);
+            return true;
         } else if (id == R.id.bt_settings) {
             Intent intent = new Intent();
             intent.setAction(android.provider.Settings.ACTION_BLUETOOTH_SETTINGS);
@@ -235,29 +307,142 @@ public class DevicesFragment extends ListFragment {
         }
         scanState = nextScanState;
         listItems.clear();
-        listAdapter.notifyDataSetChanged();
+        addKnownDevices();
+        synchronized (scanResults) {
+            scanResults.clear();
+            scanRssiUpdates.clear();
+        }
+        scanHandler.post(scanRssis::clear);
         setEmptyText("<scanning...>");
         menu.findItem(R.id.ble_scan).setVisible(false);
         menu.findItem(R.id.ble_scan_stop).setVisible(true);
         if(scanState == ScanState.LE_SCAN) {
             leScanStopHandler.postDelayed(leScanStopCallback, LE_SCAN_PERIOD);
-            new Thread(() -> bluetoothAdapter.startLeScan(null, leScanCallback), "startLeScan")
-                    .start(); // start async to prevent blocking UI, because startLeScan sometimes take some seconds
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                BluetoothLeScanner scanner = bluetoothAdapter.getBluetoothLeScanner();
+                if (leScannerCallback == null)
+                    leScannerCallback = createLeScannerCallback();
+                new Thread(() -> startLeScanner(scanner), "startScan")
+                        .start(); // start async to prevent blocking UI, because startScan sometimes take some seconds
+            } else {
+                new Thread(() -> bluetoothAdapter.startLeScan(null, leScanCallback), "startLeScan")
+                        .start(); // start async to prevent blocking UI, because startLeScan sometimes take some seconds
+            }
         } else {
             bluetoothAdapter.startDiscovery();
         }
     }
 
+    /**
+     * balanced scan mode and batching in bluetooth controller, to use less power than low latency.
+     * optionally filter in bluetooth controller for known serial services, so the app is only woken up
+     * for relevant advertisements. Off by default, as e.g. HC-05 and Vexis boards advertise no service uuid
+     */
     @SuppressLint("MissingPermission")
-    private void updateScan(BluetoothDevice device) {
+    @RequiresApi(Build.VERSION_CODES.LOLLIPOP)
+    private void startLeScanner(BluetoothLeScanner scanner) {
+        if (scanner == null)
+            return; // bluetooth disabled meanwhile
+        List<ScanFilter> filters = new ArrayList<>();
+        if (deviceCache.isScanFilter()) {
+            for (UUID uuid : SerialSocket.getServiceUuids())
+                filters.add(new ScanFilter.Builder().setServiceUuid(new ParcelUuid(uuid)).build());
+        }
+        ScanSettings.Builder settings = new ScanSettings.Builder()
+                .setScanMode(ScanSettings.SCAN_MODE_BALANCED);
+        if (bluetoothAdapter.isOffloadedScanBatchingSupported())
+            settings.setReportDelay(LE_SCAN_REPORT_DELAY);
+        scanner.startScan(filters, settings.build(), leScannerCallback);
+    }
+
+    @RequiresApi(Build.VERSION_CODES.LOLLIPOP)
+    private ScanCallback createLeScannerCallback() {
+        return new ScanCallback() {
+            @Override
+            public void onScanResult(int callbackType, ScanResult result) {
+                DevicesFragment.this.onScanResult(result.getDevice(), result.getRssi());
+            }
+
+            @Override
+            public void onBatchScanResults(List<ScanResult> results) {
+                for (ScanResult result : results)
+                    DevicesFragment.this.onScanResult(result.getDevice(), result.getRssi());
+            }
+        };
+    }
+
+    /**
+     * called in any thread. Diffing against already found devices is done in scanThread.
+     * known devices are already shown, for them and already found devices only the rssi is updated
+     */
+    private void onScanResult(BluetoothDevice device, int rssi) {
+        scanHandler.post(() -> {
+            String address = device.getAddress();
+            boolean known = deviceCache.isKnown(address);
+            if (known)
+                deviceCache.onScanResult(address, rssi);
+            Integer previous = scanRssis.put(address, rssi);
+            if (previous != null && (previous == rssi || rssi == DeviceCache.RSSI_UNKNOWN))
+                return;
+            BluetoothUtil.Device device2 = null;
+            if (previous == null && !known) {
+                device2 = new BluetoothUtil.Device(device); // slow getName() only once
+                device2.rssi = rssi;
+            }
+            synchronized (scanResults) {
+                if (device2 != null)
+                    scanResults.add(device2);
+                else if (rssi != DeviceCache.RSSI_UNKNOWN)
+                    scanRssiUpdates.put(address, rssi);
+                else
+                    return;
+                if (scanUpdatePending)
+                    return;
+                scanUpdatePending = true;
+            }
+            leScanStopHandler.postDelayed(scanUpdateCallback, SCAN_UPDATE_PERIOD);
+        });
+    }
+
+    private void updateScan() {
+        ArrayList<BluetoothUtil.Device> devices;
+        HashMap<String, Integer> rssis;
+        synchronized (scanResults) {
+            devices = new ArrayList<>(scanResults);
+            rssis = new HashMap<>(scanRssiUpdates);
+            scanResults.clear();
+            scanRssiUpdates.clear();
+            scanUpdatePending = false;
+        }
         if(scanState == ScanState.NONE)
             return;
-        BluetoothUtil.Device device2 = new BluetoothUtil.Device(device); // slow getName() only once
-        int pos = Collections.binarySearch(listItems, device2);
-        if (pos < 0) {
-            listItems.add(-pos - 1, device2);
-            listAdapter.notifyDataSetChanged();
+        boolean changed = false;
+        if (!rssis.isEmpty()) {
+            // known devices are sorted by rssi, so updated entries are removed and inserted again
+            ArrayList<BluetoothUtil.Device> updated = new ArrayList<>();
+            for (int i = listItems.size() - 1; i >= 0; i--) {
+                BluetoothUtil.Device device = listItems.get(i);
+                Integer rssi = rssis.get(device.getDevice().getAddress());
+                if (rssi == null || rssi == device.rssi)
+                    continue;
+                device.rssi = rssi;
+                if (device.isKnown()) {
+                    listItems.remove(i);
+                    updated.add(device);
+                }
+                changed = true;
+            }
+            devices.addAll(updated);
         }
+        for (BluetoothUtil.Device device : devices) {
+            int pos = Collections.binarySearch(listItems, device);
+            if (pos < 0) {
+                listItems.add(-pos - 1, device);
+                changed = true;
+            }
+        }
+        if (changed)
+            listAdapter.notifyDataSetChanged();
     }
 
     @SuppressLint("MissingPermission")
@@ -272,7 +457,15 @@ public class DevicesFragment extends ListFragment {
         switch(scanState) {
             case LE_SCAN:
                 leScanStopHandler.removeCallbacks(leScanStopCallback);
-                bluetoothAdapter.stopLeScan(leScanCallback);
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                    BluetoothLeScanner scanner = bluetoothAdapter.getBluetoothLeScanner();
+                    if (scanner != null && leScannerCallback != null) {
+                        scanner.flushPendingScanResults(leScannerCallback);
+                        scanner.stopScan(leScannerCallback);
+                    }
+                } else {
+                    bluetoothAdapter.stopLeScan(leScanCallback);
+                }
                 break;
             case DISCOVERY:
                 bluetoothAdapter.cancelDiscovery();
@@ -281,15 +474,19 @@ public class DevicesFragment extends ListFragment {
                 // already canceled
         }
         scanState = ScanState.NONE;
-
+        scanHandler.post(deviceCache::save);
     }
 
     @Override
     public void onListItemClick(@NonNull ListView l, @NonNull View v, int position, long id) {
         stopScan();
         BluetoothUtil.Device device = listItems.get(position-1);
+        openTerminal(device.getDevice().getAddress());
+    }
+
+    private void openTerminal(String address) {
         Bundle args = new Bundle();
-        args.putString("device", device.getDevice().getAddress());
+        args.putString("device", address);
         Fragment fragment = new TerminalFragment();
         fragment.setArguments(args);
         getFragmentManager().beginTransaction().replace(R.id.fragment, fragment, "terminal").addToBackStack(null).commit();
@@ -0,0 +1,321 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import android.annotation.SuppressLint;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+import android.content.Context;
+import android.os.Build;
+import android.util.Log;
+
+import androidx.annotation.RequiresApi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Locale;
+
+/**
+ * high throughput mode: data over an LE L2CAP connection-oriented channel instead of GATT
+ *
+ *   - connects with SerialSocket, which also reads the PSM published by the device
+ *   - with PSM, opens the channel and writes data to a StreamTransport, else, or if the channel
+ *     cannot be opened, stays with SerialSocket
+ *   - the GATT connection is kept for side channels, RSSI and connection priority
+ *
+ * data can arrive from both transports, e.g. notifications sent before the channel was open.
+ * Reads are forwarded under a lock, so SerialService still sees one reader at a time
+ */
+@RequiresApi(Build.VERSION_CODES.Q)
+@SuppressLint("MissingPermission") // createL2capChannel
+class L2capSocket implements SerialTransport, SerialListener {
+
+    private static final String TAG = "L2capSocket";
+
+    private final BluetoothDevice device;
+    private final SerialSocket gattSocket;
+    private final Object readLock = new Object();
+    private volatile SerialTransport active; // used for writes
+    private volatile SerialListener listener;
+    private WriteListener writeListener;
+    private WritePacer pacer;
+    private BufferPool pool;
+    private StreamTransport streamTransport; // guarded by this
+
+    L2capSocket(Context context, BluetoothDevice device) {
+        this.device = device;
+        gattSocket = new SerialSocket(context, device);
+        gattSocket.requestL2capPsm();
+        active = gattSocket;
+    }
+
+    @Override
+    public String getName() {
+        return gattSocket.getName();
+    }
+
+    @Override
+    public String getAddress() {
+        return gattSocket.getAddress();
+    }
+
+    @Override
+    public String getProfile() {
+        return active.getProfile();
+    }
+
+    @Override
+    public synchronized void setWriteListener(WriteListener writeListener) {
+        this.writeListener = writeListener;
+        gattSocket.setWriteListener(writeListener);
+        if(streamTransport != null)
+            streamTransport.setWriteListener(writeListener);
+    }
+
+    @Override
+    public void setChannelListener(ChannelListener channelListener) {
+        gattSocket.setChannelListener(channelListener == null ? null : (channel, data) -> {
+            synchronized (readLock) {
+                channelListener.onChannelRead(channel, data);
+            }
+        });
+    }
+
+    @Override
+    public synchronized void setWritePacer(WritePacer pacer) {
+        this.pacer = pacer;
+        gattSocket.setWritePacer(pacer);
+        if(streamTransport != null)
+            streamTransport.setWritePacer(pacer);
+    }
+
+    @Override
+    public synchronized void setBufferPool(BufferPool pool) {
+        this.pool = pool;
+        if(streamTransport != null)
+            streamTransport.setBufferPool(pool);
+    }
+
+    @Override
+    public int getPayloadSize() {
+        return active.getPayloadSize();
+    }
+
+    @Override
+    public int getWriteQueueSize() {
+        return active.getWriteQueueSize();
+    }
+
+    @Override
+    public int getWriteQueueDepth(WriteQueue.Priority priority) {
+        return active.getWriteQueueDepth(priority);
+    }
+
+    @Override
+    public int getMaxWriteQueueDepth(WriteQueue.Priority priority) {
+        return active.getMaxWriteQueueDepth(priority);
+    }
+
+    @Override
+    public long getDroppedWriteCount() {
+        return active.getDroppedWriteCount();
+    }
+
+    @Override
+    public LinkMetrics getLinkMetrics() {
+        return active.getLinkMetrics();
+    }
+
+    /**
+     * connection interval of the link also applies to the L2CAP channel
+     */
+    @Override
+    public void setConnectionPriority(ConnectionGovernor.Mode mode) {
+        gattSocket.setConnectionPriority(mode);
+    }
+
+    @Override
+    public void requestRssi() {
+        gattSocket.requestRssi();
+    }
+
+    @Override
+    public void connect(SerialListener listener) throws IOException {
+        this.listener = listener;
+        gattSocket.connect(this);
+    }
+
+    @Override
+    public void disconnect() {
+        StreamTransport streamTransport;
+        synchronized (this) {
+            listener = null;
+            streamTransport = this.streamTransport;
+            this.streamTransport = null;
+        }
+        if(streamTransport != null)
+            streamTransport.disconnect();
+        gattSocket.disconnect();
+        active = gattSocket;
+    }
+
+    @Override
+    public void write(byte[] data) throws IOException {
+        active.write(data);
+    }
+
+    @Override
+    public void write(WriteRequest request) throws IOException {
+        active.write(request);
+    }
+
+    /**
+     * SerialListener of SerialSocket
+     */
+    @Override
+    public void onSerialConnect() {
+        int psm = gattSocket.getL2capPsm();
+        if(psm == 0) {
+            Log.d(TAG, "no l2cap psm, using gatt");
+            onConnect();
+            return;
+        }
+        StreamTransport streamTransport = new StreamTransport(getName(), getAddress(),
+                String.format(Locale.US, "%s L2CAP psm 0x%04x", gattSocket.getProfile(), psm),
+                () -> openChannel(psm));
+        synchronized (this) {
+            if(listener == null)
+                return; // disconnected
+            streamTransport.setWriteListener(writeListener);
+            streamTransport.setWritePacer(pacer);
+            streamTransport.setBufferPool(pool);
+            this.streamTransport = streamTransport;
+        }
+        try {
+            streamTransport.connect(new StreamListener(streamTransport));
+        } catch (IOException e) {
+            fallback(streamTransport, e);
+        }
+    }
+
+    @Override
+    public void onSerialConnectError(Exception e) {
+        SerialListener listener = this.listener;
+        if(listener != null)
+            listener.onSerialConnectError(e);
+    }
+
+    @Override
+    public void onSerialRead(byte[] data) {
+        synchronized (readLock) {
+            SerialListener listener = this.listener;
+            if(listener != null)
+                listener.onSerialRead(data);
+        }
+    }
+
+    @Override
+    public void onSerialRead(ArrayDeque<byte[]> datas) { throw new UnsupportedOperationException(); }
+
+    @Override
+    public void onSerialIoError(Exception e) {
+        SerialListener listener = this.listener;
+        if(listener != null)
+            listener.onSerialIoError(e);
+    }
+
+    private void onConnect() {
+        SerialListener listener = this.listener;
+        if(listener != null)
+            listener.onSerialConnect();
+    }
+
+    /**
+     * channel could not be opened, continue with GATT
+     */
+    private void fallback(StreamTransport streamTransport, Exception e) {
+        Log.d(TAG, "l2cap failed, using gatt: "+e.getMessage());
+        synchronized (this) {
+            if(this.streamTransport != streamTransport) // NOPMD - test object identity
+                return; // disconnected
+            this.streamTransport = null;
+        }
+        streamTransport.disconnect();
+        onConnect();
+    }
+
+    /**
+     * blocking, called from StreamTransport read thread
+     */
+    private StreamTransport.Connection openChannel(int psm) throws IOException {
+        BluetoothSocket socket = device.createL2capChannel(psm);
+        try {
+            socket.connect();
+        } catch (IOException e) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+            throw e;
+        }
+        Log.d(TAG, "l2cap connected, max tx "+socket.getMaxTransmitPacketSize()+", rx "+socket.getMaxReceivePacketSize());
+        return new StreamTransport.Connection() {
+            @Override
+            public InputStream getInputStream() throws IOException {
+                return socket.getInputStream();
+            }
+
+            @Override
+            public OutputStream getOutputStream() throws IOException {
+                return socket.getOutputStream();
+            }
+
+            @Override
+            public int getPayloadSize() {
+                return socket.getMaxTransmitPacketSize();
+            }
+
+            @Override
+            public void close() throws IOException {
+                socket.close();
+            }
+        };
+    }
+
+    /**
+     * SerialListener of StreamTransport
+     */
+    private class StreamListener implements SerialListener {
+        private final StreamTransport streamTransport;
+
+        StreamListener(StreamTransport streamTransport) {
+            this.streamTransport = streamTransport;
+        }
+
+        @Override
+        public void onSerialConnect() {
+            active = streamTransport;
+            Log.d(TAG, "using l2cap");
+            onConnect();
+        }
+
+        @Override
+        public void onSerialConnectError(Exception e) {
+            fallback(streamTransport, e);
+        }
+
+        @Override
+        public void onSerialRead(byte[] data) {
+            L2capSocket.this.onSerialRead(data);
+        }
+
+        @Override
+        public void onSerialRead(ArrayDeque<byte[]> datas) { throw new UnsupportedOperationException(); }
+
+        @Override
+        public void onSerialIoError(Exception e) {
+            L2capSocket.this.onSerialIoError(e);
+        }
+    }
+
+}
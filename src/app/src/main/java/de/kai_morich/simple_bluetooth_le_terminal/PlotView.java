@@ -0,0 +1,130 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.util.AttributeSet;
+import android.view.View;
+
+import java.util.Locale;
+
+/**
+ * plot of Telemetry channels over the last WINDOW
+ *
+ * each channel is downsampled with LTTB to about one point per 2 pixel before drawing,
+ * so draw time depends on view width, not on data rate. All buffers are allocated once
+ */
+public class PlotView extends View {
+
+    private static final long WINDOW = 10_000_000; // micros
+    private static final int[] COLORS = {
+            0xff00ff00, 0xff82caff, 0xffffdb58, 0xffff6e40, 0xffe040fb, 0xff18ffff, 0xffffffff, 0xffff5252 };
+
+    private final Paint linePaint = new Paint();
+    private final Paint textPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint gridPaint = new Paint();
+    private final long[] times = new long[Telemetry.CAPACITY];
+    private final float[] values = new float[Telemetry.CAPACITY];
+    private long[] sampledTimes = new long[0];
+    private float[] sampledValues = new float[0];
+    private float[] lines = new float[0];
+    private Telemetry telemetry;
+    private long drawnUpdates = -1;
+
+    public PlotView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        linePaint.setStrokeWidth(2 * getResources().getDisplayMetrics().density);
+        textPaint.setTextSize(12 * getResources().getDisplayMetrics().scaledDensity);
+        gridPaint.setColor(Color.GRAY);
+    }
+
+    void setTelemetry(Telemetry telemetry) {
+        this.telemetry = telemetry;
+        drawnUpdates = -1;
+        postInvalidateOnAnimation();
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        int points = Math.max(3, w / 2);
+        sampledTimes = new long[points];
+        sampledValues = new float[points];
+        lines = new float[4 * points];
+    }
+
+    /**
+     * redraw at most once per frame while shown and data changes
+     */
+    private final Runnable pollCallback = new Runnable() {
+        @Override
+        public void run() {
+            if (!isShown())
+                return;
+            if (telemetry != null && telemetry.getUpdates() != drawnUpdates)
+                invalidate();
+            postOnAnimation(this);
+        }
+    };
+
+    @Override
+    protected void onVisibilityChanged(View changedView, int visibility) {
+        super.onVisibilityChanged(changedView, visibility);
+        removeCallbacks(pollCallback);
+        if (isShown())
+            postOnAnimation(pollCallback);
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        removeCallbacks(pollCallback);
+        super.onDetachedFromWindow();
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        int width = getWidth(), height = getHeight();
+        canvas.drawLine(0, height - 1, width, height - 1, gridPaint);
+        if (telemetry == null)
+            return;
+        drawnUpdates = telemetry.getUpdates();
+        int channelCount = telemetry.getChannelCount();
+        if (channelCount == 0)
+            return;
+        long start = telemetry.getLastTime() - WINDOW;
+        float textY = textPaint.getTextSize();
+        for (int c = 0; c < channelCount; c++) {
+            Telemetry.Channel channel = telemetry.getChannel(c);
+            if (channel == null)
+                continue;
+            int n = telemetry.copy(c, start, times, values);
+            if (n == 0)
+                continue;
+            int color = COLORS[c % COLORS.length];
+            textPaint.setColor(color);
+            linePaint.setColor(color);
+            n = Telemetry.lttb(times, values, n, sampledTimes.length, sampledTimes, sampledValues);
+            float min = sampledValues[0], max = sampledValues[0];
+            for (int i = 1; i < n; i++) {
+                min = Math.min(min, sampledValues[i]);
+                max = Math.max(max, sampledValues[i]);
+            }
+            float range = max > min ? max - min : 1;
+            float scaleX = (float) width / WINDOW;
+            float scaleY = (height - 2 * textY) / range;
+            float baseY = height - textY / 2;
+            int k = 0;
+            for (int i = 1; i < n; i++) {
+                lines[k++] = (sampledTimes[i - 1] - start) * scaleX;
+                lines[k++] = baseY - (sampledValues[i - 1] - min) * scaleY;
+                lines[k++] = (sampledTimes[i] - start) * scaleX;
+                lines[k++] = baseY - (sampledValues[i] - min) * scaleY;
+            }
+            canvas.drawLines(lines, 0, k, linePaint);
+            // legend with own scale per channel
+            canvas.drawText(String.format(Locale.US, "%s %.4g (%.4g..%.4g)", channel.name,
+                    sampledValues[n - 1], min, max), 4, textY * (c + 1), textPaint);
+        }
+    }
+
+}
@@ -12,17 +12,35 @@ import android.os.Build;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Looper;
+import android.view.Choreographer;
 
 import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
 import androidx.core.app.NotificationCompat;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * create notification and queue serial data while activity is not in the foreground
- * use listener chain: SerialSocket -> SerialService -> UI fragment
+ * use listener chain: SerialTransport -> SerialService -> UI fragment
+ *
+ * all events are posted to the main thread, where they are either forwarded to the
+ * attached listener or queued until attach(), so no locks are shared with the main thread
+ *
+ * received data is delivered aligned to display frames. Per frame only as much data is
+ * forwarded to the listener as fits into FRAME_BUDGET, the remainder stays in backlog
+ *
+ * the transport callback thread only hands received data to ReadDispatcher. Statistics,
+ * scripts, telemetry and scrollback consume it on the lane thread of its channel
  */
 public class SerialService extends Service implements SerialListener {
 
@@ -30,29 +48,58 @@ public class SerialService extends Service implements SerialListener {
         SerialService getService() { return SerialService.this; }
     }
 
-    private enum QueueType {Connect, ConnectError, Read, IoError}
+    private enum QueueType {Connect, ConnectError, Read, ChannelRead, IoError}
 
     private static class QueueItem {
         QueueType type;
         ArrayDeque<byte[]> datas;
         Exception e;
+        SerialTransport.Channel channel;
+        byte[] data;
 
-        QueueItem(QueueType type) { this.type=type; if(type==QueueType.Read) init(); }
+        QueueItem(QueueType type) { this.type=type; if(type==QueueType.Read) datas = new ArrayDeque<>(); }
         QueueItem(QueueType type, Exception e) { this.type=type; this.e=e; }
-        QueueItem(QueueType type, ArrayDeque<byte[]> datas) { this.type=type; this.datas=datas; }
-
-        void init() { datas = new ArrayDeque<>(); }
-        void add(byte[] data) { datas.add(data); }
+        QueueItem(SerialTransport.Channel channel, byte[] data) { this.type=QueueType.ChannelRead; this.channel=channel; this.data=data; }
     }
 
+    private static final int READ_QUEUE_CAPACITY = 1024;
+    private static final long FRAME_BUDGET = 8_000_000; // nanos, half of a 60Hz frame, the other half is left for layout+draw
+    private static final int READ_SLICE_SIZE = 2048; // bytes per listener call, budget is checked between calls
+    private static final int WRITE_QUEUE_CAPACITY = 64; // chunks, for writes with backpressure
+    private static final long GOVERNOR_INTERVAL = 500; // ms
+
     private final Handler mainLooper;
+    private final Choreographer choreographer;
     private final IBinder binder;
-    private final ArrayDeque<QueueItem> queue1, queue2;
-    private final QueueItem lastRead;
+    private final ArrayDeque<QueueItem> queue;
+    private final ReadDispatcher dispatcher;
+    private final ArrayList<SpscQueue<byte[]>> readQueues; // per channel, lane thread -> main thread
+    private final BufferPool bufferPool; // main thread -> transport read thread
+    private final AtomicBoolean readPending;
+    private final ArrayDeque<byte[]> readDatas;
+    private final ReadBacklog<QueueItem> backlog; // only accessed in main thread
+    private final Choreographer.FrameCallback readCallback;
+    private final ScrollbackIndex scrollback;
+    private final Telemetry telemetry;
+    private final HashMap<String, CommandCorrelator> correlators;
+    private final Runnable correlatorTimeoutCallback;
+    private final ScriptEngine scriptEngine;
+    private final WriteGate writeGate;
+    private final ConnectionGovernor governor;
+    private final Runnable governorCallback;
+    private FileSender fileSender;
+    private volatile TransferSender transferSender;
+    private volatile SerialTransport.WriteListener senderWriteListener;
+    private WriteGate.Listener backpressureListener;
 
-    private SerialSocket socket;
+    private volatile SerialTransport socket;
     private SerialListener listener;
-    private boolean connected;
+    private SerialTransport.ChannelListener channelListener;
+    private volatile boolean connected; // write() is also called from script thread
+    private volatile CommandCorrelator correlator;
+    private volatile boolean ackChannel; // command replies are received on Channel.Ack
+    private volatile boolean telemetryChannel; // telemetry is received on Channel.Telemetry
+    private volatile WritePacer writePacer; // counts replies as write credits
 
     /**
      * Lifecylce
@@ -60,15 +107,36 @@ public class SerialService extends Service implements SerialListener {
     public SerialService() {
         mainLooper = new Handler(Looper.getMainLooper());
         binder = new SerialBinder();
-        queue1 = new ArrayDeque<>();
-        queue2 = new ArrayDeque<>();
-        lastRead = new QueueItem(QueueType.Read);
+        queue = new ArrayDeque<>();
+        dispatcher = new ReadDispatcher(this::consume);
+        readQueues = new ArrayList<>();
+        for(SerialTransport.Channel ignored : SerialTransport.Channel.values())
+            readQueues.add(new SpscQueue<>(READ_QUEUE_CAPACITY));
+        bufferPool = new BufferPool(READ_QUEUE_CAPACITY);
+        readPending = new AtomicBoolean();
+        readDatas = new ArrayDeque<>();
+        backlog = new ReadBacklog<>();
+        choreographer = Choreographer.getInstance(); // service is created in main thread
+        readCallback = frameTimeNanos -> deliverRead();
+        scrollback = new ScrollbackIndex();
+        telemetry = new Telemetry();
+        correlators = new HashMap<>();
+        correlatorTimeoutCallback = this::expireCommands;
+        scriptEngine = new ScriptEngine(this::writeScript);
+        governor = new ConnectionGovernor();
+        governorCallback = this::updateConnectionPriority;
+        writeGate = new WriteGate(WRITE_QUEUE_CAPACITY, full -> mainLooper.post(() -> {
+            if(backpressureListener != null)
+                backpressureListener.onBackpressure(full);
+        }));
     }
 
     @Override
     public void onDestroy() {
         cancelNotification();
         disconnect();
+        scriptEngine.shutdown();
+        dispatcher.shutdown();
         super.onDestroy();
     }
 
@@ -81,64 +149,364 @@ public class SerialService extends Service implements SerialListener {
     /**
      * Api
      */
-    public void connect(SerialSocket socket) throws IOException {
+    public void connect(SerialTransport socket) throws IOException {
+        socket.setWriteListener(() -> onWriteNext(socket));
+        socket.setChannelListener(this::onChannelRead);
+        socket.setBufferPool(bufferPool);
         socket.connect(this);
         this.socket = socket;
+        scrollback.clear();
+        telemetry.clear();
+        // statistics are kept per device for the lifetime of the service
+        CommandCorrelator correlator = correlators.get(socket.getAddress());
+        if(correlator == null) {
+            correlator = new CommandCorrelator();
+            correlators.put(socket.getAddress(), correlator);
+        }
+        this.correlator = correlator;
+        governor.reset(System.nanoTime());
+        ackChannel = false;
+        telemetryChannel = false;
+        writePacer = null;
         connected = true;
+        mainLooper.removeCallbacks(governorCallback);
+        mainLooper.postDelayed(governorCallback, GOVERNOR_INTERVAL);
     }
 
     public void disconnect() {
         connected = false; // ignore data,errors while disconnecting
+        scriptEngine.stop();
+        cancelSendFile();
         cancelNotification();
+        mainLooper.removeCallbacks(correlatorTimeoutCallback);
+        mainLooper.removeCallbacks(governorCallback);
         if(socket != null) {
             socket.disconnect();
             socket = null;
         }
+        writeGate.reset();
     }
 
     public void write(byte[] data) throws IOException {
-        if(!connected)
+        write(new WriteRequest(data));
+    }
+
+    /**
+     * request with High priority for commands that must not wait behind file or script data.
+     * Request listener is called in main thread
+     */
+    public void write(WriteRequest request) throws IOException {
+        write(request, (WriteFuture) null);
+    }
+
+    /**
+     * @param future completed from callback thread when the last chunk is confirmed, before the request listener
+     */
+    private void write(WriteRequest request, WriteFuture future) throws IOException {
+        SerialTransport socket = this.socket;
+        CommandCorrelator correlator = this.correlator;
+        if(!connected || socket == null)
+            throw new IOException("not connected");
+        WriteRequest.Listener listener = request.getListener();
+        request.setListener((r, reason) -> {
+            if(reason == null)
+                onWritten(correlator, r.data);
+            if(future != null)
+                future.onWriteFinished(r, reason);
+            if(listener != null)
+                mainLooper.post(() -> listener.onWriteFinished(r, reason));
+        });
+        socket.write(request);
+        governor.onWrite(System.nanoTime());
+        raiseConnectionPriority();
+    }
+
+    /**
+     * track commands only when written, as queued requests can still expire or be superseded.
+     * Called from callback thread before replies to the last chunk are read
+     */
+    private void onWritten(CommandCorrelator correlator, byte[] data) {
+        correlator.onWrite(data, System.nanoTime());
+        if(correlator.hasPending()) {
+            mainLooper.removeCallbacks(correlatorTimeoutCallback);
+            mainLooper.postDelayed(correlatorTimeoutCallback, correlator.getTimeoutNanos() / 1_000_000);
+        }
+    }
+
+    /**
+     * write with bounded write queue
+     * @throws WriteGate.QueueFullException with Backpressure.Fail
+     */
+    public void write(WriteRequest request, WriteGate.Backpressure backpressure) throws IOException {
+        SerialTransport socket = this.socket;
+        if(!connected || socket == null)
+            throw new IOException("not connected");
+        writeGate.acquire(socket, request.data.length, backpressure);
+        write(request);
+    }
+
+    /**
+     * write with bounded write queue. The future is done when the last chunk is confirmed, e.g. from
+     * onCharacteristicWrite(), or failed with IOException if the request was dropped or rejected,
+     * e.g. WriteGate.QueueFullException with Backpressure.Fail
+     */
+    public WriteFuture writeAsync(WriteRequest request, WriteGate.Backpressure backpressure) {
+        WriteFuture future = new WriteFuture();
+        try {
+            SerialTransport socket = this.socket;
+            if(!connected || socket == null)
+                throw new IOException("not connected");
+            writeGate.acquire(socket, request.data.length, backpressure);
+            write(request, future);
+        } catch (IOException e) {
+            future.complete(e);
+        }
+        return future;
+    }
+
+    /**
+     * called from script thread. Waits until written, so script delays start when the device got the data
+     */
+    private void writeScript(byte[] data) throws IOException {
+        try {
+            writeAsync(new WriteRequest(data), WriteGate.Backpressure.Block).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("write interrupted");
+        } catch (ExecutionException e) {
+            throw (IOException) e.getCause();
+        }
+    }
+
+    /**
+     * called in main thread when writes with Backpressure.Signal should pause or can resume
+     */
+    public void setBackpressureListener(WriteGate.Listener backpressureListener) {
+        this.backpressureListener = backpressureListener;
+    }
+
+    /**
+     * raise connection priority ahead of a command, e.g. when speech recognition starts
+     */
+    public void onCommandExpected() {
+        governor.onCommandExpected(System.nanoTime());
+        raiseConnectionPriority();
+    }
+
+    /**
+     * evaluate governor now instead of at next GOVERNOR_INTERVAL, so the first command
+     * after a pause is not sent with the long connection interval of LowPower or Balanced
+     */
+    private void raiseConnectionPriority() {
+        if(governor.getMode() != ConnectionGovernor.Mode.High) {
+            mainLooper.removeCallbacks(governorCallback);
+            mainLooper.post(governorCallback);
+        }
+    }
+
+    /**
+     * time spent per connection priority since connect
+     */
+    public String getConnectionPrioritySummary() {
+        if(socket == null)
+            return "not connected";
+        return governor.getSummary(System.nanoTime());
+    }
+
+    private void updateConnectionPriority() {
+        SerialTransport socket = this.socket;
+        if(!connected || socket == null)
+            return;
+        ConnectionGovernor.Mode mode = governor.tick(System.nanoTime());
+        if(mode != null)
+            socket.setConnectionPriority(mode);
+        mainLooper.postDelayed(governorCallback, GOVERNOR_INTERVAL);
+    }
+
+    /**
+     * called from callback thread
+     */
+    private void onWriteNext(SerialTransport socket) {
+        writeGate.onWriteNext(socket);
+        SerialTransport.WriteListener writeListener = senderWriteListener;
+        if(writeListener != null)
+            writeListener.onWriteNext();
+    }
+
+    /**
+     * run script on script thread, listener is called in main thread
+     * @param newline appended to each send statement
+     * @throws IllegalStateException if another script is running
+     */
+    public void runScript(ScriptEngine.Script script, byte[] newline, ScriptEngine.Listener listener) {
+        scriptEngine.start(script, newline, (s, e) -> mainLooper.post(() -> listener.onScriptFinished(s, e)));
+    }
+
+    public void stopScript() {
+        scriptEngine.stop();
+    }
+
+    public boolean isScriptRunning() {
+        return scriptEngine.isRunning();
+    }
+
+    /**
+     * stream file on file send thread, bypassing command statistics. Listener is called in main thread
+     * @param size for progress, -1 if unknown
+     * @throws IllegalStateException if another file is sent
+     */
+    public void sendFile(ReadableByteChannel channel, long size, FileSender.Listener listener) throws IOException {
+        SerialTransport socket = checkSendFile();
+        fileSender = new FileSender(channel, size, createFileSenderOutput(socket), postToMainThread(listener));
+        senderWriteListener = fileSender::onWriteNext;
+        fileSender.start();
+    }
+
+    /**
+     * send file with TransferProtocol on transfer thread. While running, received data is
+     * consumed by the protocol and not forwarded. Listener is called in main thread
+     * @throws IllegalStateException if another file is sent
+     */
+    public void transferFile(FileChannel channel, String name, FileSender.Listener listener) throws IOException {
+        SerialTransport socket = checkSendFile();
+        TransferSender transferSender = new TransferSender(channel, name, createFileSenderOutput(socket), postToMainThread(listener));
+        senderWriteListener = transferSender::onWriteNext;
+        this.transferSender = transferSender;
+        transferSender.start();
+    }
+
+    private SerialTransport checkSendFile() throws IOException {
+        SerialTransport socket = this.socket;
+        if(!connected || socket == null)
             throw new IOException("not connected");
-        socket.write(data);
+        if(isSendingFile())
+            throw new IllegalStateException("file send already running");
+        return socket;
+    }
+
+    private FileSender.Output createFileSenderOutput(SerialTransport socket) {
+        return new FileSender.Output() {
+            @Override
+            public void write(byte[] data) throws IOException { socket.write(data); }
+            @Override
+            public int getPayloadSize() { return socket.getPayloadSize(); }
+            @Override
+            public int getWriteQueueSize() { return socket.getWriteQueueSize(); }
+        };
+    }
+
+    private FileSender.Listener postToMainThread(FileSender.Listener listener) {
+        return new FileSender.Listener() {
+            @Override
+            public void onFileProgress(long sent, long size, long bytesPerSecond) {
+                mainLooper.post(() -> listener.onFileProgress(sent, size, bytesPerSecond));
+            }
+            @Override
+            public void onFileFinished(long sent, long size, Exception e) {
+                // last call from sender thread, so a following send cannot have set its listener yet
+                senderWriteListener = null;
+                mainLooper.post(() -> listener.onFileFinished(sent, size, e));
+            }
+        };
+    }
+
+    public void cancelSendFile() {
+        if(fileSender != null)
+            fileSender.cancel();
+        if(transferSender != null)
+            transferSender.cancel();
+    }
+
+    public boolean isSendingFile() {
+        return fileSender != null && fileSender.isRunning()
+                || transferSender != null && transferSender.isRunning();
+    }
+
+    /**
+     * received Data of current or last connection, also while UI is not attached.
+     * Other channels are only shown, see TerminalFragment.onChannelRead()
+     */
+    public ScrollbackIndex getScrollback() {
+        return scrollback;
+    }
+
+    /**
+     * limit write rate of current connection, null to write as fast as possible
+     */
+    public void setWritePacer(WritePacer pacer) {
+        writePacer = pacer;
+        SerialTransport socket = this.socket;
+        if(socket != null)
+            socket.setWritePacer(pacer);
     }
 
-    public void attach(SerialListener listener) {
+    /**
+     * @return null if not connected
+     */
+    public LinkMetrics getLinkMetrics() {
+        SerialTransport socket = this.socket;
+        return socket != null ? socket.getLinkMetrics() : null;
+    }
+
+    public void requestRssi() {
+        SerialTransport socket = this.socket;
+        if(socket != null)
+            socket.requestRssi();
+    }
+
+    /**
+     * numeric values parsed from received lines
+     */
+    public Telemetry getTelemetry() {
+        return telemetry;
+    }
+
+    /**
+     * command/response statistics of current or last connected device
+     */
+    @Nullable
+    public CommandCorrelator getCommandCorrelator() {
+        return correlator;
+    }
+
+    private void expireCommands() {
+        if(correlator != null) {
+            correlator.expire(System.nanoTime());
+            if(correlator.hasPending())
+                mainLooper.postDelayed(correlatorTimeoutCallback, correlator.getTimeoutNanos() / 1_000_000);
+        }
+    }
+
+    /**
+     * @param channelListener shows received data of other channels than Data, null to ignore it
+     */
+    public void attach(SerialListener listener, SerialTransport.ChannelListener channelListener) {
         if(Looper.getMainLooper().getThread() != Thread.currentThread())
             throw new IllegalArgumentException("not in main thread");
         initNotification();
         cancelNotification();
-        // use synchronized() to prevent new items in queue2
-        // new items will not be added to queue1 because mainLooper.post and attach() run in main thread
-        synchronized (this) {
-            this.listener = listener;
-        }
-        for(QueueItem item : queue1) {
-            switch(item.type) {
-                case Connect:       listener.onSerialConnect      (); break;
-                case ConnectError:  listener.onSerialConnectError (item.e); break;
-                case Read:          listener.onSerialRead         (item.datas); break;
-                case IoError:       listener.onSerialIoError      (item.e); break;
-            }
-        }
-        for(QueueItem item : queue2) {
+        // new items will not be added to queue because mainLooper.post and attach() run in main thread
+        this.listener = listener;
+        this.channelListener = channelListener;
+        for(QueueItem item : queue) {
             switch(item.type) {
                 case Connect:       listener.onSerialConnect      (); break;
                 case ConnectError:  listener.onSerialConnectError (item.e); break;
                 case Read:          listener.onSerialRead         (item.datas); break;
+                case ChannelRead:   deliverChannelRead(item); break;
                 case IoError:       listener.onSerialIoError      (item.e); break;
             }
         }
-        queue1.clear();
-        queue2.clear();
+        queue.clear();
     }
 
     public void detach() {
         if(connected)
             createNotification();
-        // items already in event queue (posted before detach() to mainLooper) will end up in queue1
-        // items occurring later, will be moved directly to queue2
+        // items already in event queue (posted before detach() to mainLooper) and items occurring later end up in queue
         // detach() and mainLooper.post run in the main thread, so all items are caught
         listener = null;
+        channelListener = null;
     }
 
     private void initNotification() {
@@ -186,106 +554,208 @@ public class SerialService extends Service implements SerialListener {
         stopForeground(true);
     }
 
+    /**
+     * received bytes not yet forwarded to listener
+     */
+    public int getReadBacklog() {
+        return backlog.getSize();
+    }
+
+    /**
+     * writes queued per priority lane, with highest number since connect, and dropped writes
+     */
+    public String getWriteQueueSummary() {
+        SerialTransport socket = this.socket;
+        if(socket == null)
+            return "not connected";
+        StringBuilder sb = new StringBuilder();
+        for(WriteQueue.Priority priority : WriteQueue.Priority.values())
+            sb.append(String.format(Locale.US, "%s: %d, max %d\n", priority,
+                    socket.getWriteQueueDepth(priority), socket.getMaxWriteQueueDepth(priority)));
+        sb.append("dropped: ").append(socket.getDroppedWriteCount()).append('\n');
+        return sb.toString();
+    }
+
     /**
      * SerialListener
      */
     public void onSerialConnect() {
         if(connected) {
-            synchronized (this) {
-                if (listener != null) {
-                    mainLooper.post(() -> {
-                        if (listener != null) {
-                            listener.onSerialConnect();
-                        } else {
-                            queue1.add(new QueueItem(QueueType.Connect));
-                        }
-                    });
-                } else {
-                    queue2.add(new QueueItem(QueueType.Connect));
-                }
-            }
+            SerialTransport socket = this.socket;
+            if(socket instanceof SerialSocket || socket instanceof L2capSocket)
+                DeviceCache.get(this).onConnected(socket.getAddress(), socket.getName(), socket.getProfile());
+            mainLooper.post(() -> deliver(new QueueItem(QueueType.Connect)));
         }
     }
 
     public void onSerialConnectError(Exception e) {
         if(connected) {
-            synchronized (this) {
-                if (listener != null) {
-                    mainLooper.post(() -> {
-                        if (listener != null) {
-                            listener.onSerialConnectError(e);
-                        } else {
-                            queue1.add(new QueueItem(QueueType.ConnectError, e));
-                            disconnect();
-                        }
-                    });
-                } else {
-                    queue2.add(new QueueItem(QueueType.ConnectError, e));
-                    disconnect();
+            mainLooper.post(() -> deliver(new QueueItem(QueueType.ConnectError, e)));
+        }
+    }
+
+    public void onSerialRead(ArrayDeque<byte[]> datas) { throw new UnsupportedOperationException(); }
+
+    /**
+     * called from transport callback thread, consumed in lane thread of Data
+     */
+    public void onSerialRead(byte[] data) {
+        if(connected) {
+            governor.onRead(data.length, System.nanoTime());
+            dispatcher.offer(SerialTransport.Channel.Data, data);
+        }
+    }
+
+    /**
+     * data of separate characteristics goes to its own lane, so acknowledgments are
+     * not queued behind high rate telemetry
+     */
+    private void onChannelRead(SerialTransport.Channel channel, byte[] data) {
+        if(!connected)
+            return;
+        governor.onRead(data.length, System.nanoTime());
+        if(channel == SerialTransport.Channel.Ack)
+            ackChannel = true; // replies are split into lines per channel, so stop feeding Data
+        if(channel == SerialTransport.Channel.Telemetry)
+            telemetryChannel = true; // Telemetry has a single writer then
+        dispatcher.offer(channel, data);
+    }
+
+    /**
+     * called from lane thread of channel. Telemetry is only plotted, not shown as text
+     */
+    private void consume(SerialTransport.Channel channel, byte[] data) {
+        if(!connected)
+            return;
+        switch (channel) {
+            case Data: {
+                TransferSender transferSender = this.transferSender;
+                if(transferSender != null && transferSender.isRunning()) {
+                    transferSender.onRead(data);
+                    return;
+                }
+                if(!ackChannel) {
+                    onReply(data);
+                    correlator.onRead(data, System.nanoTime());
+                    scriptEngine.onRead(data);
                 }
+                if(!telemetryChannel)
+                    telemetry.onRead(data, System.nanoTime() / 1000);
+                display(channel, data);
+                break;
             }
+            case Telemetry:
+                telemetry.onRead(data, System.nanoTime() / 1000);
+                break;
+            case Ack:
+                onReply(data);
+                correlator.onRead(data, System.nanoTime());
+                scriptEngine.onRead(data);
+                display(channel, data);
+                break;
+            default:
+                display(channel, data);
+                break;
         }
     }
 
-    public void onSerialRead(ArrayDeque<byte[]> datas) { throw new UnsupportedOperationException(); }
+    private void onReply(byte[] data) {
+        WritePacer writePacer = this.writePacer;
+        if(writePacer != null)
+            writePacer.onRead(data);
+    }
 
     /**
      * reduce number of UI updates by merging data chunks.
      * Data can arrive at hundred chunks per second, but the UI can only
      * perform a dozen updates if receiveText already contains much text.
      *
-     * On new data inform UI thread once (1).
+     * On new data inform UI thread once per frame (1).
      * While not consumed (2), add more data (3).
+     *
+     * called from lane thread of channel, the single producer of its read queue
      */
-    public void onSerialRead(byte[] data) {
+    private void display(SerialTransport.Channel channel, byte[] data) {
+        if(channel == SerialTransport.Channel.Data) // other channels would split Data lines in search and export
+            scrollback.append(data, System.currentTimeMillis());
+        readQueues.get(channel.ordinal()).offer(data); // (3)
+        if(readPending.compareAndSet(false, true)) // (1)
+            choreographer.postFrameCallback(readCallback);
+    }
+
+    public void onSerialIoError(Exception e) {
         if(connected) {
-            synchronized (this) {
+            mainLooper.post(() -> deliver(new QueueItem(QueueType.IoError, e)));
+        }
+    }
+
+    /*
+     * main thread
+     */
+    private void deliverRead() {
+        readPending.set(false); // (2)
+        deliver(null);
+    }
+
+    /**
+     * connect and error events are appended to backlog, to keep order with data received before.
+     * readDatas and its buffers are reused, so listener must not keep a reference after onSerialRead() returns
+     */
+    private void deliver(QueueItem item) {
+        byte[] data;
+        for(SerialTransport.Channel channel : SerialTransport.Channel.values()) {
+            SpscQueue<byte[]> readQueue = readQueues.get(channel.ordinal());
+            while((data = readQueue.poll()) != null) {
+                if(channel == SerialTransport.Channel.Data)
+                    backlog.add(data);
+                else
+                    backlog.addEvent(new QueueItem(channel, data)); // shown separately from the Data stream
+            }
+        }
+        if(item != null)
+            backlog.addEvent(item);
+        long start = System.nanoTime();
+        while(!backlog.isEmpty()) {
+            QueueItem event = backlog.pollEvent();
+            if(event != null) {
+                deliver1(event);
+            } else {
+                backlog.pollData(readDatas, READ_SLICE_SIZE);
                 if (listener != null) {
-                    boolean first;
-                    synchronized (lastRead) {
-                        first = lastRead.datas.isEmpty(); // (1)
-                        lastRead.add(data); // (3)
-                    }
-                    if(first) {
-                        mainLooper.post(() -> {
-                            ArrayDeque<byte[]> datas;
-                            synchronized (lastRead) {
-                                datas = lastRead.datas;
-                                lastRead.init(); // (2)
-                            }
-                            if (listener != null) {
-                                listener.onSerialRead(datas);
-                            } else {
-                                queue1.add(new QueueItem(QueueType.Read, datas));
-                            }
-                        });
-                    }
+                    listener.onSerialRead(readDatas);
+                    for(byte[] readData : readDatas)
+                        bufferPool.release(readData);
                 } else {
-                    if(queue2.isEmpty() || queue2.getLast().type != QueueType.Read)
-                        queue2.add(new QueueItem(QueueType.Read));
-                    queue2.getLast().add(data);
+                    if(queue.isEmpty() || queue.getLast().type != QueueType.Read)
+                        queue.add(new QueueItem(QueueType.Read));
+                    queue.getLast().datas.addAll(readDatas);
                 }
+                readDatas.clear();
             }
+            if(listener != null && System.nanoTime() - start > FRAME_BUDGET)
+                break;
         }
+        if(!backlog.isEmpty() && readPending.compareAndSet(false, true))
+            choreographer.postFrameCallback(readCallback); // continue in next frame
     }
 
-    public void onSerialIoError(Exception e) {
-        if(connected) {
-            synchronized (this) {
-                if (listener != null) {
-                    mainLooper.post(() -> {
-                        if (listener != null) {
-                            listener.onSerialIoError(e);
-                        } else {
-                            queue1.add(new QueueItem(QueueType.IoError, e));
-                            disconnect();
-                        }
-                    });
-                } else {
-                    queue2.add(new QueueItem(QueueType.IoError, e));
-                    disconnect();
-                }
+    private void deliverChannelRead(QueueItem item) {
+        if(channelListener != null)
+            channelListener.onChannelRead(item.channel, item.data);
+    }
+
+    private void deliver1(QueueItem item) {
+        if (listener != null) {
+            switch(item.type) {
+                case Connect:       listener.onSerialConnect      (); break;
+                case ConnectError:  listener.onSerialConnectError (item.e); break;
+                case ChannelRead:   deliverChannelRead(item); break;
+                case IoError:       listener.onSerialIoError      (item.e); break;
             }
+        } else {
+            queue.add(item);
+            if(item.type == QueueType.ConnectError || item.type == QueueType.IoError)
+                disconnect();
         }
     }
 
@@ -14,14 +14,20 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
 import androidx.core.content.ContextCompat;
 
 import java.io.IOException;
 import java.security.InvalidParameterException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
 import java.util.UUID;
 
 /**
@@ -30,21 +36,42 @@ import java.util.UUID;
  *   - read + status is returned by SerialListener
  */
 @SuppressLint("MissingPermission") // various BluetoothGatt, BluetoothDevice methods
-class SerialSocket extends BluetoothGattCallback {
+class SerialSocket extends BluetoothGattCallback implements SerialTransport {
 
     /**
      * delegate device specific behaviour to inner class
      */
-    private static class DeviceDelegate {
+    static class DeviceDelegate {
+        String getProfile() { return null; }
         boolean connectCharacteristics(BluetoothGattService s) { return true; }
         // following methods only overwritten for Telit devices
         void onDescriptorWrite(BluetoothGatt g, BluetoothGattDescriptor d, int status) { /*nop*/ }
         void onCharacteristicChanged(BluetoothGatt g, BluetoothGattCharacteristic c) {/*nop*/ }
         void onCharacteristicWrite(BluetoothGatt g, BluetoothGattCharacteristic c, int status) { /*nop*/ }
+        boolean isWritePending() { return false; } // own write not yet confirmed, that blocks further connect steps
         boolean canWrite() { return true; }
         void disconnect() {/*nop*/ }
     }
 
+    /**
+     * creates delegate for a discovered service, e.g. socket -> socket.new NrfDelegate()
+     */
+    interface DelegateFactory {
+        DeviceDelegate create(SerialSocket socket);
+    }
+
+    private static class Registration {
+        final UUID service;
+        final int rank;
+        final DelegateFactory factory;
+
+        Registration(UUID service, int rank, DelegateFactory factory) {
+            this.service = service;
+            this.rank = rank;
+            this.factory = factory;
+        }
+    }
+
     private static final UUID BLUETOOTH_LE_CCCD           = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
     private static final UUID BLUETOOTH_LE_CC254X_SERVICE = UUID.fromString("0000ffe0-0000-1000-8000-00805f9b34fb");
     private static final UUID BLUETOOTH_LE_CC254X_CHAR_RW = UUID.fromString("0000ffe1-0000-1000-8000-00805f9b34fb");
@@ -63,33 +90,99 @@ class SerialSocket extends BluetoothGattCallback {
     private static final UUID BLUETOOTH_LE_TIO_CHAR_TX_CREDITS  = UUID.fromString("00000003-0000-1000-8000-008025000000"); // W
     private static final UUID BLUETOOTH_LE_TIO_CHAR_RX_CREDITS  = UUID.fromString("00000004-0000-1000-8000-008025000000"); // I
 
+    // LE L2CAP PSM as uint16 little endian, as CBUUIDL2CAPPSMCharacteristicString on iOS. In any service
+    private static final UUID BLUETOOTH_LE_L2CAP_PSM            = UUID.fromString("abdd3056-28fa-441d-a470-55a75a52553a");
+
+    // known serial services by service UUID. If a device has several, the highest rank is used.
+    // Vexis boards use an HC-05 serial bridge (see firmware), so they have no BLE service of their own.
+    // Boards with an own service are added with registerProfile(), using the UUIDs of their firmware
+    private static final HashMap<UUID, Registration> delegates = new HashMap<>();
+
+    static {
+        registerDelegate(BLUETOOTH_LE_TIO_SERVICE, 40, socket -> socket.new TelitDelegate());
+        registerDelegate(BLUETOOTH_LE_NRF_SERVICE, 30, socket -> socket.new NrfDelegate());
+        registerProfile("microchip", BLUETOOTH_LE_MICROCHIP_SERVICE, 20,
+                BLUETOOTH_LE_MICROCHIP_CHAR_RW, BLUETOOTH_LE_MICROCHIP_CHAR_W, BLUETOOTH_LE_MICROCHIP_CHAR_RW);
+        registerProfile("cc254x", BLUETOOTH_LE_CC254X_SERVICE, 10, BLUETOOTH_LE_CC254X_CHAR_RW, BLUETOOTH_LE_CC254X_CHAR_RW);
+    }
+
+    /**
+     * add or replace delegate for service
+     */
+    static void registerDelegate(UUID service, int rank, DelegateFactory factory) {
+        synchronized (delegates) {
+            delegates.put(service, new Registration(service, rank, factory));
+        }
+    }
+
+    /**
+     * add or replace declarative delegate, that only names characteristics
+     * @param writeCharacteristics first existing one is used
+     */
+    static void registerProfile(String profile, UUID service, int rank, UUID readCharacteristic, UUID... writeCharacteristics) {
+        registerProfile(profile, service, rank, new HashMap<>(), readCharacteristic, writeCharacteristics);
+    }
+
+    /**
+     * @param channels optional characteristics for other channels than Data, subscribed if present
+     */
+    static void registerProfile(String profile, UUID service, int rank, HashMap<UUID, Channel> channels,
+                                UUID readCharacteristic, UUID... writeCharacteristics) {
+        registerDelegate(service, rank, socket -> socket.new ProfileDelegate(profile, channels, readCharacteristic, writeCharacteristics));
+    }
+
+    /**
+     * known serial services, e.g. used as scan filter
+     */
+    static UUID[] getServiceUuids() {
+        synchronized (delegates) {
+            return delegates.keySet().toArray(new UUID[0]);
+        }
+    }
+
     private static final int MAX_MTU = 512; // BLE standard does not limit, some BLE 4.2 devices support 251, various source say that Android has max 512
     private static final int DEFAULT_MTU = 23;
     private static final String TAG = "SerialSocket";
 
-    private final ArrayList<byte[]> writeBuffer;
+    private final WriteQueue writeQueue;
+    private final LinkMetrics linkMetrics;
+    private final Handler pacerHandler;
+    private final Runnable pacerCallback;
     private final IntentFilter pairingIntentFilter;
     private final BroadcastReceiver pairingBroadcastReceiver;
     private final BroadcastReceiver disconnectBroadcastReceiver;
 
     private final Context context;
+    private final String address;
     private SerialListener listener;
+    private volatile WriteListener writeListener;
+    private volatile ChannelListener channelListener;
+    private final HashMap<BluetoothGattCharacteristic, Channel> channels = new HashMap<>(); // only accessed in callback thread
+    private final ArrayDeque<BluetoothGattDescriptor> pendingDescriptors = new ArrayDeque<>(); // CCCD writes while connecting
+    private boolean connectRequestPending; // CCCD write or PSM read in progress while connecting
     private DeviceDelegate delegate;
     private BluetoothDevice device;
     private BluetoothGatt gatt;
     private BluetoothGattCharacteristic readCharacteristic, writeCharacteristic;
 
-    private boolean writePending;
     private boolean canceled;
+    private boolean l2capPsmRequested;
+    private volatile int l2capPsm;
+    private boolean rssiPending; // guarded by writeQueue
     private boolean connected;
-    private int payloadSize = DEFAULT_MTU-3;
+    private volatile int payloadSize = DEFAULT_MTU-3;
 
     SerialSocket(Context context, BluetoothDevice device) {
         if(context instanceof Activity)
             throw new InvalidParameterException("expected non UI context");
         this.context = context;
         this.device = device;
-        writeBuffer = new ArrayList<>();
+        this.address = device.getAddress();
+        writeQueue = new WriteQueue();
+        linkMetrics = new LinkMetrics();
+        linkMetrics.setMtu(DEFAULT_MTU, DEFAULT_MTU-3);
+        pacerHandler = new Handler(Looper.getMainLooper());
+        pacerCallback = () -> writeNext(true);
         pairingIntentFilter = new IntentFilter();
         pairingIntentFilter.addAction(BluetoothDevice.ACTION_BOND_STATE_CHANGED);
         pairingIntentFilter.addAction(BluetoothDevice.ACTION_PAIRING_REQUEST);
@@ -109,19 +202,152 @@ class SerialSocket extends BluetoothGattCallback {
         };
     }
 
-    String getName() {
+    @Override
+    public String getName() {
         return device.getName() != null ? device.getName() : device.getAddress();
     }
 
-    void disconnect() {
+    @Override
+    public String getAddress() {
+        return address;
+    }
+
+    @Override
+    public String getProfile() {
+        return delegate != null ? delegate.getProfile() : null;
+    }
+
+    @Override
+    public void setWriteListener(WriteListener writeListener) {
+        this.writeListener = writeListener;
+    }
+
+    /**
+     * read L2CAP PSM characteristic before reporting connect, call before connect()
+     */
+    void requestL2capPsm() {
+        l2capPsmRequested = true;
+    }
+
+    /**
+     * @return 0 if not requested or device has no PSM characteristic
+     */
+    int getL2capPsm() {
+        return l2capPsm;
+    }
+
+    @Override
+    public void setChannelListener(ChannelListener channelListener) {
+        this.channelListener = channelListener;
+    }
+
+    /**
+     * received data is allocated by the BLE stack
+     */
+    @Override
+    public void setBufferPool(BufferPool pool) {
+    }
+
+    @Override
+    public void setWritePacer(WritePacer pacer) {
+        synchronized (writeQueue) {
+            writeQueue.setPacer(pacer);
+        }
+        writeNext(true); // queued chunks might be allowed now
+    }
+
+    /**
+     * max length of data written with one characteristic write
+     */
+    @Override
+    public int getPayloadSize() {
+        return payloadSize;
+    }
+
+    /**
+     * number of characteristic writes queued or in progress
+     */
+    @Override
+    public int getWriteQueueSize() {
+        synchronized (writeQueue) {
+            return writeQueue.size();
+        }
+    }
+
+    @Override
+    public int getWriteQueueDepth(WriteQueue.Priority priority) {
+        synchronized (writeQueue) {
+            return writeQueue.getDepth(priority);
+        }
+    }
+
+    @Override
+    public int getMaxWriteQueueDepth(WriteQueue.Priority priority) {
+        synchronized (writeQueue) {
+            return writeQueue.getMaxDepth(priority);
+        }
+    }
+
+    @Override
+    public LinkMetrics getLinkMetrics() {
+        return linkMetrics;
+    }
+
+    @Override
+    public void setConnectionPriority(ConnectionGovernor.Mode mode) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP || canceled || !connected || gatt == null)
+            return;
+        int priority = mode == ConnectionGovernor.Mode.High ? BluetoothGatt.CONNECTION_PRIORITY_HIGH
+                : mode == ConnectionGovernor.Mode.Balanced ? BluetoothGatt.CONNECTION_PRIORITY_BALANCED
+                : BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER;
+        Log.d(TAG, "request connection priority " + mode);
+        if (!gatt.requestConnectionPriority(priority))
+            Log.d(TAG, "request connection priority failed");
+    }
+
+    /**
+     * only while no write is queued, as another GATT operation in progress would fail the next write.
+     * Writes are held back until the RSSI is read. Not for Telit devices, which write credits at any time
+     */
+    @Override
+    public void requestRssi() {
+        synchronized (writeQueue) {
+            if(canceled || !connected || gatt == null || rssiPending || writeQueue.size() > 0 || delegate instanceof TelitDelegate)
+                return;
+            rssiPending = gatt.readRemoteRssi();
+        }
+    }
+
+    @Override
+    public void onReadRemoteRssi(BluetoothGatt gatt, int rssi, int status) {
+        if(status == BluetoothGatt.GATT_SUCCESS)
+            linkMetrics.setRssi(rssi);
+        synchronized (writeQueue) {
+            rssiPending = false;
+        }
+        writeNext(true);
+    }
+
+    @Override
+    public long getDroppedWriteCount() {
+        synchronized (writeQueue) {
+            return writeQueue.getDroppedCount();
+        }
+    }
+
+    @Override
+    public void disconnect() {
         Log.d(TAG, "disconnect");
         listener = null; // ignore remaining data and errors
         device = null;
         canceled = true;
-        synchronized (writeBuffer) {
-            writePending = false;
-            writeBuffer.clear();
+        ArrayList<WriteRequest> finished;
+        synchronized (writeQueue) {
+            writeQueue.clear();
+            finished = writeQueue.pollFinished();
         }
+        notifyFinished(finished);
+        pacerHandler.removeCallbacks(pacerCallback);
         readCharacteristic = null;
         writeCharacteristic = null;
         if(delegate != null)
@@ -146,10 +372,8 @@ class SerialSocket extends BluetoothGattCallback {
         }
     }
 
-    /**
-     * connect-success and most connect-errors are returned asynchronously to listener
-     */
-    void connect(SerialListener listener) throws IOException {
+    @Override
+    public void connect(SerialListener listener) throws IOException {
         if(connected || gatt != null)
             throw new IOException("already connected");
         canceled = false;
@@ -221,22 +445,35 @@ class SerialSocket extends BluetoothGattCallback {
 
     private void connectCharacteristics1(BluetoothGatt gatt) {
         boolean sync = true;
-        writePending = false;
-        for (BluetoothGattService gattService : gatt.getServices()) {
-            if (gattService.getUuid().equals(BLUETOOTH_LE_CC254X_SERVICE))
-                delegate = new Cc245XDelegate();
-            if (gattService.getUuid().equals(BLUETOOTH_LE_MICROCHIP_SERVICE))
-                delegate = new MicrochipDelegate();
-            if (gattService.getUuid().equals(BLUETOOTH_LE_NRF_SERVICE))
-                delegate = new NrfDelegate();
-            if (gattService.getUuid().equals(BLUETOOTH_LE_TIO_SERVICE))
-                delegate = new TelitDelegate();
-
-            if(delegate != null) {
-                sync = delegate.connectCharacteristics(gattService);
-                break;
+        synchronized (writeQueue) {
+            writeQueue.resetPending();
+        }
+        ArrayList<BluetoothGattService> services = new ArrayList<>();
+        ArrayList<Registration> registrations = new ArrayList<>();
+        synchronized (delegates) {
+            for (BluetoothGattService gattService : gatt.getServices()) {
+                Registration registration = delegates.get(gattService.getUuid());
+                if (registration == null)
+                    continue;
+                int i = 0;
+                while (i < registrations.size() && registrations.get(i).rank >= registration.rank)
+                    i++;
+                services.add(i, gattService);
+                registrations.add(i, registration);
             }
         }
+        // try by rank, until a delegate found its characteristics
+        for (int i = 0; i < registrations.size(); i++) {
+            delegate = registrations.get(i).factory.create(this);
+            readCharacteristic = null;
+            writeCharacteristic = null;
+            channels.clear();
+            sync = delegate.connectCharacteristics(services.get(i));
+            if (canceled || !sync || readCharacteristic != null && writeCharacteristic != null)
+                break;
+            Log.d(TAG, "profile "+delegate.getProfile()+" incomplete");
+            delegate = null;
+        }
         if(canceled)
             return;
         if(delegate==null || readCharacteristic==null || writeCharacteristic==null) {
@@ -268,6 +505,7 @@ class SerialSocket extends BluetoothGattCallback {
         Log.d(TAG,"mtu size "+mtu+", status="+status);
         if(status ==  BluetoothGatt.GATT_SUCCESS) {
             payloadSize = mtu - 3;
+            linkMetrics.setMtu(mtu, payloadSize);
             Log.d(TAG, "payload size "+payloadSize);
         }
         connectCharacteristics3(gatt);
@@ -280,49 +518,125 @@ class SerialSocket extends BluetoothGattCallback {
             onSerialConnectError(new IOException("write characteristic not writable"));
             return;
         }
-        if(!gatt.setCharacteristicNotification(readCharacteristic,true)) {
-            onSerialConnectError(new IOException("no notification for read characteristic"));
+        pendingDescriptors.clear();
+        connectRequestPending = false;
+        try {
+            pendingDescriptors.add(enableNotification(gatt, readCharacteristic, "read"));
+        } catch (IOException e) {
+            onSerialConnectError(e);
             return;
         }
-        BluetoothGattDescriptor readDescriptor = readCharacteristic.getDescriptor(BLUETOOTH_LE_CCCD);
-        if(readDescriptor == null) {
-            onSerialConnectError(new IOException("no CCCD descriptor for read characteristic"));
-            return;
+        for (Iterator<Map.Entry<BluetoothGattCharacteristic, Channel>> it = channels.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<BluetoothGattCharacteristic, Channel> entry = it.next();
+            try {
+                pendingDescriptors.add(enableNotification(gatt, entry.getKey(), entry.getValue().name().toLowerCase(Locale.US)));
+            } catch (IOException e) {
+                Log.d(TAG, e.getMessage() + ", channel ignored");
+                it.remove();
+            }
         }
-        int readProperties = readCharacteristic.getProperties();
-        if((readProperties & BluetoothGattCharacteristic.PROPERTY_INDICATE) != 0) {
-            Log.d(TAG, "enable read indication");
-            readDescriptor.setValue(BluetoothGattDescriptor.ENABLE_INDICATION_VALUE);
-        }else if((readProperties & BluetoothGattCharacteristic.PROPERTY_NOTIFY) != 0) {
-            Log.d(TAG, "enable read notification");
-            readDescriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+        writeNextDescriptor(gatt);
+    }
+
+    /**
+     * enable indication or notification, CCCD descriptor is written later by writeNextDescriptor()
+     */
+    private BluetoothGattDescriptor enableNotification(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, String name) throws IOException {
+        if(!gatt.setCharacteristicNotification(characteristic,true))
+            throw new IOException("no notification for "+name+" characteristic");
+        BluetoothGattDescriptor descriptor = characteristic.getDescriptor(BLUETOOTH_LE_CCCD);
+        if(descriptor == null)
+            throw new IOException("no CCCD descriptor for "+name+" characteristic");
+        int properties = characteristic.getProperties();
+        if((properties & BluetoothGattCharacteristic.PROPERTY_INDICATE) != 0) {
+            Log.d(TAG, "enable "+name+" indication");
+            descriptor.setValue(BluetoothGattDescriptor.ENABLE_INDICATION_VALUE);
+        }else if((properties & BluetoothGattCharacteristic.PROPERTY_NOTIFY) != 0) {
+            Log.d(TAG, "enable "+name+" notification");
+            descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
         } else {
-            onSerialConnectError(new IOException("no indication/notification for read characteristic ("+readProperties+")"));
+            throw new IOException("no indication/notification for "+name+" characteristic ("+properties+")");
+        }
+        return descriptor;
+    }
+
+    /**
+     * only one GATT operation can be in progress, so CCCD descriptors are written one after another,
+     * and after writes of the delegate, e.g. Telit read credits granted when the read CCCD was written
+     */
+    private void writeNextDescriptor(BluetoothGatt gatt) {
+        if(delegate.isWritePending())
+            return; // continues asynchronously in onCharacteristicWrite()
+        BluetoothGattDescriptor descriptor = pendingDescriptors.peekFirst();
+        if(descriptor == null) {
+            if(l2capPsmRequested && readL2capPsm(gatt)) {
+                connectRequestPending = true;
+                return; // continues asynchronously in onCharacteristicRead()
+            }
+            onConnected();
             return;
         }
-        Log.d(TAG,"writing read characteristic descriptor");
-        if(!gatt.writeDescriptor(readDescriptor)) {
-            onSerialConnectError(new IOException("read characteristic CCCD descriptor not writable"));
+        Log.d(TAG,"writing characteristic descriptor "+descriptor.getCharacteristic().getUuid());
+        if(!gatt.writeDescriptor(descriptor)) {
+            onSerialConnectError(new IOException("characteristic CCCD descriptor not writable"));
+            return;
         }
+        connectRequestPending = true;
         // continues asynchronously in onDescriptorWrite()
     }
 
+    private void onConnected() {
+        // onCharacteristicChanged with incoming data can happen after writeDescriptor(ENABLE_INDICATION/NOTIFICATION)
+        // before confirmed by onDescriptorWrite, so receive data can be shown before device is shown as 'Connected'.
+        onSerialConnect();
+        connected = true;
+        Log.d(TAG, "connected");
+    }
+
+    /**
+     * @return false if device has no readable PSM characteristic
+     */
+    private boolean readL2capPsm(BluetoothGatt gatt) {
+        for (BluetoothGattService gattService : gatt.getServices()) {
+            BluetoothGattCharacteristic characteristic = gattService.getCharacteristic(BLUETOOTH_LE_L2CAP_PSM);
+            if(characteristic != null && (characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_READ) != 0) {
+                Log.d(TAG, "reading l2cap psm");
+                return gatt.readCharacteristic(characteristic);
+            }
+        }
+        Log.d(TAG, "no l2cap psm characteristic");
+        return false;
+    }
+
+    @Override
+    public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+        if(canceled || !BLUETOOTH_LE_L2CAP_PSM.equals(characteristic.getUuid()))
+            return;
+        connectRequestPending = false;
+        byte[] value = characteristic.getValue();
+        if(status == BluetoothGatt.GATT_SUCCESS && value != null && value.length >= 2)
+            l2capPsm = (value[0] & 0xff) | (value[1] & 0xff) << 8;
+        Log.d(TAG, "l2cap psm "+l2capPsm+", status="+status);
+        onConnected();
+    }
+
     @Override
     public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
         delegate.onDescriptorWrite(gatt, descriptor, status);
         if(canceled)
             return;
-        if(descriptor.getCharacteristic() == readCharacteristic) {
-            Log.d(TAG,"writing read characteristic descriptor finished, status="+status);
+        if(descriptor == pendingDescriptors.peekFirst()) { // NOPMD - test object identity
+            pendingDescriptors.removeFirst();
+            connectRequestPending = false;
+            Log.d(TAG,"writing characteristic descriptor finished, status="+status);
             if (status != BluetoothGatt.GATT_SUCCESS) {
-                onSerialConnectError(new IOException("write descriptor failed"));
-            } else {
-                // onCharacteristicChanged with incoming data can happen after writeDescriptor(ENABLE_INDICATION/NOTIFICATION)
-                // before confirmed by this method, so receive data can be shown before device is shown as 'Connected'.
-                onSerialConnect();
-                connected = true;
-                Log.d(TAG, "connected");
+                if(descriptor.getCharacteristic() == readCharacteristic) { // NOPMD - test object identity
+                    onSerialConnectError(new IOException("write descriptor failed"));
+                    return;
+                }
+                Log.d(TAG, "channel "+channels.remove(descriptor.getCharacteristic())+" ignored");
             }
+            writeNextDescriptor(gatt);
         }
     }
 
@@ -337,42 +651,53 @@ class SerialSocket extends BluetoothGattCallback {
         if(canceled)
             return;
         if(characteristic == readCharacteristic) { // NOPMD - test object identity
+            // modules batch serial output into notifications up to payload size, so a notification can
+            // hold several lines or part of one. Data is not framed, consumers reassemble lines
             byte[] data = readCharacteristic.getValue();
+            linkMetrics.onRead(data.length);
             onSerialRead(data);
             Log.d(TAG,"read, len="+data.length);
+        } else {
+            Channel channel = channels.get(characteristic);
+            ChannelListener channelListener = this.channelListener;
+            if(channel != null) {
+                byte[] data = characteristic.getValue();
+                linkMetrics.onRead(data.length);
+                if(channelListener != null)
+                    channelListener.onChannelRead(channel, data);
+                Log.d(TAG,"read "+channel+", len="+data.length);
+            }
         }
     }
 
     /*
      * write
      */
-    void write(byte[] data) throws IOException {
+    @Override
+    public void write(byte[] data) throws IOException {
+        write(new WriteRequest(data));
+    }
+
+    @Override
+    public void write(WriteRequest request) throws IOException {
         if(canceled || !connected || writeCharacteristic == null)
             throw new IOException("not connected");
         byte[] data0;
-        synchronized (writeBuffer) {
-            if(data.length <= payloadSize) {
-                data0 = data;
-            } else {
-                data0 = Arrays.copyOfRange(data, 0, payloadSize);
-            }
-            if(!writePending && writeBuffer.isEmpty() && delegate.canWrite()) {
-                writePending = true;
-            } else {
-                writeBuffer.add(data0);
-                Log.d(TAG,"write queued, len="+data0.length);
-                data0 = null;
-            }
-            if(data.length > payloadSize) {
-                for(int i=1; i<(data.length+payloadSize-1)/payloadSize; i++) {
-                    int from = i*payloadSize;
-                    int to = Math.min(from+payloadSize, data.length);
-                    writeBuffer.add(Arrays.copyOfRange(data, from, to));
-                    Log.d(TAG,"write queued, len="+(to-from));
-                }
-            }
+        long pacerDelay;
+        ArrayList<WriteRequest> finished;
+        synchronized (writeQueue) {
+            data0 = writeQueue.add(request, payloadSize, delegate.canWrite() && !rssiPending);
+            pacerDelay = writeQueue.getPacerDelay();
+            linkMetrics.setWriteQueueSize(writeQueue.size());
+            finished = writeQueue.pollFinished();
         }
+        notifyFinished(finished);
+        if(pacerDelay > 0)
+            schedulePacedWrite(pacerDelay);
+        if(data0 == null)
+            Log.d(TAG,"write queued, len="+request.data.length);
         if(data0 != null) {
+            linkMetrics.onWriteStart(data0.length, System.nanoTime());
             writeCharacteristic.setValue(data0);
             if (!gatt.writeCharacteristic(writeCharacteristic)) {
                 onSerialIoError(new IOException("write failed"));
@@ -385,8 +710,14 @@ class SerialSocket extends BluetoothGattCallback {
 
     @Override
     public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-        if(canceled || !connected || writeCharacteristic == null)
+        if(canceled || writeCharacteristic == null)
+            return;
+        if(!connected) { // write of delegate while connecting
+            delegate.onCharacteristicWrite(gatt, characteristic, status);
+            if(!canceled && !connectRequestPending && !delegate.isWritePending())
+                writeNextDescriptor(gatt);
             return;
+        }
         if(status != BluetoothGatt.GATT_SUCCESS) {
             onSerialIoError(new IOException("write failed"));
             return;
@@ -396,22 +727,35 @@ class SerialSocket extends BluetoothGattCallback {
             return;
         if(characteristic == writeCharacteristic) { // NOPMD - test object identity
             Log.d(TAG,"write finished, status="+status);
+            linkMetrics.onWriteDone(System.nanoTime());
             writeNext();
         }
     }
 
     private void writeNext() {
+        writeNext(false);
+    }
+
+    /**
+     * @param resume only if queue is blocked, i.e. no write pending
+     */
+    private void writeNext(boolean resume) {
         final byte[] data;
-        synchronized (writeBuffer) {
-            if (!writeBuffer.isEmpty() && delegate.canWrite()) {
-                writePending = true;
-                data = writeBuffer.remove(0);
-            } else {
-                writePending = false;
-                data = null;
-            }
+        long pacerDelay;
+        ArrayList<WriteRequest> finished;
+        synchronized (writeQueue) {
+            if(resume && (canceled || delegate == null || !writeQueue.isBlocked()))
+                return;
+            data = writeQueue.next(delegate.canWrite() && !rssiPending);
+            pacerDelay = writeQueue.getPacerDelay();
+            linkMetrics.setWriteQueueSize(writeQueue.size());
+            finished = writeQueue.pollFinished();
         }
+        notifyFinished(finished);
+        if(pacerDelay > 0)
+            schedulePacedWrite(pacerDelay);
         if(data != null) {
+            linkMetrics.onWriteStart(data.length, System.nanoTime());
             writeCharacteristic.setValue(data);
             if (!gatt.writeCharacteristic(writeCharacteristic)) {
                 onSerialIoError(new IOException("write failed"));
@@ -419,6 +763,14 @@ class SerialSocket extends BluetoothGattCallback {
                 Log.d(TAG,"write started, len="+data.length);
             }
         }
+        WriteListener writeListener = this.writeListener;
+        if(writeListener != null)
+            writeListener.onWriteNext();
+    }
+
+    private void schedulePacedWrite(long delay) {
+        pacerHandler.removeCallbacks(pacerCallback);
+        pacerHandler.postDelayed(pacerCallback, (delay + 999_999) / 1_000_000);
     }
 
     /**
@@ -440,8 +792,19 @@ class SerialSocket extends BluetoothGattCallback {
             listener.onSerialRead(data);
     }
 
+    private static void notifyFinished(ArrayList<WriteRequest> finished) {
+        if(finished != null)
+            for(WriteRequest request : finished)
+                request.notifyFinished();
+    }
+
     private void onSerialIoError(Exception e) {
-        writePending = false;
+        ArrayList<WriteRequest> finished;
+        synchronized (writeQueue) {
+            writeQueue.resetPending();
+            finished = writeQueue.pollFinished();
+        }
+        notifyFinished(finished);
         canceled = true;
         if (listener != null)
             listener.onSerialIoError(e);
@@ -451,29 +814,47 @@ class SerialSocket extends BluetoothGattCallback {
      * device delegates
      */
 
-    private class Cc245XDelegate extends DeviceDelegate {
-        @Override
-        boolean connectCharacteristics(BluetoothGattService gattService) {
-            Log.d(TAG, "service cc254x uart");
-            readCharacteristic = gattService.getCharacteristic(BLUETOOTH_LE_CC254X_CHAR_RW);
-            writeCharacteristic = gattService.getCharacteristic(BLUETOOTH_LE_CC254X_CHAR_RW);
-            return true;
+    /**
+     * declarative delegate, see registerProfile()
+     */
+    private class ProfileDelegate extends DeviceDelegate {
+        private final String profile;
+        private final HashMap<UUID, Channel> channelUuids;
+        private final UUID readUuid;
+        private final UUID[] writeUuids;
+
+        ProfileDelegate(String profile, HashMap<UUID, Channel> channelUuids, UUID readUuid, UUID[] writeUuids) {
+            this.profile = profile;
+            this.channelUuids = channelUuids;
+            this.readUuid = readUuid;
+            this.writeUuids = writeUuids;
         }
-    }
 
-    private class MicrochipDelegate extends DeviceDelegate {
+        @Override
+        String getProfile() { return profile; }
+
         @Override
         boolean connectCharacteristics(BluetoothGattService gattService) {
-            Log.d(TAG, "service microchip uart");
-            readCharacteristic = gattService.getCharacteristic(BLUETOOTH_LE_MICROCHIP_CHAR_RW);
-            writeCharacteristic = gattService.getCharacteristic(BLUETOOTH_LE_MICROCHIP_CHAR_W);
-            if(writeCharacteristic == null)
-                writeCharacteristic = gattService.getCharacteristic(BLUETOOTH_LE_MICROCHIP_CHAR_RW);
+            Log.d(TAG, "service "+profile);
+            readCharacteristic = gattService.getCharacteristic(readUuid);
+            for (UUID writeUuid : writeUuids) {
+                writeCharacteristic = gattService.getCharacteristic(writeUuid);
+                if (writeCharacteristic != null)
+                    break;
+            }
+            for (Map.Entry<UUID, Channel> entry : channelUuids.entrySet()) {
+                BluetoothGattCharacteristic characteristic = gattService.getCharacteristic(entry.getKey());
+                if (characteristic != null)
+                    channels.put(characteristic, entry.getValue());
+            }
             return true;
         }
     }
 
     private class NrfDelegate extends DeviceDelegate {
+        @Override
+        String getProfile() { return "nrf"; }
+
         @Override
         boolean connectCharacteristics(BluetoothGattService gattService) {
             Log.d(TAG, "service nrf uart");
@@ -506,12 +887,17 @@ class SerialSocket extends BluetoothGattCallback {
     private class TelitDelegate extends DeviceDelegate {
         private BluetoothGattCharacteristic readCreditsCharacteristic, writeCreditsCharacteristic;
         private int readCredits, writeCredits;
+        private boolean creditsWritePending;
+
+        @Override
+        String getProfile() { return "telit"; }
 
         @Override
         boolean connectCharacteristics(BluetoothGattService gattService) {
             Log.d(TAG, "service telit tio 2.0");
             readCredits = 0;
             writeCredits = 0;
+            linkMetrics.setCredits(0);
             readCharacteristic = gattService.getCharacteristic(BLUETOOTH_LE_TIO_CHAR_RX);
             writeCharacteristic = gattService.getCharacteristic(BLUETOOTH_LE_TIO_CHAR_TX);
             readCreditsCharacteristic = gattService.getCharacteristic(BLUETOOTH_LE_TIO_CHAR_RX_CREDITS);
@@ -568,8 +954,8 @@ class SerialSocket extends BluetoothGattCallback {
                     readCharacteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
                     writeCharacteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
                     grantReadCredits();
-                    // grantReadCredits includes gatt.writeCharacteristic(writeCreditsCharacteristic)
-                    // but we do not have to wait for confirmation, as it is the last write of connect phase.
+                    // grantReadCredits includes gatt.writeCharacteristic(writeCreditsCharacteristic), further
+                    // CCCD writes and the PSM read wait for its confirmation, see isWritePending()
                 }
             }
         }
@@ -578,12 +964,15 @@ class SerialSocket extends BluetoothGattCallback {
         void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
             if(characteristic == readCreditsCharacteristic) { // NOPMD - test object identity
                 int newCredits = readCreditsCharacteristic.getValue()[0];
-                synchronized (writeBuffer) {
+                boolean blocked;
+                synchronized (writeQueue) {
                     writeCredits += newCredits;
+                    linkMetrics.setCredits(writeCredits);
+                    blocked = writeQueue.isBlocked();
                 }
                 Log.d(TAG, "got write credits +"+newCredits+" ="+writeCredits);
 
-                if (!writePending && !writeBuffer.isEmpty()) {
+                if (blocked) {
                     Log.d(TAG, "resume blocked write");
                     writeNext();
                 }
@@ -597,17 +986,24 @@ class SerialSocket extends BluetoothGattCallback {
         @Override
         void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
             if(characteristic == writeCharacteristic) { // NOPMD - test object identity
-                synchronized (writeBuffer) {
+                synchronized (writeQueue) {
                     if (writeCredits > 0)
                         writeCredits -= 1;
+                    linkMetrics.setCredits(writeCredits);
                 }
                 Log.d(TAG, "write finished, credits=" + writeCredits);
             }
             if(characteristic == writeCreditsCharacteristic) { // NOPMD - test object identity
+                creditsWritePending = false;
                 Log.d(TAG,"write credits finished, status="+status);
             }
         }
 
+        @Override
+        boolean isWritePending() {
+            return creditsWritePending;
+        }
+
         @Override
         boolean canWrite() {
             if(writeCredits > 0)
@@ -620,6 +1016,7 @@ class SerialSocket extends BluetoothGattCallback {
         void disconnect() {
             readCreditsCharacteristic = null;
             writeCreditsCharacteristic = null;
+            creditsWritePending = false;
         }
 
         private void grantReadCredits() {
@@ -638,6 +1035,8 @@ class SerialSocket extends BluetoothGattCallback {
                         onSerialIoError(new IOException("write read credits failed"));
                     else
                         onSerialConnectError(new IOException("write read credits failed"));
+                } else {
+                    creditsWritePending = true;
                 }
             }
         }
@@ -9,36 +9,66 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
+import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
+import android.database.Cursor;
+import android.net.Uri;
+import android.graphics.Typeface;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+import android.provider.OpenableColumns;
 import android.speech.RecognitionListener;
 import android.speech.RecognizerIntent;
 import android.speech.SpeechRecognizer;
 import android.text.Editable;
+import android.text.InputType;
 import android.text.Spannable;
 import android.text.SpannableStringBuilder;
+import android.text.TextUtils;
 import android.text.method.ScrollingMovementMethod;
 import android.text.style.ForegroundColorSpan;
+import android.view.Gravity;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.CheckBox;
+import android.widget.EditText;
 import android.widget.ImageButton;
+import android.widget.LinearLayout;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import androidx.activity.result.ActivityResultLauncher;
+import androidx.activity.result.contract.ActivityResultContracts;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.core.content.FileProvider;
 import androidx.fragment.app.Fragment;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
 
-public class TerminalFragment extends Fragment implements ServiceConnection, SerialListener, RecognitionListener {
+public class TerminalFragment extends Fragment implements ServiceConnection, SerialListener, SerialTransport.ChannelListener, RecognitionListener {
 
     private enum Connected { False, Pending, True }
 
@@ -46,15 +76,32 @@ public class TerminalFragment extends Fragment implements ServiceConnection, Ser
     private SerialService service;
 
     private TextView receiveText;
+    private TextView backlogText;
+    private TextView linkMetricsText;
+    private LinkMetrics linkMetrics; // of previous snapshot
+    private LinkMetrics.Snapshot linkMetricsSnapshot;
+    private final Runnable linkMetricsCallback = this::updateLinkMetrics;
+    private PlotView plotView;
     private TextView sendText;
-    private TextUtil.HexWatcher hexWatcher;
+    private TextViewUtil.HexWatcher hexWatcher;
     private ImageButton micButton;
+    private ActivityResultLauncher<String> sendFileLauncher;
+    private ActivityResultLauncher<String> transferFileLauncher;
+    private AlertDialog sendFileDialog;
+    private Uri resumeTransferUri; // transfer interrupted by connection loss, resumed on reconnect
+
+    private static final int MAX_SEARCH_HITS = 1000;
+    private static final String SCRIPTS_PREFERENCES = "scripts";
+    private static final int DEFAULT_PACING_BUFFER_SIZE = 64; // SoftwareSerial
 
     private Connected connected = Connected.False;
     private boolean initialStart = true;
     private boolean hexEnabled = false;
-    private boolean pendingNewline = false;
+    private boolean dropStaleCommands = false;
     private String newline = TextUtil.newline_crlf;
+    private final TextDecoder textDecoder = new TextDecoder();
+    private final TextDecoder[] channelDecoders = new TextDecoder[SerialTransport.Channel.values().length];
+    private final StringBuilder[] channelLines = new StringBuilder[SerialTransport.Channel.values().length]; // incomplete line
     
     // Speech recognition fields
     private SpeechRecognizer speechRecognizer;
@@ -62,6 +109,8 @@ public class TerminalFragment extends Fragment implements ServiceConnection, Ser
     private boolean isListening = false;
     private boolean autoSendSpeech = true;
     private static final int SPEECH_REQUEST_CODE = 100;
+    private static final long STALE_COMMAND_TIMEOUT = 5000; // ms
+    private static final long LINK_METRICS_INTERVAL = 1000; // ms
 
     /*
      * Lifecycle
@@ -72,6 +121,9 @@ public class TerminalFragment extends Fragment implements ServiceConnection, Ser
         setHasOptionsMenu(true);
         setRetainInstance(true);
         deviceAddress = getArguments().getString("device");
+        textDecoder.setCrLf(newline.equals(TextUtil.newline_crlf));
+        sendFileLauncher = registerForActivityResult(new ActivityResultContracts.GetContent(), uri -> sendFile(uri, false));
+        transferFileLauncher = registerForActivityResult(new ActivityResultContracts.GetContent(), uri -> sendFile(uri, true));
         
         // Speech recognition will be initialized lazily when first needed
         // This prevents interference with Bluetooth connection process
@@ -94,16 +146,22 @@ public class TerminalFragment extends Fragment implements ServiceConnection, Ser
     @Override
     public void onStart() {
         super.onStart();
-        if(service != null)
-            service.attach(this);
-        else
+        if(service != null) {
+            service.attach(this, this);
+            service.setBackpressureListener(this::onBackpressure);
+        } else
             getActivity().startService(new Intent(getActivity(), SerialService.class)); // prevents service destroy on unbind from recreated activity caused by orientation change
+        updateLinkMetrics();
     }
 
     @Override
     public void onStop() {
-        if(service != null && !getActivity().isChangingConfigurations())
+        if(linkMetricsText != null)
+            linkMetricsText.removeCallbacks(linkMetricsCallback);
+        if(service != null && !getActivity().isChangingConfigurations()) {
             service.detach();
+            service.setBackpressureListener(null);
+        }
         super.onStop();
     }
 
@@ -132,7 +190,10 @@ public class TerminalFragment extends Fragment implements ServiceConnection, Ser
     @Override
     public void onServiceConnected(ComponentName name, IBinder binder) {
         service = ((SerialService.SerialBinder) binder).getService();
-        service.attach(this);
+        service.attach(this, this);
+        service.setBackpressureListener(this::onBackpressure);
+        if(plotView != null)
+            plotView.setTelemetry(service.getTelemetry());
         if(initialStart && isResumed()) {
             initialStart = false;
             getActivity().runOnUiThread(this::connect);
@@ -153,9 +214,14 @@ public class TerminalFragment extends Fragment implements ServiceConnection, Ser
         receiveText = view.findViewById(R.id.receive_text);                          // TextView performance decreases with number of spans
         receiveText.setTextColor(getResources().getColor(R.color.colorRecieveText)); // set as default color to reduce number of spans
         receiveText.setMovementMethod(ScrollingMovementMethod.getInstance());
+        backlogText = view.findViewById(R.id.backlog_text);
+        linkMetricsText = view.findViewById(R.id.link_metrics_text);
+        plotView = view.findViewById(R.id.plot_view);
+        if(service != null)
+            plotView.setTelemetry(service.getTelemetry());
 
         sendText = view.findViewById(R.id.send_text);
-        hexWatcher = new TextUtil.HexWatcher(sendText);
+        hexWatcher = new TextViewUtil.HexWatcher(sendText);
         hexWatcher.enable(hexEnabled);
         sendText.addTextChangedListener(hexWatcher);
         sendText.setHint(hexEnabled ? "HEX mode" : "");
@@ -180,7 +246,15 @@ public class TerminalFragment extends Fragment implements ServiceConnection, Ser
 
     public void onPrepareOptionsMenu(@NonNull Menu menu) {
         menu.findItem(R.id.hex).setChecked(hexEnabled);
+        menu.findItem(R.id.dropStaleCommands).setChecked(dropStaleCommands);
+        menu.findItem(R.id.plot).setChecked(plotView != null && plotView.getVisibility() == View.VISIBLE);
+        menu.findItem(R.id.linkMetrics).setChecked(linkMetricsText != null && linkMetricsText.getVisibility() == View.VISIBLE);
+        menu.findItem(R.id.l2cap).setVisible(Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q && !DeviceSimulator.ADDRESS.equals(deviceAddress));
+        menu.findItem(R.id.l2cap).setChecked(DeviceCache.get(getActivity()).isL2capEnabled(deviceAddress));
         menu.findItem(R.id.autoSendSpeech).setChecked(autoSendSpeech);
+        menu.findItem(R.id.sendFile).setEnabled(connected == Connected.True);
+        menu.findItem(R.id.transferFile).setEnabled(connected == Connected.True);
+        menu.findItem(R.id.scripts).setTitle(service != null && service.isScriptRunning() ? "Stop script" : "Scripts");
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
             menu.findItem(R.id.backgroundNotification).setChecked(service != null && service.areNotificationsEnabled());
         } else {
@@ -195,6 +269,24 @@ public class TerminalFragment extends Fragment implements ServiceConnection, Ser
         if (id == R.id.clear) {
             receiveText.setText("");
             return true;
+        } else if (id == R.id.search) {
+            showSearchDialog();
+            return true;
+        } else if (id == R.id.sendFile) {
+            sendFileLauncher.launch("*/*");
+            return true;
+        } else if (id == R.id.transferFile) {
+            transferFileLauncher.launch("*/*");
+            return true;
+        } else if (id == R.id.scripts) {
+            if (service != null && service.isScriptRunning())
+                service.stopScript();
+            else
+                showScriptsDialog();
+            return true;
+        } else if (id == R.id.export) {
+            showExportDialog();
+            return true;
         } else if (id == R.id.newline) {
             String[] newlineNames = getResources().getStringArray(R.array.newline_names);
             String[] newlineValues = getResources().getStringArray(R.array.newline_values);
@@ -203,17 +295,47 @@ public class TerminalFragment extends Fragment implements ServiceConnection, Ser
             builder.setTitle("Newline");
             builder.setSingleChoiceItems(newlineNames, pos, (dialog, item1) -> {
                 newline = newlineValues[item1];
+                textDecoder.setCrLf(newline.equals(TextUtil.newline_crlf));
                 dialog.dismiss();
             });
             builder.create().show();
             return true;
         } else if (id == R.id.hex) {
             hexEnabled = !hexEnabled;
+            textDecoder.reset();
+            resetChannelLines();
             sendText.setText("");
             hexWatcher.enable(hexEnabled);
             sendText.setHint(hexEnabled ? "HEX mode" : "");
             item.setChecked(hexEnabled);
             return true;
+        } else if (id == R.id.plot) {
+            boolean visible = plotView.getVisibility() != View.VISIBLE;
+            plotView.setVisibility(visible ? View.VISIBLE : View.GONE);
+            item.setChecked(visible);
+            return true;
+        } else if (id == R.id.linkMetrics) {
+            boolean visible = linkMetricsText.getVisibility() != View.VISIBLE;
+            linkMetricsText.setVisibility(visible ? View.VISIBLE : View.GONE);
+            item.setChecked(visible);
+            linkMetricsText.removeCallbacks(linkMetricsCallback);
+            if(visible)
+                updateLinkMetrics();
+            return true;
+        } else if (id == R.id.writePacing) {
+            showWritePacingDialog();
+            return true;
+        } else if (id == R.id.commandStatistics) {
+            CommandCorrelator correlator = service != null ? service.getCommandCorrelator() : null;
+            AlertDialog.Builder builder = new AlertDialog.Builder(getActivity());
+            builder.setTitle("Command statistics");
+            builder.setMessage(correlator != null
+                    ? correlator.getSummary() + "\nwrite queue\n" + service.getWriteQueueSummary()
+                            + "\nconnection priority\n" + service.getConnectionPrioritySummary()
+                    : "not connected");
+            builder.setPositiveButton(android.R.string.ok, null);
+            builder.create().show();
+            return true;
         } else if (id == R.id.backgroundNotification) {
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
                 if (!service.areNotificationsEnabled() && Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
@@ -223,6 +345,17 @@ public class TerminalFragment extends Fragment implements ServiceConnection, Ser
                 }
             }
             return true;
+        } else if (id == R.id.l2cap) {
+            boolean enabled = !item.isChecked();
+            DeviceCache.get(getActivity()).setL2capEnabled(deviceAddress, enabled);
+            item.setChecked(enabled);
+            if(connected != Connected.False)
+                status("high throughput mode " + (enabled ? "enabled" : "disabled") + " on next connect");
+            return true;
+        } else if (id == R.id.dropStaleCommands) {
+            dropStaleCommands = !dropStaleCommands;
+            item.setChecked(dropStaleCommands);
+            return true;
         } else if (id == R.id.autoSendSpeech) {
             autoSendSpeech = !autoSendSpeech;
             item.setChecked(autoSendSpeech);
@@ -237,12 +370,21 @@ public class TerminalFragment extends Fragment implements ServiceConnection, Ser
      */
     private void connect() {
         try {
-            BluetoothAdapter bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
-            BluetoothDevice device = bluetoothAdapter.getRemoteDevice(deviceAddress);
+            SerialTransport socket;
+            if(DeviceSimulator.ADDRESS.equals(deviceAddress)) {
+                socket = new DeviceSimulator();
+            } else {
+                BluetoothAdapter bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+                BluetoothDevice device = bluetoothAdapter.getRemoteDevice(deviceAddress);
+                if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q && DeviceCache.get(getActivity()).isL2capEnabled(deviceAddress))
+                    socket = new L2capSocket(getActivity().getApplicationContext(), device);
+                else
+                    socket = new SerialSocket(getActivity().getApplicationContext(), device);
+            }
             status("connecting...");
             connected = Connected.Pending;
-            SerialSocket socket = new SerialSocket(getActivity().getApplicationContext(), device);
             service.connect(socket);
+            service.setWritePacer(DeviceCache.get(getActivity()).getWritePacer(deviceAddress));
         } catch (Exception e) {
             onSerialConnectError(e);
         }
@@ -259,22 +401,36 @@ public class TerminalFragment extends Fragment implements ServiceConnection, Ser
             return;
         }
         try {
-            String msg;
+            CharSequence msg;
             byte[] data;
             if(hexEnabled) {
-                StringBuilder sb = new StringBuilder();
-                TextUtil.toHexString(sb, TextUtil.fromHexString(str));
-                TextUtil.toHexString(sb, newline.getBytes());
-                msg = sb.toString();
-                data = TextUtil.fromHexString(msg);
+                // parse directly into write buffer, echo is created from the same bytes
+                byte[] newlineBytes = newline.getBytes();
+                int length = TextUtil.hexLength(str);
+                data = new byte[length + newlineBytes.length];
+                TextUtil.fromHexString(str, data, 0);
+                System.arraycopy(newlineBytes, 0, data, length, newlineBytes.length);
+                StringBuilder sb = new StringBuilder(3 * data.length);
+                TextUtil.toHexString(sb, data);
+                msg = sb.append('\n');
             } else {
-                msg = str;
+                msg = str + '\n';
                 data = (str + newline).getBytes();
             }
-            SpannableStringBuilder spn = new SpannableStringBuilder(msg + '\n');
+            SpannableStringBuilder spn = new SpannableStringBuilder(msg);
             spn.setSpan(new ForegroundColorSpan(getResources().getColor(R.color.colorSendText)), 0, spn.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
             receiveText.append(spn);
-            service.write(data);
+            WriteRequest request = new WriteRequest(data, WriteQueue.Priority.High); // e.g. stop command while a file is sent
+            if(dropStaleCommands && !hexEnabled) {
+                // commands differing only in their value, e.g. LED ON and led off, replace each other
+                request.setTimeout(STALE_COMMAND_TIMEOUT)
+                        .setSupersedeKey(WriteRequest.commandKey(str))
+                        .setListener((r, reason) -> {
+                            if(reason != null)
+                                status("'" + str + "' not sent: " + reason.name().toLowerCase(Locale.US));
+                        });
+            }
+            service.write(request, WriteGate.Backpressure.Signal);
         } catch (Exception e) {
             onSerialIoError(e);
         }
@@ -286,28 +442,435 @@ public class TerminalFragment extends Fragment implements ServiceConnection, Ser
             if (hexEnabled) {
                 spn.append(TextUtil.toHexString(data)).append('\n');
             } else {
-                String msg = new String(data);
-                if (newline.equals(TextUtil.newline_crlf) && msg.length() > 0) {
-                    // don't show CR as ^M if directly before LF
-                    msg = msg.replace(TextUtil.newline_crlf, TextUtil.newline_lf);
-                    // special handling if CR and LF come in separate fragments
-                    if (pendingNewline && msg.charAt(0) == '\n') {
-                        if(spn.length() >= 2) {
-                            spn.delete(spn.length() - 2, spn.length());
-                        } else {
-                            Editable edt = receiveText.getEditableText();
-                            if (edt != null && edt.length() >= 2)
-                                edt.delete(edt.length() - 2, edt.length());
-                        }
-                    }
-                    pendingNewline = msg.charAt(msg.length() - 1) == '\r';
-                }
-                spn.append(TextUtil.toCaretString(msg, newline.length() != 0));
+                spn.append(TextViewUtil.toCaretString(textDecoder.decode(data), newline.length() != 0));
             }
         }
         receiveText.append(spn);
     }
 
+    /**
+     * baud rate and receive buffer of the device behind the BLE module, e.g. 9600 and 64 for
+     * an Arduino with SoftwareSerial. Writes are paced to this rate to avoid buffer overruns.
+     * If the device replies to each line, writes also wait for replies while it is busy
+     */
+    private void showWritePacingDialog() {
+        WritePacer pacer = DeviceCache.get(getActivity()).getWritePacer(deviceAddress);
+        LinearLayout layout = new LinearLayout(getActivity());
+        layout.setOrientation(LinearLayout.VERTICAL);
+        EditText baudRateText = new EditText(getActivity());
+        baudRateText.setSingleLine(true);
+        baudRateText.setInputType(InputType.TYPE_CLASS_NUMBER);
+        baudRateText.setHint("baud rate, empty for no pacing");
+        EditText bufferSizeText = new EditText(getActivity());
+        bufferSizeText.setSingleLine(true);
+        bufferSizeText.setInputType(InputType.TYPE_CLASS_NUMBER);
+        bufferSizeText.setHint("receive buffer size");
+        bufferSizeText.setText(String.valueOf(pacer != null ? pacer.getBufferSize() : DEFAULT_PACING_BUFFER_SIZE));
+        if(pacer != null)
+            baudRateText.setText(String.valueOf(pacer.getBaudRate()));
+        CheckBox repliesCheck = new CheckBox(getActivity());
+        repliesCheck.setText("device replies to each line");
+        repliesCheck.setChecked(pacer != null && pacer.hasReplies());
+        layout.addView(baudRateText);
+        layout.addView(bufferSizeText);
+        layout.addView(repliesCheck);
+        AlertDialog.Builder builder = new AlertDialog.Builder(getActivity());
+        builder.setTitle("Write pacing");
+        builder.setView(layout);
+        builder.setPositiveButton(android.R.string.ok, (dialog, which) -> {
+            int baudRate, bufferSize;
+            try {
+                baudRate = baudRateText.length() > 0 ? Integer.parseInt(baudRateText.getText().toString()) : 0;
+                bufferSize = Integer.parseInt(bufferSizeText.getText().toString());
+            } catch (NumberFormatException e) {
+                Toast.makeText(getActivity(), "invalid number", Toast.LENGTH_SHORT).show();
+                return;
+            }
+            if(baudRate > 0 && bufferSize <= 0) {
+                Toast.makeText(getActivity(), "invalid buffer size", Toast.LENGTH_SHORT).show();
+                return;
+            }
+            DeviceCache deviceCache = DeviceCache.get(getActivity());
+            deviceCache.setWritePacing(deviceAddress, baudRate, bufferSize, repliesCheck.isChecked());
+            if(service != null)
+                service.setWritePacer(deviceCache.getWritePacer(deviceAddress));
+        });
+        builder.setNegativeButton(android.R.string.cancel, null);
+        builder.create().show();
+    }
+
+    /**
+     * search received data of session, as text or HEX byte pattern
+     */
+    private void showSearchDialog() {
+        if(service == null)
+            return;
+        ScrollbackIndex scrollback = service.getScrollback();
+        LinearLayout layout = new LinearLayout(getActivity());
+        layout.setOrientation(LinearLayout.VERTICAL);
+        EditText patternText = new EditText(getActivity());
+        patternText.setSingleLine(true);
+        patternText.setHint(hexEnabled ? "HEX bytes" : "text, ignoring case");
+        CheckBox hexCheck = new CheckBox(getActivity());
+        hexCheck.setText("HEX");
+        hexCheck.setChecked(hexEnabled);
+        TextViewUtil.HexWatcher patternWatcher = new TextViewUtil.HexWatcher(patternText);
+        patternWatcher.enable(hexEnabled);
+        patternText.addTextChangedListener(patternWatcher);
+        hexCheck.setOnCheckedChangeListener((v, checked) -> {
+            patternText.setText("");
+            patternWatcher.enable(checked);
+            patternText.setHint(checked ? "HEX bytes" : "text, ignoring case");
+        });
+        layout.addView(patternText);
+        layout.addView(hexCheck);
+        AlertDialog.Builder builder = new AlertDialog.Builder(getActivity());
+        builder.setTitle("Search");
+        builder.setView(layout);
+        builder.setPositiveButton("Search", (dialog, which) -> {
+            boolean hex = hexCheck.isChecked();
+            String str = patternText.getText().toString();
+            byte[] pattern = hex ? TextUtil.fromHexString(str) : str.getBytes();
+            if(pattern.length == 0)
+                return;
+            new Thread(() -> {
+                ArrayList<ScrollbackIndex.Hit> hits = scrollback.search(pattern, !hex, MAX_SEARCH_HITS);
+                if(getActivity() != null)
+                    getActivity().runOnUiThread(() -> showSearchResult(str, hex, hits, scrollback.getSize()));
+            }, "search").start();
+        });
+        builder.setNegativeButton(android.R.string.cancel, null);
+        builder.create().show();
+    }
+
+    private void showSearchResult(String pattern, boolean hex, ArrayList<ScrollbackIndex.Hit> hits, long size) {
+        if(!isAdded())
+            return;
+        CharSequence[] items = new CharSequence[hits.size()];
+        for(int i = 0; i < hits.size(); i++) {
+            ScrollbackIndex.Hit hit = hits.get(i);
+            CharSequence context = hex ? TextUtil.toHexString(hit.context)
+                                       : TextViewUtil.toCaretString(new String(hit.context), false);
+            items[i] = new SpannableStringBuilder("line " + (hit.line + 1) + ": ").append(context);
+        }
+        AlertDialog.Builder builder = new AlertDialog.Builder(getActivity());
+        if(hits.size() >= MAX_SEARCH_HITS)
+            builder.setTitle("'" + pattern + "': first " + hits.size() + " matches");
+        else
+            builder.setTitle("'" + pattern + "': " + hits.size() + " matches");
+        if(hits.isEmpty())
+            builder.setMessage("not found in " + size / 1024 + " kB received data");
+        else
+            builder.setItems(items, null);
+        builder.setPositiveButton(android.R.string.ok, null);
+        builder.create().show();
+    }
+
+    /*
+     * File send, progress is shown in a dialog that allows to cancel
+     *   - plain send streams the file as is
+     *   - transfer uses TransferProtocol, which needs a receiver on the device and resumes after reconnect
+     */
+    private void sendFile(Uri uri, boolean transfer) {
+        if(uri == null || service == null)
+            return;
+        if(connected != Connected.True) {
+            Toast.makeText(getActivity(), "not connected", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        String title = transfer ? "Transfer file" : "Send file";
+        ParcelFileDescriptor fd = null;
+        FileChannel channel = null; // owned by service once sending started
+        try {
+            fd = getActivity().getContentResolver().openFileDescriptor(uri, "r");
+            if(fd == null)
+                throw new IOException("cannot open " + uri);
+            long size = fd.getStatSize();
+            channel = new ParcelFileDescriptor.AutoCloseInputStream(fd).getChannel();
+            FileSender.Listener listener = new FileSender.Listener() {
+                @Override
+                public void onFileProgress(long sent, long size, long bytesPerSecond) {
+                    if(sendFileDialog != null)
+                        sendFileDialog.setMessage(sendFileProgress(sent, size, bytesPerSecond));
+                }
+
+                @Override
+                public void onFileFinished(long sent, long size, Exception e) {
+                    if(sendFileDialog != null)
+                        sendFileDialog.dismiss();
+                    sendFileDialog = null;
+                    if(transfer && e != null && !(e instanceof InterruptedIOException))
+                        resumeTransferUri = uri;
+                    if(!isAdded())
+                        return;
+                    if(e instanceof InterruptedIOException)
+                        status(title + " canceled after " + sent + " bytes");
+                    else if(e != null)
+                        status(title + " failed after " + sent + " bytes: " + e.getMessage());
+                    else
+                        status(title + " completed, " + sent + " bytes");
+                }
+            };
+            if(transfer)
+                service.transferFile(channel, getDisplayName(uri), listener);
+            else
+                service.sendFile(channel, size, listener);
+            fd = null;
+            channel = null;
+            AlertDialog.Builder builder = new AlertDialog.Builder(getActivity());
+            builder.setTitle(title);
+            builder.setMessage(sendFileProgress(0, size, 0));
+            builder.setCancelable(false);
+            builder.setNegativeButton(android.R.string.cancel, (dialog, which) -> {
+                if(service != null)
+                    service.cancelSendFile();
+            });
+            sendFileDialog = builder.create();
+            sendFileDialog.show();
+        } catch (IOException | IllegalStateException e) {
+            try {
+                if(channel != null)
+                    channel.close(); // also closes fd
+                else if(fd != null)
+                    fd.close();
+            } catch (IOException ignored) {
+            }
+            status(title + " failed: " + e.getMessage());
+        }
+    }
+
+    private String getDisplayName(Uri uri) {
+        try (Cursor cursor = getActivity().getContentResolver().query(uri, new String[]{OpenableColumns.DISPLAY_NAME}, null, null, null)) {
+            if(cursor != null && cursor.moveToFirst() && cursor.getString(0) != null)
+                return cursor.getString(0);
+        }
+        return uri.getLastPathSegment() != null ? uri.getLastPathSegment() : "file";
+    }
+
+    private static String sendFileProgress(long sent, long size, long bytesPerSecond) {
+        String progress = size >= 0 ? sent / 1024 + " of " + size / 1024 + " kB" : sent / 1024 + " kB";
+        return progress + "\n" + bytesPerSecond + " bytes/s";
+    }
+
+    /*
+     * Scripts, stored by name in SharedPreferences, run on script thread of service
+     */
+    private SharedPreferences getScripts() {
+        return getActivity().getSharedPreferences(SCRIPTS_PREFERENCES, Context.MODE_PRIVATE);
+    }
+
+    private void showScriptsDialog() {
+        ArrayList<String> names = new ArrayList<>(getScripts().getAll().keySet());
+        Collections.sort(names, String.CASE_INSENSITIVE_ORDER);
+        names.add("New script...");
+        AlertDialog.Builder builder = new AlertDialog.Builder(getActivity());
+        builder.setTitle("Scripts");
+        builder.setItems(names.toArray(new String[0]), (dialog, which) ->
+                showScriptDialog(which < names.size() - 1 ? names.get(which) : null));
+        builder.create().show();
+    }
+
+    private void showScriptDialog(@Nullable String name) {
+        LinearLayout layout = new LinearLayout(getActivity());
+        layout.setOrientation(LinearLayout.VERTICAL);
+        EditText nameText = new EditText(getActivity());
+        nameText.setSingleLine(true);
+        nameText.setHint("name, also used as voice command");
+        nameText.setText(name);
+        EditText scriptText = new EditText(getActivity());
+        scriptText.setHint("send fan on\nwait 500\nloop 3\n  send led on\n  expect OK 1000\n  wait 200\n  send led off\nend");
+        scriptText.setHorizontallyScrolling(true);
+        scriptText.setMinLines(8);
+        scriptText.setGravity(Gravity.TOP);
+        scriptText.setTypeface(Typeface.MONOSPACE);
+        if (name != null)
+            scriptText.setText(getScripts().getString(name, ""));
+        layout.addView(nameText);
+        layout.addView(scriptText);
+        AlertDialog.Builder builder = new AlertDialog.Builder(getActivity());
+        builder.setTitle(name != null ? name : "New script");
+        builder.setView(layout);
+        builder.setPositiveButton("Run", (dialog, which) -> {
+            String newName = nameText.getText().toString().trim();
+            String text = scriptText.getText().toString();
+            SharedPreferences.Editor editor = getScripts().edit();
+            if (name != null && !name.equals(newName))
+                editor.remove(name);
+            if (!newName.isEmpty())
+                editor.putString(newName, text);
+            editor.apply();
+            runScript(newName.isEmpty() ? "script" : newName, text);
+        });
+        if (name != null)
+            builder.setNeutralButton("Delete", (dialog, which) -> getScripts().edit().remove(name).apply());
+        builder.setNegativeButton(android.R.string.cancel, null);
+        builder.create().show();
+    }
+
+    private void runScript(String name, String text) {
+        if(connected != Connected.True) {
+            Toast.makeText(getActivity(), "not connected", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        ScriptEngine.Script script;
+        try {
+            script = ScriptEngine.parse(name, text);
+        } catch (ParseException e) {
+            status("script '" + name + "': " + e.getMessage());
+            return;
+        }
+        try {
+            service.runScript(script, newline.getBytes(), this::onScriptFinished);
+            status("script '" + name + "' started");
+        } catch (IllegalStateException e) {
+            status("script '" + name + "' not started, other script running");
+        }
+    }
+
+    private void onScriptFinished(ScriptEngine.Script script, Exception e) {
+        if (!isAdded())
+            return;
+        if (e != null)
+            status("script '" + script.name + "' failed: " + e.getMessage());
+        else
+            status("script '" + script.name + "' finished");
+    }
+
+    /**
+     * @return true if text is the name of a saved script
+     */
+    private boolean runScriptByName(String text) {
+        for (Map.Entry<String, ?> entry : getScripts().getAll().entrySet()) {
+            if (entry.getKey().equalsIgnoreCase(text.trim()) && entry.getValue() instanceof String) {
+                runScript(entry.getKey(), (String) entry.getValue());
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * export to cache dir on background thread, then share via FileProvider
+     */
+    private void showExportDialog() {
+        if(service == null)
+            return;
+        ScrollbackIndex scrollback = service.getScrollback();
+        String[] names = {"Session raw", "Session HEX dump", "Session CSV with timestamps", "Session text", "Scrollback text"};
+        SessionExporter.Format[] formats = {SessionExporter.Format.Raw, SessionExporter.Format.HexDump,
+                SessionExporter.Format.Csv, SessionExporter.Format.Text, SessionExporter.Format.Text};
+        AlertDialog.Builder builder = new AlertDialog.Builder(getActivity());
+        builder.setTitle("Export");
+        builder.setItems(names, (dialog, which) -> {
+            SessionExporter.Format format = formats[which];
+            boolean exportScrollback = which == names.length - 1;
+            Editable scrollbackText = exportScrollback ? receiveText.getEditableText() : null; // null before first append
+            if(exportScrollback && (scrollbackText == null || scrollbackText.length() == 0)) {
+                Toast.makeText(getActivity(), "scrollback is empty", Toast.LENGTH_SHORT).show();
+                return;
+            }
+            int scrollbackLength = exportScrollback ? scrollbackText.length() : 0;
+            String name = (exportScrollback ? "scrollback" : "session") + "_"
+                    + new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date()) + "." + format.extension;
+            File dir = new File(getActivity().getCacheDir(), "export");
+            Context context = getActivity().getApplicationContext();
+            new Thread(() -> {
+                File file = new File(dir, name);
+                IOException error = null;
+                try {
+                    if(!dir.isDirectory() && !dir.mkdirs())
+                        throw new IOException("cannot create " + dir);
+                    try (FileOutputStream stream = new FileOutputStream(file)) {
+                        SessionExporter exporter = new SessionExporter(stream.getChannel());
+                        if(exportScrollback)
+                            exporter.exportText(scrollbackLength, (offset, chars) -> getChars(scrollbackText, offset, chars));
+                        else
+                            exporter.exportSession(scrollback, format);
+                    }
+                } catch (IOException e) {
+                    error = e;
+                    file.delete();
+                }
+                IOException exportError = error;
+                if(getActivity() != null)
+                    getActivity().runOnUiThread(() -> {
+                        if(exportError != null)
+                            Toast.makeText(context, "export failed: " + exportError.getMessage(), Toast.LENGTH_LONG).show();
+                        else if(isAdded())
+                            shareFile(file, format.mimeType);
+                    });
+            }, "export").start();
+        });
+        builder.create().show();
+    }
+
+    /**
+     * receiveText is modified in UI thread, so the export thread gets chunks copied there.
+     * Text is only appended, or replaced by a new Editable on clear, so offsets stay valid
+     */
+    private static int getChars(Editable editable, int offset, char[] chars) throws IOException {
+        int[] count = new int[1];
+        CountDownLatch done = new CountDownLatch(1);
+        new Handler(Looper.getMainLooper()).post(() -> {
+            count[0] = Math.min(chars.length, editable.length() - offset);
+            TextUtils.getChars(editable, offset, offset + count[0], chars, 0);
+            done.countDown();
+        });
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("export interrupted");
+        }
+        return count[0];
+    }
+
+    private void shareFile(File file, String mimeType) {
+        Uri uri = FileProvider.getUriForFile(getActivity(), Constants.FILE_PROVIDER_AUTHORITY, file);
+        Intent intent = new Intent(Intent.ACTION_SEND);
+        intent.setType(mimeType);
+        intent.putExtra(Intent.EXTRA_STREAM, uri);
+        intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        startActivity(Intent.createChooser(intent, file.getName()));
+    }
+
+    /**
+     * refreshed at LINK_METRICS_INTERVAL from a snapshot, which takes no locks in the pipeline
+     */
+    private void updateLinkMetrics() {
+        if(linkMetricsText == null || linkMetricsText.getVisibility() != View.VISIBLE)
+            return;
+        LinkMetrics metrics = service != null ? service.getLinkMetrics() : null;
+        if(metrics != null) {
+            LinkMetrics.Snapshot snapshot = metrics.snapshot();
+            linkMetricsText.setText(snapshot.format(metrics == linkMetrics ? linkMetricsSnapshot : null));
+            linkMetricsSnapshot = snapshot;
+            service.requestRssi(); // shown with next refresh
+        } else {
+            linkMetricsText.setText("not connected");
+            linkMetricsSnapshot = null;
+        }
+        linkMetrics = metrics;
+        linkMetricsText.postDelayed(linkMetricsCallback, LINK_METRICS_INTERVAL);
+    }
+
+    /**
+     * shown while data is received faster than receiveText can render
+     */
+    private void updateBacklog() {
+        int backlog = service != null ? service.getReadBacklog() : 0;
+        if (backlog > 0) {
+            backlogText.setText("backlog " + (backlog + 1023) / 1024 + " kB");
+            backlogText.setVisibility(View.VISIBLE);
+        } else if (backlogText.getVisibility() != View.GONE) {
+            backlogText.setVisibility(View.GONE);
+        }
+    }
+
+    private void onBackpressure(boolean full) {
+        if(full)
+            status("write queue full, device is not keeping up");
+    }
+
     private void status(String str) {
         SpannableStringBuilder spn = new SpannableStringBuilder(str + '\n');
         spn.setSpan(new ForegroundColorSpan(getResources().getColor(R.color.colorStatusText)), 0, spn.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
@@ -346,7 +909,15 @@ public class TerminalFragment extends Fragment implements ServiceConnection, Ser
     public void onSerialConnect() {
         status("connected");
         connected = Connected.True;
+        textDecoder.reset();
+        resetChannelLines();
         updateMicButtonAvailability();
+        if(resumeTransferUri != null) {
+            Uri uri = resumeTransferUri;
+            resumeTransferUri = null;
+            status("resuming transfer");
+            sendFile(uri, true);
+        }
     }
 
     @Override
@@ -366,6 +937,50 @@ public class TerminalFragment extends Fragment implements ServiceConnection, Ser
 
     public void onSerialRead(ArrayDeque<byte[]> datas) {
         receive(datas);
+        updateBacklog();
+    }
+
+    /**
+     * ChannelListener, e.g. log and command acknowledgments. Shown as complete lines with channel
+     * tag and color, so they are not mistaken for Data and do not split Data lines in between
+     */
+    @Override
+    public void onChannelRead(SerialTransport.Channel channel, byte[] data) {
+        String tag = "[" + channel.name().toLowerCase(Locale.US) + "] ";
+        SpannableStringBuilder spn = new SpannableStringBuilder();
+        if (hexEnabled) {
+            spn.append(tag).append(TextUtil.toHexString(data)).append('\n');
+        } else {
+            int i = channel.ordinal();
+            if (channelDecoders[i] == null) {
+                channelDecoders[i] = new TextDecoder();
+                channelLines[i] = new StringBuilder();
+            }
+            channelDecoders[i].setCrLf(newline.equals(TextUtil.newline_crlf));
+            StringBuilder line = channelLines[i];
+            line.append(channelDecoders[i].decode(data));
+            int end;
+            while ((end = line.indexOf("\n")) >= 0) {
+                spn.append(tag).append(TextViewUtil.toCaretString(line.subSequence(0, end + 1), true));
+                line.delete(0, end + 1);
+            }
+        }
+        if (spn.length() == 0)
+            return;
+        CharSequence text = receiveText.getText();
+        if (text.length() > 0 && text.charAt(text.length() - 1) != '\n')
+            spn.insert(0, "\n"); // Data line in progress
+        spn.setSpan(new ForegroundColorSpan(getResources().getColor(R.color.colorChannelText)), 0, spn.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+        receiveText.append(spn);
+    }
+
+    private void resetChannelLines() {
+        for (int i = 0; i < channelDecoders.length; i++) {
+            if (channelDecoders[i] != null) {
+                channelDecoders[i].reset();
+                channelLines[i].setLength(0);
+            }
+        }
     }
 
     @Override
@@ -436,6 +1051,8 @@ public class TerminalFragment extends Fragment implements ServiceConnection, Ser
         if (speechRecognizer != null && speechIntent != null) {
             try {
                 speechRecognizer.startListening(speechIntent);
+                if(service != null)
+                    service.onCommandExpected(); // connection priority is raised until speech is recognized
                 isListening = true;
                 updateMicButtonState();
                 status("Listening... Speak now.");
@@ -478,6 +1095,8 @@ public class TerminalFragment extends Fragment implements ServiceConnection, Ser
 
     @Override
     public void onBeginningOfSpeech() {
+        if(service != null)
+            service.onCommandExpected();
         status("Speech detected, processing...");
     }
 
@@ -553,6 +1172,8 @@ public class TerminalFragment extends Fragment implements ServiceConnection, Ser
             if (matches != null && !matches.isEmpty()) {
                 String recognizedText = matches.get(0);
                 status("Recognized: " + recognizedText);
+                if (runScriptByName(recognizedText))
+                    return;
                 
                 // Set the recognized text in the send field
                 sendText.setText(recognizedText);
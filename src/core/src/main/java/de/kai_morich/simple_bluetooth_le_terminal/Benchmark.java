@@ -0,0 +1,383 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * push synthetic receive and send streams through the serial pipeline and report throughput
+ *
+ * usage: Benchmark [megabytes per stage, default 64] [chunk size, default 244]
+ *   e.g. ./gradlew :core:run --args="128 20"
+ *
+ * each stage runs once for warm up, then measured. Chunks look like BLE notifications
+ * of sensor output, i.e. text lines with numbers split at arbitrary positions
+ *
+ * usage: Benchmark simulator [commands, default 50] [interval ms, default 0 = back to back] [pacing baud rate]
+ *   sends commands to DeviceSimulator and reports round trip times and bytes dropped by overload.
+ *   Commands are tagged with a sequence number, so replies are matched also if commands are dropped.
+ *   Pacing uses the replies as credits, as the sketch stops reading while busy
+ *
+ * usage: Benchmark stream [megabytes, default 16] [payload size, default 2048]
+ *   writes through StreamTransport into piped streams looped back to its read thread,
+ *   as stand-in for an L2CAP channel
+ */
+class Benchmark {
+
+    private static final int WRITE_PAYLOAD_SIZE = 20; // default MTU
+    private static final int READ_SLICE_SIZE = 2048;
+    private static final int STREAM_MESSAGE_SIZE = 1024;
+    private static final int STREAM_QUEUE_CAPACITY = 64;
+
+    private interface Stage {
+        void run(byte[][] chunks) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("simulator")) {
+            simulator(args.length > 1 ? Integer.parseInt(args[1]) : 50, args.length > 2 ? Integer.parseInt(args[2]) : 0,
+                    args.length > 3 ? Integer.parseInt(args[3]) : 0);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("stream")) {
+            stream(args.length > 1 ? Integer.parseInt(args[1]) : 16, args.length > 2 ? Integer.parseInt(args[2]) : 2048);
+            return;
+        }
+        int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int chunkSize = args.length > 1 ? Integer.parseInt(args[1]) : 244;
+        byte[][] chunks = textChunks(megabytes * 1024L * 1024L, chunkSize);
+        System.out.printf(Locale.US, "%d MB per stage in %d byte chunks%n", megabytes, chunkSize);
+
+        run("TextDecoder", chunks, c -> {
+            TextDecoder decoder = new TextDecoder();
+            decoder.setCrLf(true);
+            long chars = 0;
+            for (byte[] data : c)
+                chars += decoder.decode(data).length();
+            consume(chars);
+        });
+        run("Telemetry", chunks, c -> {
+            Telemetry telemetry = new Telemetry();
+            long time = 0;
+            for (byte[] data : c)
+                telemetry.onRead(data, time++);
+            consume(telemetry.getUpdates());
+        });
+        run("ScrollbackIndex", chunks, c -> {
+            ScrollbackIndex scrollback = new ScrollbackIndex();
+            for (byte[] data : c)
+                scrollback.append(data, 0);
+            consume(scrollback.getSize());
+        });
+        run("CommandCorrelator", chunks, c -> {
+            CommandCorrelator correlator = new CommandCorrelator();
+            long now = 0;
+            for (byte[] data : c)
+                correlator.onRead(data, now++);
+            consume(now);
+        });
+        run("SpscQueue+ReadBacklog", chunks, Benchmark::readPipeline);
+        run("HEX encode+parse", chunks, c -> {
+            StringBuilder sb = new StringBuilder();
+            byte[] buf = new byte[chunkSize];
+            long bytes = 0;
+            for (byte[] data : c) {
+                sb.setLength(0);
+                TextUtil.toHexString(sb, data);
+                bytes += TextUtil.fromHexString(sb, buf, 0);
+            }
+            consume(bytes);
+        });
+        run("WriteQueue", chunks, c -> {
+            WriteQueue queue = new WriteQueue();
+            long bytes = 0;
+            for (byte[] data : c) {
+                byte[] chunk = queue.add(data, WRITE_PAYLOAD_SIZE, true);
+                while (chunk != null) {
+                    bytes += chunk.length;
+                    chunk = queue.next(true);
+                }
+            }
+            consume(bytes);
+        });
+        byte[][] frames = frameChunks(chunks, chunkSize);
+        run("TransferProtocol.Decoder", frames, c -> {
+            long[] count = new long[1];
+            TransferProtocol.Decoder decoder = new TransferProtocol.Decoder(
+                    (type, payload, offset, length) -> count[0] += length);
+            for (byte[] data : c)
+                decoder.feed(data, 0, data.length);
+            consume(count[0]);
+        });
+    }
+
+    private static void run(String name, byte[][] chunks, Stage stage) throws Exception {
+        long bytes = 0;
+        for (byte[] data : chunks)
+            bytes += data.length;
+        stage.run(chunks); // warm up
+        long start = System.nanoTime();
+        stage.run(chunks);
+        long nanos = System.nanoTime() - start;
+        System.out.printf(Locale.US, "%-26s %9.1f MB/s %8.1f ns/chunk%n", name,
+                bytes * 1e9 / nanos / (1024 * 1024), (double) nanos / chunks.length);
+    }
+
+    /**
+     * receive thread offers, consumer thread merges into slices, as in SerialService
+     */
+    private static void readPipeline(byte[][] chunks) throws InterruptedException {
+        SpscQueue<byte[]> queue = new SpscQueue<>(1024);
+        Thread producer = new Thread(() -> {
+            for (byte[] data : chunks)
+                queue.offer(data);
+        }, "producer");
+        producer.start();
+        ReadBacklog<Object> backlog = new ReadBacklog<>();
+        ArrayDeque<byte[]> datas = new ArrayDeque<>();
+        int received = 0;
+        while (received < chunks.length) {
+            byte[] data;
+            while ((data = queue.poll()) != null) {
+                backlog.add(data);
+                received++;
+            }
+            while (!backlog.isEmpty()) {
+                backlog.pollData(datas, READ_SLICE_SIZE);
+                datas.clear();
+            }
+            Thread.yield();
+        }
+        producer.join();
+    }
+
+    private static void simulator(int commands, int interval, int pacingBaudRate) throws Exception {
+        DeviceSimulator.Config config = new DeviceSimulator.Config();
+        DeviceSimulator simulator = new DeviceSimulator(config);
+        WritePacer pacer = pacingBaudRate > 0 ? new WritePacer(pacingBaudRate, config.rxBufferSize, true) : null;
+        simulator.setWritePacer(pacer);
+        HashMap<Integer, Long> sentAt = new HashMap<>(); // by sequence number
+        StringBuilder line = new StringBuilder();
+        long[] stats = {0, Long.MAX_VALUE, 0, 0, 0}; // replies, min, max, sum, last reply
+        Object lock = new Object();
+        simulator.connect(new SerialListener() {
+            @Override public void onSerialConnect() {}
+            @Override public void onSerialConnectError(Exception e) {}
+            @Override public void onSerialRead(ArrayDeque<byte[]> datas) {}
+            @Override public void onSerialIoError(Exception e) {}
+            @Override
+            public void onSerialRead(byte[] data) {
+                long now = System.nanoTime();
+                if (pacer != null)
+                    pacer.onRead(data);
+                synchronized (lock) {
+                    for (byte b : data) {
+                        if (b != '\n') {
+                            line.append((char) (b & 0xff));
+                            continue;
+                        }
+                        Long sent = sentAt.remove(parseTag(line));
+                        line.setLength(0);
+                        if (sent != null) {
+                            long rtt = now - sent;
+                            stats[0]++;
+                            stats[1] = Math.min(stats[1], rtt);
+                            stats[2] = Math.max(stats[2], rtt);
+                            stats[3] += rtt;
+                            stats[4] = now;
+                            lock.notifyAll();
+                        }
+                    }
+                }
+            }
+        });
+        String[] payloads = {"LED ON", "LED OFF"};
+        long start = System.nanoTime();
+        for (int i = 0; i < commands; i++) {
+            synchronized (lock) {
+                sentAt.put(i, System.nanoTime());
+            }
+            simulator.write((payloads[i % 2] + " #" + i + "\n").getBytes());
+            if (interval > 0)
+                Thread.sleep(interval);
+        }
+        // replies of dropped commands never come, wait until no reply for 2 seconds
+        synchronized (lock) {
+            long replies;
+            do {
+                replies = stats[0];
+                lock.wait(2000);
+            } while (stats[0] != replies && stats[0] < commands);
+        }
+        simulator.disconnect();
+        synchronized (lock) {
+            System.out.printf(Locale.US, "%d commands, %d replies in %.1f s, dropped %d bytes%n",
+                    commands, stats[0], Math.max(0, stats[4] - start) / 1e9, simulator.getDropped());
+            if (stats[0] > 0)
+                System.out.printf(Locale.US, "round trip min %.1f avg %.1f max %.1f ms%n",
+                        stats[1] / 1e6, stats[3] / 1e6 / stats[0], stats[2] / 1e6);
+        }
+    }
+
+    /**
+     * @return sequence number at end of reply line, -1 if missing or garbled
+     */
+    private static int parseTag(CharSequence line) {
+        int end = line.length();
+        while (end > 0 && line.charAt(end - 1) == '\r')
+            end--;
+        int start = end;
+        while (start > 0 && Character.isDigit(line.charAt(start - 1)))
+            start--;
+        if (start == end || end - start > 9 || start < 2 || line.charAt(start - 1) != '#' || line.charAt(start - 2) != ' ')
+            return -1;
+        return Integer.parseInt(line.subSequence(start, end).toString());
+    }
+
+    private static void stream(int megabytes, int payloadSize) throws Exception {
+        byte[][] messages = textChunks(megabytes * 1024L * 1024L, STREAM_MESSAGE_SIZE);
+        long total = 0;
+        for (byte[] data : messages)
+            total += data.length;
+        PipedInputStream in = new PipedInputStream(4 * payloadSize);
+        PipedOutputStream out = new PipedOutputStream(in);
+        StreamTransport transport = new StreamTransport("loopback", "loopback", "loopback", () -> new StreamTransport.Connection() {
+            @Override public InputStream getInputStream() { return in; }
+            @Override public OutputStream getOutputStream() { return out; }
+            @Override public int getPayloadSize() { return payloadSize; }
+            @Override public void close() throws IOException { out.close(); in.close(); }
+        });
+        WriteGate gate = new WriteGate(STREAM_QUEUE_CAPACITY, null);
+        transport.setWriteListener(() -> gate.onWriteNext(transport));
+        boolean[] connected = {false};
+        long[] received = {0};
+        Exception[] error = {null};
+        Object lock = new Object();
+        transport.connect(new SerialListener() {
+            @Override public void onSerialRead(ArrayDeque<byte[]> datas) {}
+            @Override
+            public void onSerialConnect() {
+                synchronized (lock) {
+                    connected[0] = true;
+                    lock.notifyAll();
+                }
+            }
+            @Override
+            public void onSerialConnectError(Exception e) {
+                onSerialIoError(e);
+            }
+            @Override
+            public void onSerialRead(byte[] data) {
+                synchronized (lock) {
+                    received[0] += data.length;
+                    lock.notifyAll();
+                }
+            }
+            @Override
+            public void onSerialIoError(Exception e) {
+                synchronized (lock) {
+                    error[0] = e;
+                    lock.notifyAll();
+                }
+            }
+        });
+        synchronized (lock) {
+            while (!connected[0] && error[0] == null)
+                lock.wait(100);
+        }
+        long start = System.nanoTime();
+        for (byte[] data : messages) {
+            gate.acquire(transport, data.length, WriteGate.Backpressure.Block);
+            transport.write(data);
+        }
+        synchronized (lock) {
+            while (received[0] < total && error[0] == null)
+                lock.wait(100);
+        }
+        long nanos = System.nanoTime() - start;
+        LinkMetrics.Snapshot snapshot = transport.getLinkMetrics().snapshot();
+        transport.disconnect();
+        if (error[0] != null)
+            throw error[0];
+        System.out.printf(Locale.US, "%d MB in %d byte writes: %.1f MB/s, write p50 %.3f p99 %.3f ms%n",
+                megabytes, payloadSize, total * 1e9 / nanos / (1024 * 1024),
+                snapshot.writeP50Micros / 1000.0, snapshot.writeP99Micros / 1000.0);
+    }
+
+    private static byte[][] textChunks(long size, int chunkSize) {
+        Random random = new Random(1);
+        StringBuilder sb = new StringBuilder();
+        byte[][] chunks = new byte[(int) ((size + chunkSize - 1) / chunkSize)][];
+        byte[] line = new byte[0];
+        int linePos = 0;
+        for (int i = 0; i < chunks.length; i++) {
+            byte[] chunk = new byte[chunkSize];
+            for (int pos = 0; pos < chunkSize; pos++) {
+                if (linePos == line.length) {
+                    sb.setLength(0);
+                    sb.append("t=").append(i).append(" temp: ").append(20 + random.nextInt(1000) / 100f)
+                            .append(", hum=").append(random.nextInt(100)).append(" \u00fc\r\n");
+                    line = sb.toString().getBytes(Charset.forName("UTF-8"));
+                    linePos = 0;
+                }
+                chunk[pos] = line[linePos++];
+            }
+            chunks[i] = chunk;
+        }
+        return chunks;
+    }
+
+    /**
+     * DATA frames with content of chunks, split again into chunks
+     */
+    private static byte[][] frameChunks(byte[][] chunks, int chunkSize) {
+        ArrayDeque<byte[]> frames = new ArrayDeque<>();
+        long total = 0;
+        int block = 0;
+        for (int i = 0; i < chunks.length; ) {
+            byte[] frame = TransferProtocol.frame(TransferProtocol.DATA, 4 + TransferProtocol.BLOCK_SIZE);
+            TransferProtocol.putInt(frame, TransferProtocol.HEADER_SIZE, block++);
+            for (int pos = 0; pos < TransferProtocol.BLOCK_SIZE; pos += chunkSize, i++) {
+                int n = Math.min(chunkSize, TransferProtocol.BLOCK_SIZE - pos);
+                System.arraycopy(chunks[i % chunks.length], 0, frame, TransferProtocol.HEADER_SIZE + 4 + pos, n);
+            }
+            frames.add(TransferProtocol.seal(frame));
+            total += frame.length;
+        }
+        byte[][] result = new byte[(int) ((total + chunkSize - 1) / chunkSize)][];
+        int n = 0;
+        byte[] chunk = new byte[chunkSize];
+        int pos = 0;
+        for (byte[] frame : frames) {
+            for (int i = 0; i < frame.length; ) {
+                int count = Math.min(frame.length - i, chunkSize - pos);
+                System.arraycopy(frame, i, chunk, pos, count);
+                i += count;
+                pos += count;
+                if (pos == chunkSize) {
+                    result[n++] = chunk;
+                    chunk = new byte[chunkSize];
+                    pos = 0;
+                }
+            }
+        }
+        if (pos > 0)
+            result[n++] = Arrays.copyOf(chunk, pos);
+        return Arrays.copyOf(result, n);
+    }
+
+    private static volatile long sink;
+
+    private static void consume(long value) {
+        sink += value;
+    }
+
+}
@@ -0,0 +1,45 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+/**
+ * recycles buffers of received data, so reads don't allocate a byte[] per chunk
+ *   - the consumer releases a buffer after its last use, the transport read thread acquires
+ *     it again. Each side is a single thread, connected by a SpscQueue
+ *   - data length is the buffer length, so only buffers of the requested length are reused.
+ *     Chunks mostly have the same length, e.g. full notifications. A released buffer of
+ *     other length is dropped when polled, so the pool adapts to the current length
+ */
+final class BufferPool {
+
+    private final SpscQueue<byte[]> free;
+    private final int capacity;
+
+    BufferPool(int capacity) {
+        free = new SpscQueue<>(capacity);
+        this.capacity = capacity;
+    }
+
+    /**
+     * read thread only
+     */
+    byte[] acquire(int length) {
+        byte[] buffer = free.poll();
+        if (buffer != null && buffer.length == length)
+            return buffer;
+        return new byte[length];
+    }
+
+    /**
+     * consumer thread only. Buffer must not be used afterwards
+     */
+    void release(byte[] buffer) {
+        if (free.size() < capacity)
+            free.offer(buffer);
+    }
+
+    /**
+     * approximate number of free buffers
+     */
+    int size() {
+        return free.size();
+    }
+}
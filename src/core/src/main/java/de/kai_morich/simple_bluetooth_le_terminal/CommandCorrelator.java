@@ -0,0 +1,266 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * match outbound commands with inbound replies of the device
+ *   - written data is split into lines, each short printable line is tracked as command
+ *   - received lines are matched against response patterns, the oldest open command
+ *     accepted by the pattern is answered and its round trip time recorded per command type
+ *   - commands without reply after timeout are counted and kept as unacknowledged
+ *
+ * methods are called from write callback thread (write) and read thread (read), so all are synchronized.
+ * Commands are tracked when their last chunk is written, so round trip times start there
+ */
+class CommandCorrelator {
+
+    static final long DEFAULT_TIMEOUT_NANOS = 2_000_000_000L;
+
+    private static final int MAX_COMMAND_LENGTH = 64;
+    private static final int MAX_COMMAND_TYPES = 32;
+    private static final int MAX_PENDING = 64;
+    private static final int MAX_UNACKNOWLEDGED = 16;
+    private static final String OTHER_COMMAND_TYPE = "<other>";
+
+    /**
+     * reply line that answers a command
+     *   - command null accepts any command
+     *   - ack false means the device rejected the command, e.g. 'Unknown command'
+     */
+    static class ResponsePattern {
+        final Pattern command;
+        final Pattern reply;
+        final boolean ack;
+
+        ResponsePattern(String command, String reply, boolean ack) {
+            this.command = command != null ? Pattern.compile(command, Pattern.CASE_INSENSITIVE) : null;
+            this.reply = Pattern.compile(reply, Pattern.CASE_INSENSITIVE);
+            this.ack = ack;
+        }
+    }
+
+    /**
+     * replies of arduinocode.txt
+     */
+    static ArrayList<ResponsePattern> defaultPatterns() {
+        ArrayList<ResponsePattern> patterns = new ArrayList<>();
+        patterns.add(new ResponsePattern("LED ON",  "LED turned ON.*",  true));
+        patterns.add(new ResponsePattern("LED OFF", "LED turned OFF.*", true));
+        patterns.add(new ResponsePattern("FAN ON",  "Fan turned ON.*",  true));
+        patterns.add(new ResponsePattern("FAN OFF", "Fan turned OFF.*", true));
+        patterns.add(new ResponsePattern(null, "Unknown command.*", false));
+        return patterns;
+    }
+
+    /**
+     * log2 histogram of round trip times, bucket i counts [2^i, 2^(i+1)) microseconds
+     */
+    static class RttHistogram {
+        private final long[] buckets = new long[32];
+        private long count, sumMicros, maxMicros;
+        private long minMicros = Long.MAX_VALUE;
+
+        void add(long micros) {
+            int bucket = Math.min(buckets.length - 1, 63 - Long.numberOfLeadingZeros(Math.max(1, micros)));
+            buckets[bucket]++;
+            count++;
+            sumMicros += micros;
+            minMicros = Math.min(minMicros, micros);
+            maxMicros = Math.max(maxMicros, micros);
+        }
+
+        long getCount() { return count; }
+        long getMinMicros() { return count > 0 ? minMicros : 0; }
+        long getMaxMicros() { return maxMicros; }
+        long getMeanMicros() { return count > 0 ? sumMicros / count : 0; }
+
+        /**
+         * upper bound of bucket containing the percentile, clipped to max
+         */
+        long getPercentileMicros(double percentile) {
+            if(count == 0)
+                return 0;
+            long rank = (long) Math.ceil(percentile / 100.0 * count);
+            long seen = 0;
+            for(int i=0; i<buckets.length; i++) {
+                seen += buckets[i];
+                if(seen >= rank)
+                    return Math.min(maxMicros, (2L << i) - 1);
+            }
+            return maxMicros;
+        }
+    }
+
+    static class CommandStats {
+        final RttHistogram rtt = new RttHistogram();
+        long sent, acknowledged, rejected, timeouts;
+    }
+
+    private static class PendingCommand {
+        final String command;
+        final CommandStats stats;
+        final long sentNanos;
+
+        PendingCommand(String command, CommandStats stats, long sentNanos) {
+            this.command = command;
+            this.stats = stats;
+            this.sentNanos = sentNanos;
+        }
+    }
+
+    private static class LineBuffer {
+        final StringBuilder sb = new StringBuilder();
+        boolean discard;
+    }
+
+    private final ArrayList<ResponsePattern> patterns;
+    private final long timeoutNanos;
+    private final LinkedHashMap<String, CommandStats> stats = new LinkedHashMap<>();
+    private final ArrayDeque<PendingCommand> pending = new ArrayDeque<>();
+    private final ArrayDeque<String> unacknowledged = new ArrayDeque<>();
+    private final LineBuffer writeLine = new LineBuffer();
+    private final LineBuffer readLine = new LineBuffer();
+    private long unmatchedReplies;
+
+    CommandCorrelator() {
+        this(defaultPatterns(), DEFAULT_TIMEOUT_NANOS);
+    }
+
+    CommandCorrelator(ArrayList<ResponsePattern> patterns, long timeoutNanos) {
+        this.patterns = patterns;
+        this.timeoutNanos = timeoutNanos;
+    }
+
+    long getTimeoutNanos() { return timeoutNanos; }
+
+    synchronized boolean hasPending() { return !pending.isEmpty(); }
+
+    synchronized void onWrite(byte[] data, long now) {
+        expire(now);
+        splitLines(data, writeLine, now, true);
+    }
+
+    synchronized void onRead(byte[] data, long now) {
+        expire(now);
+        splitLines(data, readLine, now, false);
+    }
+
+    /**
+     * move commands older than timeout to unacknowledged
+     */
+    synchronized void expire(long now) {
+        while(!pending.isEmpty() && now - pending.peekFirst().sentNanos >= timeoutNanos) {
+            PendingCommand command = pending.removeFirst();
+            command.stats.timeouts++;
+            addUnacknowledged(command.command);
+        }
+    }
+
+    /**
+     * lines with binary data or exceeding MAX_COMMAND_LENGTH are discarded, e.g. HEX mode
+     */
+    private void splitLines(byte[] data, LineBuffer line, long now, boolean write) {
+        for (byte b : data) {
+            int c = b & 0xff;
+            if (c == '\n' || c == '\r') {
+                if (!line.discard && line.sb.length() > 0) {
+                    String s = line.sb.toString().trim();
+                    if (!s.isEmpty()) {
+                        if (write) onCommand(s, now);
+                        else       onReply(s, now);
+                    }
+                }
+                line.sb.setLength(0);
+                line.discard = false;
+            } else if (line.discard) {
+                // skip until end of line
+            } else if (c < 32 || c >= 127 || line.sb.length() >= MAX_COMMAND_LENGTH) {
+                line.sb.setLength(0);
+                line.discard = true;
+            } else {
+                line.sb.append((char) c);
+            }
+        }
+    }
+
+    private void onCommand(String command, long now) {
+        String type = command.toUpperCase(Locale.US);
+        CommandStats commandStats = stats.get(type);
+        if(commandStats == null) {
+            if(stats.size() >= MAX_COMMAND_TYPES)
+                type = OTHER_COMMAND_TYPE;
+            commandStats = stats.get(type);
+            if(commandStats == null) {
+                commandStats = new CommandStats();
+                stats.put(type, commandStats);
+            }
+        }
+        commandStats.sent++;
+        if(pending.size() >= MAX_PENDING) {
+            PendingCommand oldest = pending.removeFirst();
+            oldest.stats.timeouts++;
+            addUnacknowledged(oldest.command);
+        }
+        pending.addLast(new PendingCommand(command, commandStats, now));
+    }
+
+    private void onReply(String reply, long now) {
+        for(ResponsePattern pattern : patterns) {
+            if(!pattern.reply.matcher(reply).matches())
+                continue;
+            for(Iterator<PendingCommand> it = pending.iterator(); it.hasNext(); ) {
+                PendingCommand command = it.next();
+                if(pattern.command == null || pattern.command.matcher(command.command).matches()) {
+                    it.remove();
+                    command.stats.rtt.add((now - command.sentNanos) / 1000);
+                    if(pattern.ack)
+                        command.stats.acknowledged++;
+                    else
+                        command.stats.rejected++;
+                    return;
+                }
+            }
+        }
+        unmatchedReplies++;
+    }
+
+    private void addUnacknowledged(String command) {
+        if(unacknowledged.size() >= MAX_UNACKNOWLEDGED)
+            unacknowledged.removeFirst();
+        unacknowledged.addLast(command);
+    }
+
+    synchronized String getSummary() {
+        StringBuilder sb = new StringBuilder();
+        for(Map.Entry<String, CommandStats> entry : stats.entrySet()) {
+            CommandStats s = entry.getValue();
+            sb.append(entry.getKey()).append('\n');
+            sb.append(String.format(Locale.US, "  sent %d, ack %d, rejected %d, timeout %d\n",
+                    s.sent, s.acknowledged, s.rejected, s.timeouts));
+            if(s.rtt.getCount() > 0)
+                sb.append(String.format(Locale.US, "  rtt ms min %.1f, p50 %.1f, p99 %.1f, max %.1f\n",
+                        s.rtt.getMinMicros() / 1000.0, s.rtt.getPercentileMicros(50) / 1000.0,
+                        s.rtt.getPercentileMicros(99) / 1000.0, s.rtt.getMaxMicros() / 1000.0));
+        }
+        if(!pending.isEmpty())
+            sb.append("pending: ").append(pending.size()).append('\n');
+        if(!unacknowledged.isEmpty()) {
+            sb.append("unacknowledged:");
+            for(String command : unacknowledged)
+                sb.append(" '").append(command).append('\'');
+            sb.append('\n');
+        }
+        if(unmatchedReplies > 0)
+            sb.append("unmatched replies: ").append(unmatchedReplies).append('\n');
+        if(sb.length() == 0)
+            sb.append("no commands sent");
+        return sb.toString();
+    }
+
+}
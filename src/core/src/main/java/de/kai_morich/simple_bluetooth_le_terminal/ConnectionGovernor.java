@@ -0,0 +1,117 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * chooses the connection priority from traffic, so commands get short connection intervals
+ * and idle sessions save battery
+ *
+ *   High      on writes, read bursts and hints like start of speech, ahead of the expected command
+ *   Balanced  HIGH_HOLD after the last reason for High, as long as there is some traffic
+ *   LowPower  IDLE_HOLD without any traffic
+ *
+ * raising is immediate, lowering only after the hold times, so short pauses do not
+ * cause a connection parameter update each time
+ *
+ * activity methods only write volatile fields and can be called from any thread,
+ * tick() and the metrics are called from one thread. getMode() can be called from any thread,
+ * so the caller can run tick() at once instead of at the next interval when the mode is not High
+ */
+class ConnectionGovernor {
+
+    enum Mode { LowPower, Balanced, High }
+
+    static final long HIGH_HOLD = 5_000_000_000L;  // nanos
+    static final long IDLE_HOLD = 30_000_000_000L;
+    static final long BURST_RATE = 1024;            // bytes per second of received data regarded as burst
+
+    private volatile long lastHigh;     // nanos of last reason for High
+    private volatile long lastActivity; // nanos of last traffic
+    private volatile long readBytes;    // single writer, the read thread
+
+    private volatile Mode mode = Mode.Balanced; // Android default after connect, single writer
+    private final long[] modeNanos = new long[Mode.values().length];
+    private long modeSince, lastTick, lastReadBytes;
+    private int changes;
+
+    /**
+     * @param now System.nanoTime()
+     */
+    void reset(long now) {
+        lastHigh = lastActivity = now; // connect is usually followed by commands
+        readBytes = lastReadBytes = 0;
+        mode = Mode.Balanced;
+        Arrays.fill(modeNanos, 0);
+        modeSince = lastTick = now;
+        changes = 0;
+    }
+
+    void onWrite(long now) {
+        lastHigh = now;
+        lastActivity = now;
+    }
+
+    /**
+     * called from read thread only
+     */
+    void onRead(int length, long now) {
+        readBytes += length;
+        lastActivity = now;
+    }
+
+    /**
+     * command expected soon, e.g. speech started or user is typing
+     */
+    void onCommandExpected(long now) {
+        lastHigh = now;
+        lastActivity = now;
+    }
+
+    /**
+     * @return new mode to request, or null if unchanged
+     */
+    Mode tick(long now) {
+        long bytes = readBytes;
+        long elapsed = now - lastTick;
+        if (elapsed > 0 && (bytes - lastReadBytes) * 1_000_000_000L / elapsed >= BURST_RATE)
+            lastHigh = now;
+        lastReadBytes = bytes;
+        lastTick = now;
+
+        Mode next;
+        if (now - lastHigh < HIGH_HOLD)
+            next = Mode.High;
+        else if (now - lastActivity < IDLE_HOLD)
+            next = Mode.Balanced;
+        else
+            next = Mode.LowPower;
+        if (next == mode)
+            return null;
+        modeNanos[mode.ordinal()] += now - modeSince;
+        modeSince = now;
+        mode = next;
+        changes++;
+        return next;
+    }
+
+    Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * time spent in mode, including the current period
+     */
+    long getModeNanos(Mode mode, long now) {
+        return modeNanos[mode.ordinal()] + (mode == this.mode ? now - modeSince : 0);
+    }
+
+    String getSummary(long now) {
+        StringBuilder sb = new StringBuilder();
+        for (Mode m : Mode.values())
+            sb.append(String.format(Locale.US, "%s: %.1f s%s\n", m, getModeNanos(m, now) / 1e9, m == mode ? " (current)" : ""));
+        sb.append("changes: ").append(changes).append('\n');
+        return sb.toString();
+    }
+
+}
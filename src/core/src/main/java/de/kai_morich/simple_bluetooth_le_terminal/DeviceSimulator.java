@@ -0,0 +1,413 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * simulated Vexis device as in arduinocode.txt: HC-05 style serial bridge, SoftwareSerial link
+ * and a sketch handling LED ON/OFF and FAN ON/OFF, for latency and overload tests without hardware
+ *
+ *   app --writes--> bridge buffer --baud rate--> rx buffer --> command loop
+ *   app <--notifications-- bridge <--baud rate-- replies
+ *
+ *   - a write takes writeInterval, e.g. one BLE connection interval, then its bytes go to the
+ *     bridge buffer. Bytes not fitting into the bridge or rx buffer are dropped and counted
+ *   - the command loop reads lines until '\n' or after 1 second without data, like readStringUntil(),
+ *     and does not read while handling a command for responseLatency or while println() waits
+ *     for space in the transmit buffer, so long replies also limit the command rate
+ *   - the reference sketch prints replies to the USB serial monitor only, the simulator sends
+ *     them back over the link so round trip times can be measured
+ *   - a command can end with a tag like " #12", which is appended to the reply, so replies can be
+ *     matched to commands when commands are dropped
+ *
+ * all listener methods are called from the simulator thread
+ */
+class DeviceSimulator implements SerialTransport {
+
+    static final String ADDRESS = "simulator";
+
+    static class Config {
+        int baudRate = 9600;            // SoftwareSerial, HC-05 default
+        int bridgeBufferSize = 256;
+        int rxBufferSize = 64;          // SoftwareSerial receive buffer
+        int txBufferSize = 64;          // Serial transmit buffer
+        int payloadSize = 20;           // default MTU
+        long writeInterval = 7_500_000; // nanos
+        long responseLatency = 1_000_000;
+    }
+
+    private static final long TICK = 500_000; // nanos
+    private static final long BALANCED_WRITE_INTERVAL = 45_000_000;  // connection interval of Android priorities
+    private static final long LOW_POWER_WRITE_INTERVAL = 110_000_000;
+    private static final long READ_TIMEOUT = 1_000_000_000; // Stream.setTimeout() default
+    private static final int MAX_LINE_LENGTH = 256;
+    private static final String UNKNOWN_COMMAND = "Unknown command. Use LED ON/OFF or FAN ON/OFF.";
+
+    private final Config config;
+    private volatile long writeInterval;
+    private final long charTime; // nanos per character with start and stop bit
+    private final WriteQueue writeQueue = new WriteQueue();
+    private final LinkMetrics linkMetrics = new LinkMetrics();
+    private volatile SerialListener listener;
+    private volatile WriteListener writeListener;
+    private volatile BufferPool pool;
+    private Thread thread;
+
+    // guarded by this
+    private byte[] pendingWrite;
+    private long pendingWriteDone;
+    private final ByteRing bridge;
+    private final ByteRing rx;
+    private final ByteRing tx;
+    private final StringBuilder line = new StringBuilder();
+    private String reply; // not yet in transmit buffer
+    private int replyPos;
+    private final byte[] notification;
+    private long lineTime, rxTime, txTime, busyUntil;
+    private long dropped;
+    private boolean led, fan;
+
+    DeviceSimulator() {
+        this(new Config());
+    }
+
+    DeviceSimulator(Config config) {
+        this.config = config;
+        writeInterval = config.writeInterval;
+        charTime = 10 * 1_000_000_000L / config.baudRate;
+        bridge = new ByteRing(config.bridgeBufferSize);
+        rx = new ByteRing(config.rxBufferSize);
+        tx = new ByteRing(config.txBufferSize);
+        notification = new byte[config.payloadSize];
+        linkMetrics.setMtu(config.payloadSize + 3, config.payloadSize);
+    }
+
+    @Override
+    public String getName() {
+        return "Vexis simulator";
+    }
+
+    @Override
+    public String getAddress() {
+        return ADDRESS;
+    }
+
+    @Override
+    public String getProfile() {
+        return String.format(Locale.US, "Simulator %d baud", config.baudRate);
+    }
+
+    @Override
+    public void setWriteListener(WriteListener writeListener) {
+        this.writeListener = writeListener;
+    }
+
+    /**
+     * simulated device has Data channel only
+     */
+    @Override
+    public void setChannelListener(ChannelListener channelListener) {
+    }
+
+    @Override
+    public void setBufferPool(BufferPool pool) {
+        this.pool = pool;
+    }
+
+    @Override
+    public synchronized void setWritePacer(WritePacer pacer) {
+        writeQueue.setPacer(pacer);
+    }
+
+    @Override
+    public int getPayloadSize() {
+        return config.payloadSize;
+    }
+
+    @Override
+    public synchronized int getWriteQueueSize() {
+        return writeQueue.size();
+    }
+
+    @Override
+    public synchronized int getWriteQueueDepth(WriteQueue.Priority priority) {
+        return writeQueue.getDepth(priority);
+    }
+
+    @Override
+    public synchronized int getMaxWriteQueueDepth(WriteQueue.Priority priority) {
+        return writeQueue.getMaxDepth(priority);
+    }
+
+    @Override
+    public LinkMetrics getLinkMetrics() {
+        return linkMetrics;
+    }
+
+    /**
+     * High uses Config.writeInterval
+     */
+    @Override
+    public void setConnectionPriority(ConnectionGovernor.Mode mode) {
+        writeInterval = mode == ConnectionGovernor.Mode.High ? config.writeInterval
+                : mode == ConnectionGovernor.Mode.Balanced ? BALANCED_WRITE_INTERVAL : LOW_POWER_WRITE_INTERVAL;
+    }
+
+    @Override
+    public void requestRssi() {
+        // no radio
+    }
+
+    @Override
+    public synchronized long getDroppedWriteCount() {
+        return writeQueue.getDroppedCount();
+    }
+
+    /**
+     * received bytes lost because bridge or rx buffer was full
+     */
+    synchronized long getDropped() {
+        return dropped;
+    }
+
+    synchronized boolean isLedOn() {
+        return led;
+    }
+
+    synchronized boolean isFanOn() {
+        return fan;
+    }
+
+    @Override
+    public synchronized void connect(SerialListener listener) throws IOException {
+        if (thread != null)
+            throw new IOException("already connected");
+        this.listener = listener;
+        thread = new Thread(this::run, "simulator");
+        thread.start();
+    }
+
+    @Override
+    public void disconnect() {
+        ArrayList<WriteRequest> finished;
+        synchronized (this) {
+            listener = null;
+            if (thread != null)
+                thread.interrupt();
+            thread = null; // allow reconnect, old thread ends at next tick
+            writeQueue.clear();
+            finished = writeQueue.pollFinished();
+            pendingWrite = null;
+        }
+        notifyFinished(finished);
+    }
+
+    @Override
+    public void write(byte[] data) throws IOException {
+        write(new WriteRequest(data));
+    }
+
+    @Override
+    public void write(WriteRequest request) throws IOException {
+        ArrayList<WriteRequest> finished;
+        synchronized (this) {
+            if (thread == null || listener == null)
+                throw new IOException("not connected");
+            byte[] data0 = writeQueue.add(request, config.payloadSize, true);
+            if (data0 != null)
+                startWrite(data0, System.nanoTime());
+            linkMetrics.setWriteQueueSize(writeQueue.size());
+            finished = writeQueue.pollFinished();
+        }
+        notifyFinished(finished);
+    }
+
+    private static void notifyFinished(ArrayList<WriteRequest> finished) {
+        if (finished != null)
+            for (WriteRequest request : finished)
+                request.notifyFinished();
+    }
+
+    private void startWrite(byte[] data, long now) {
+        linkMetrics.onWriteStart(data.length, now);
+        pendingWrite = data;
+        pendingWriteDone = now + writeInterval;
+    }
+
+    private void run() {
+        synchronized (this) {
+            busyUntil = System.nanoTime();
+        }
+        SerialListener listener = this.listener;
+        if (listener != null)
+            listener.onSerialConnect();
+        ArrayList<byte[]> notifications = new ArrayList<>();
+        while (!Thread.currentThread().isInterrupted()) {
+            LockSupport.parkNanos(TICK);
+            long now = System.nanoTime();
+            boolean writeNext;
+            ArrayList<WriteRequest> finished;
+            synchronized (this) {
+                if (thread != Thread.currentThread())
+                    return; // disconnected, maybe already connected again
+                writeNext = step(now, notifications);
+                finished = writeQueue.pollFinished();
+            }
+            notifyFinished(finished);
+            listener = this.listener;
+            for (byte[] data : notifications) {
+                linkMetrics.onRead(data.length);
+                if (listener != null)
+                    listener.onSerialRead(data);
+            }
+            notifications.clear();
+            WriteListener writeListener = this.writeListener;
+            if (writeNext && writeListener != null)
+                writeListener.onWriteNext();
+        }
+    }
+
+    /**
+     * advance simulation to now
+     * @return true if a write completed
+     */
+    private boolean step(long now, ArrayList<byte[]> notifications) {
+        boolean writeNext = false;
+        while (pendingWrite != null && now - pendingWriteDone >= 0) {
+            for (byte b : pendingWrite)
+                if (!bridge.offer(b))
+                    dropped++;
+            long done = pendingWriteDone;
+            linkMetrics.onWriteDone(done);
+            pendingWrite = null;
+            byte[] data = writeQueue.next(true);
+            if (data != null)
+                startWrite(data, done);
+            writeNext = true;
+        }
+        if (pendingWrite == null && writeQueue.isBlocked()) { // by pacer
+            byte[] data = writeQueue.next(true);
+            if (data != null) {
+                startWrite(data, now);
+                writeNext = true;
+            }
+        }
+        // bridge -> rx buffer at baud rate, rx buffer is filled by interrupt also while busy
+        if (bridge.isEmpty())
+            rxTime = now;
+        while (!bridge.isEmpty() && now - rxTime >= 0) {
+            if (!rx.offer(bridge.poll()))
+                dropped++;
+            rxTime += charTime;
+        }
+        if (tx.isEmpty())
+            txTime = now;
+        // println() after handling, blocks until reply is in transmit buffer
+        if (reply != null && now - busyUntil >= 0) {
+            while (replyPos < reply.length() && tx.offer((byte) reply.charAt(replyPos)))
+                replyPos++;
+            if (replyPos == reply.length())
+                reply = null;
+        }
+        // command loop
+        if (reply == null && now - busyUntil >= 0) {
+            while (!rx.isEmpty()) {
+                byte b = rx.poll();
+                lineTime = now;
+                if (b == '\n') {
+                    handleCommand(now);
+                    break;
+                } else if (line.length() < MAX_LINE_LENGTH) {
+                    line.append((char) (b & 0xff));
+                }
+            }
+            if (line.length() > 0 && now - lineTime >= READ_TIMEOUT)
+                handleCommand(now);
+        }
+        // replies at baud rate, sent as notification when payload is full or the line ends
+        int count = 0;
+        while (!tx.isEmpty() && now - txTime >= 0) {
+            byte b = tx.poll();
+            notification[count++] = b;
+            txTime += charTime;
+            if (count == notification.length || b == '\n') {
+                notifications.add(copy(notification, count));
+                count = 0;
+            }
+        }
+        if (count > 0)
+            notifications.add(copy(notification, count));
+        linkMetrics.setWriteQueueSize(writeQueue.size());
+        return writeNext;
+    }
+
+    private void handleCommand(long now) {
+        String command = line.toString().trim();
+        line.setLength(0);
+        String tag = "";
+        int tagPos = command.lastIndexOf(" #");
+        if (tagPos >= 0) {
+            tag = command.substring(tagPos);
+            command = command.substring(0, tagPos).trim();
+        }
+        String reply;
+        if (command.equalsIgnoreCase("LED ON")) {
+            led = true;
+            reply = "LED turned ON";
+        } else if (command.equalsIgnoreCase("LED OFF")) {
+            led = false;
+            reply = "LED turned OFF";
+        } else if (command.equalsIgnoreCase("FAN ON")) {
+            fan = true;
+            reply = "Fan turned ON via relay";
+        } else if (command.equalsIgnoreCase("FAN OFF")) {
+            fan = false;
+            reply = "Fan turned OFF via relay";
+        } else {
+            reply = UNKNOWN_COMMAND;
+        }
+        busyUntil = now + config.responseLatency;
+        this.reply = reply + tag + "\r\n";
+        replyPos = 0;
+    }
+
+    private byte[] copy(byte[] data, int count) {
+        BufferPool pool = this.pool;
+        byte[] result = pool != null ? pool.acquire(count) : new byte[count];
+        System.arraycopy(data, 0, result, 0, count);
+        return result;
+    }
+
+    /**
+     * fixed size byte FIFO
+     */
+    private static class ByteRing {
+        private final byte[] buffer;
+        private int head, size;
+
+        ByteRing(int capacity) {
+            buffer = new byte[capacity];
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        boolean offer(byte b) {
+            if (size == buffer.length)
+                return false;
+            buffer[(head + size++) % buffer.length] = b;
+            return true;
+        }
+
+        byte poll() {
+            byte b = buffer[head];
+            head = (head + 1) % buffer.length;
+            size--;
+            return b;
+        }
+    }
+
+}
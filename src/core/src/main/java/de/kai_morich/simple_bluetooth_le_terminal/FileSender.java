@@ -0,0 +1,126 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+
+/**
+ * stream file in chunks of payload size, read on demand when the socket write queue drains
+ *
+ * at most WINDOW chunks are queued in the socket, so memory use does not depend on file size,
+ * while the queue never runs empty between two characteristic writes
+ */
+class FileSender {
+
+    interface Output {
+        void write(byte[] data) throws IOException;
+        int getPayloadSize();
+        int getWriteQueueSize();
+    }
+
+    /**
+     * called from file send thread
+     */
+    interface Listener {
+        void onFileProgress(long sent, long size, long bytesPerSecond);
+        void onFileFinished(long sent, long size, Exception e); // InterruptedIOException if canceled
+    }
+
+    static final int WINDOW = 4;
+    private static final int READ_SIZE = 16 * 1024;
+    private static final long PROGRESS_INTERVAL = 200_000_000; // nanos
+    private static final long WAIT_TIMEOUT = 1000; // millis, recheck after missed signal, e.g. on disconnect
+
+    private final ReadableByteChannel channel;
+    private final long size;
+    private final Output output;
+    private final Listener listener;
+    private final Object lock = new Object();
+    private final Thread thread;
+
+    /**
+     * @param size for progress, -1 if unknown
+     */
+    FileSender(ReadableByteChannel channel, long size, Output output, Listener listener) {
+        this.channel = channel;
+        this.size = size;
+        this.output = output;
+        this.listener = listener;
+        thread = new Thread(this::run, "file send");
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    void cancel() {
+        thread.interrupt();
+    }
+
+    boolean isRunning() {
+        return thread.isAlive();
+    }
+
+    /**
+     * socket write queue shrunk
+     */
+    void onWriteNext() {
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+    }
+
+    private void run() {
+        ByteBuffer buffer = ByteBuffer.allocate(READ_SIZE);
+        buffer.flip();
+        long sent = 0;
+        long start = System.nanoTime();
+        long lastProgress = start;
+        Exception error = null;
+        try {
+            while (true) {
+                synchronized (lock) {
+                    while (output.getWriteQueueSize() >= WINDOW)
+                        lock.wait(WAIT_TIMEOUT);
+                }
+                if (!buffer.hasRemaining()) {
+                    buffer.clear();
+                    int n = channel.read(buffer);
+                    buffer.flip();
+                    if (n < 0)
+                        break;
+                    if (n == 0)
+                        continue;
+                }
+                int length = Math.min(buffer.remaining(), output.getPayloadSize());
+                byte[] chunk = Arrays.copyOfRange(buffer.array(), buffer.position(), buffer.position() + length);
+                buffer.position(buffer.position() + length);
+                output.write(chunk);
+                sent += length;
+                long now = System.nanoTime();
+                if (now - lastProgress >= PROGRESS_INTERVAL) {
+                    lastProgress = now;
+                    listener.onFileProgress(sent, size, sent * 1_000_000_000L / (now - start));
+                }
+            }
+            synchronized (lock) { // finished when written, not when queued
+                while (output.getWriteQueueSize() > 0)
+                    lock.wait(WAIT_TIMEOUT);
+            }
+            long now = System.nanoTime();
+            listener.onFileProgress(sent, size, sent * 1_000_000_000L / Math.max(1, now - start));
+        } catch (InterruptedException e) {
+            error = new InterruptedIOException("canceled");
+        } catch (Exception e) {
+            error = Thread.interrupted() ? new InterruptedIOException("canceled") : e; // interrupt closes channel
+        }
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        listener.onFileFinished(sent, size, error);
+    }
+
+}
@@ -0,0 +1,133 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * link health counters of a SerialTransport. Updated from transport threads without locks,
+ * read with snapshot(), so an overlay refreshing at a low rate does not slow down the pipeline
+ *
+ * write latency percentiles are exact values of the last LATENCY_WINDOW writes, so they follow
+ * changes of the link, e.g. a new connection interval, instead of averaging since connect
+ */
+class LinkMetrics {
+
+    static final int UNKNOWN = Integer.MIN_VALUE;
+    static final int LATENCY_WINDOW = 256; // writes
+
+    static class Snapshot {
+        long time; // System.nanoTime()
+        long rxBytes, txBytes;
+        int mtu, payloadSize, writeQueueSize;
+        int credits; // UNKNOWN if transport has no flow control
+        int rssi;    // dBm, UNKNOWN if not sampled
+        long writeCount; // since connect
+        long writeP50Micros, writeP99Micros; // of last LATENCY_WINDOW writes
+
+        /**
+         * @return "rx 1.2 kB/s tx 0.3 kB/s ..." with rates since previous snapshot
+         */
+        String format(Snapshot previous) {
+            double seconds = previous != null ? (time - previous.time) / 1e9 : 0;
+            StringBuilder sb = new StringBuilder();
+            if(seconds > 0)
+                sb.append(String.format(Locale.US, "rx %.1f kB/s  tx %.1f kB/s\n",
+                        (rxBytes - previous.rxBytes) / seconds / 1024, (txBytes - previous.txBytes) / seconds / 1024));
+            sb.append(String.format(Locale.US, "mtu %d  payload %d  queue %d", mtu, payloadSize, writeQueueSize));
+            if(credits != UNKNOWN)
+                sb.append("  credits ").append(credits);
+            if(writeCount > 0)
+                sb.append(String.format(Locale.US, "\nwrite p50 %.1f  p99 %.1f ms", writeP50Micros / 1000.0, writeP99Micros / 1000.0));
+            if(rssi != UNKNOWN)
+                sb.append("\nrssi ").append(rssi).append(" dBm");
+            return sb.toString();
+        }
+    }
+
+    private final AtomicLong rxBytes = new AtomicLong();
+    private final AtomicLong txBytes = new AtomicLong();
+    private final AtomicLong writeCount = new AtomicLong();
+    private final AtomicLongArray writeLatency = new AtomicLongArray(LATENCY_WINDOW); // microseconds, ring buffer indexed by writeCount
+    private volatile int mtu, payloadSize, writeQueueSize;
+    private volatile int credits = UNKNOWN;
+    private volatile int rssi = UNKNOWN;
+    private volatile long writeStart; // 0 if no write in progress
+    private volatile int writeLength;
+
+    void onRead(int length) {
+        rxBytes.addAndGet(length);
+    }
+
+    void onWriteStart(int length, long now) {
+        writeLength = length;
+        writeStart = now == 0 ? 1 : now;
+    }
+
+    /**
+     * write started with onWriteStart() confirmed
+     */
+    void onWriteDone(long now) {
+        long start = writeStart;
+        if(start != 0) {
+            writeStart = 0;
+            txBytes.addAndGet(writeLength);
+            long micros = Math.max(1, (now - start) / 1000);
+            long count = writeCount.get();
+            writeLatency.set((int) (count % LATENCY_WINDOW), micros);
+            writeCount.set(count + 1); // single writer, after the value, so snapshot sees no empty slot
+        }
+    }
+
+    void setMtu(int mtu, int payloadSize) {
+        this.mtu = mtu;
+        this.payloadSize = payloadSize;
+    }
+
+    void setWriteQueueSize(int writeQueueSize) {
+        this.writeQueueSize = writeQueueSize;
+    }
+
+    void setCredits(int credits) {
+        this.credits = credits;
+    }
+
+    void setRssi(int rssi) {
+        this.rssi = rssi;
+    }
+
+    /**
+     * values are read one by one, so they are not strictly consistent with each other
+     */
+    Snapshot snapshot() {
+        Snapshot s = new Snapshot();
+        s.time = System.nanoTime();
+        s.rxBytes = rxBytes.get();
+        s.txBytes = txBytes.get();
+        s.mtu = mtu;
+        s.payloadSize = payloadSize;
+        s.writeQueueSize = writeQueueSize;
+        s.credits = credits;
+        s.rssi = rssi;
+        s.writeCount = writeCount.get();
+        long[] latencies = new long[(int) Math.min(s.writeCount, LATENCY_WINDOW)];
+        for(int i = 0; i < latencies.length; i++)
+            latencies[i] = writeLatency.get(i);
+        Arrays.sort(latencies);
+        s.writeP50Micros = percentile(latencies, 50);
+        s.writeP99Micros = percentile(latencies, 99);
+        return s;
+    }
+
+    /**
+     * nearest rank percentile of sorted values
+     */
+    private static long percentile(long[] sorted, double percentile) {
+        if(sorted.length == 0)
+            return 0;
+        int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+        return sorted[Math.max(1, rank) - 1];
+    }
+
+}
@@ -0,0 +1,62 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import java.util.ArrayDeque;
+
+/**
+ * received data chunks and events in arrival order. Consecutive chunks are
+ * merged into slices of limited size, events keep their position between chunks
+ *
+ * not thread safe
+ */
+class ReadBacklog<E> {
+
+    private final ArrayDeque<Object> items = new ArrayDeque<>(); // byte[] or E
+    private int size;
+
+    void add(byte[] data) {
+        items.add(data);
+        size += data.length;
+    }
+
+    void addEvent(E event) {
+        items.add(event);
+    }
+
+    boolean isEmpty() {
+        return items.isEmpty();
+    }
+
+    /**
+     * bytes in backlog
+     */
+    int getSize() {
+        return size;
+    }
+
+    /**
+     * @return event at head, or null if head is data or backlog is empty
+     */
+    @SuppressWarnings("unchecked")
+    E pollEvent() {
+        Object item = items.peekFirst();
+        if(item == null || item instanceof byte[])
+            return null;
+        return (E) items.removeFirst();
+    }
+
+    /**
+     * move chunks from head to datas until maxSize is reached or an event is at head
+     * @return bytes moved
+     */
+    int pollData(ArrayDeque<byte[]> datas, int maxSize) {
+        int moved = 0;
+        while(moved < maxSize && items.peekFirst() instanceof byte[]) {
+            byte[] data = (byte[]) items.removeFirst();
+            datas.add(data);
+            moved += data.length;
+        }
+        size -= moved;
+        return moved;
+    }
+
+}
@@ -0,0 +1,90 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * runs consumers of received data on one thread per SerialTransport.Channel instead of the
+ * transport callback thread, which only enqueues. So a slow consumer, e.g. search indexing
+ * of Data, neither delays the BLE stack nor the consumers of other channels
+ *
+ *   - offer() is called from the transport callback thread, the single producer of each lane
+ *   - a lane thread parks while its queue is empty. The producer unparks it only if it
+ *     emptied the queue since, like readPending in SerialService, so bursts cost one unpark
+ */
+class ReadDispatcher {
+
+    interface Consumer {
+        void onRead(SerialTransport.Channel channel, byte[] data); // called from lane thread of channel
+    }
+
+    private static final int QUEUE_CAPACITY = 1024;
+
+    private final Consumer consumer;
+    private final ArrayList<Lane> lanes = new ArrayList<>();
+    private volatile boolean stopped;
+
+    ReadDispatcher(Consumer consumer) {
+        this.consumer = consumer;
+        for (SerialTransport.Channel channel : SerialTransport.Channel.values())
+            lanes.add(new Lane(channel));
+    }
+
+    /**
+     * called from transport callback thread
+     */
+    void offer(SerialTransport.Channel channel, byte[] data) {
+        Lane lane = lanes.get(channel.ordinal());
+        lane.queue.offer(data);
+        if (lane.scheduled.compareAndSet(false, true))
+            LockSupport.unpark(lane.thread);
+    }
+
+    /**
+     * approximate number of chunks not yet consumed
+     */
+    int size() {
+        int size = 0;
+        for (Lane lane : lanes)
+            size += lane.queue.size();
+        return size;
+    }
+
+    /**
+     * stop lane threads, remaining data is discarded
+     */
+    void shutdown() {
+        stopped = true;
+        for (Lane lane : lanes)
+            LockSupport.unpark(lane.thread);
+    }
+
+    private class Lane implements Runnable {
+        final SerialTransport.Channel channel;
+        final SpscQueue<byte[]> queue = new SpscQueue<>(QUEUE_CAPACITY);
+        final AtomicBoolean scheduled = new AtomicBoolean();
+        final Thread thread;
+
+        Lane(SerialTransport.Channel channel) {
+            this.channel = channel;
+            thread = new Thread(this, "read " + channel.name().toLowerCase(Locale.US));
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        @Override
+        public void run() {
+            while (!stopped) {
+                scheduled.set(false); // before draining, so data offered meanwhile unparks again
+                byte[] data;
+                while (!stopped && (data = queue.poll()) != null)
+                    consumer.onRead(channel, data);
+                if (!scheduled.get())
+                    LockSupport.park(this);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,388 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.text.ParseException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * run timed command sequences on a dedicated thread, so timing does not depend on the main looper
+ *
+ * one statement per line, empty lines and lines starting with '#' are ignored
+ *   send <text>            send text followed by newline
+ *   hex <bytes>            send HEX bytes
+ *   wait <ms>              continue <ms> after the previous wait, so time spent in send does not accumulate
+ *   expect <regex> [<ms>]  wait for a line received after the last send, groups are stored in ${1}..${n}
+ *   set <name> <value>     set variable
+ *   add <name> <number>    add to numeric variable
+ *   loop [<count>]         repeat statements up to 'end', forever without count
+ *   end
+ * arguments can contain variables as ${name}
+ */
+class ScriptEngine {
+
+    interface Output {
+        void write(byte[] data) throws IOException; // can block while the write queue is full
+    }
+
+    /**
+     * called from script thread
+     */
+    interface Listener {
+        void onScriptFinished(Script script, Exception e); // e is null if completed or stopped
+    }
+
+    static final long DEFAULT_EXPECT_TIMEOUT = 5000;
+    private static final long SPIN_NANOS = 500_000; // parkNanos can oversleep, so the last part of a wait is spent yielding
+    private static final int MAX_LINES = 64;
+    private static final int MAX_LINE_LENGTH = 1024;
+    private static final Pattern VARIABLE = Pattern.compile("\\$\\{(\\w+)\\}");
+
+    private enum Op { Send, Hex, Wait, Expect, Set, Add, Loop }
+
+    private static class Statement {
+        final Op op;
+        final int line;
+        final String arg1;
+        final String arg2;
+        final Pattern pattern; // expect without variables, compiled once
+        final ArrayList<Statement> body; // loop
+
+        Statement(Op op, int line, String arg1, String arg2, Pattern pattern, ArrayList<Statement> body) {
+            this.op = op;
+            this.line = line;
+            this.arg1 = arg1;
+            this.arg2 = arg2;
+            this.pattern = pattern;
+            this.body = body;
+        }
+    }
+
+    static class Script {
+        final String name;
+        private final ArrayList<Statement> statements;
+
+        private Script(String name, ArrayList<Statement> statements) {
+            this.name = name;
+            this.statements = statements;
+        }
+    }
+
+    private final Output output;
+    private final ExecutorService executor;
+    private final ArrayDeque<String> lines = new ArrayDeque<>(); // received since last send
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+    private boolean lineDiscard;
+    private Future<?> running;
+    private volatile boolean collecting;
+
+    ScriptEngine(Output output) {
+        this.output = output;
+        executor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "script");
+            thread.setPriority(Thread.MAX_PRIORITY);
+            return thread;
+        });
+    }
+
+    /**
+     * @throws ParseException with 1-based line number as error offset
+     */
+    static Script parse(String name, String text) throws ParseException {
+        ArrayDeque<ArrayList<Statement>> blocks = new ArrayDeque<>();
+        ArrayDeque<Integer> loopLines = new ArrayDeque<>();
+        ArrayDeque<String> loopCounts = new ArrayDeque<>();
+        blocks.push(new ArrayList<>());
+        String[] lines = text.split("\r?\n|\r", -1);
+        for (int i = 0; i < lines.length; i++) {
+            int lineNumber = i + 1;
+            String line = lines[i].trim();
+            if (line.isEmpty() || line.startsWith("#"))
+                continue;
+            String[] words = line.split("\\s+", 2);
+            String command = words[0].toLowerCase(Locale.US);
+            String args = words.length > 1 ? words[1] : "";
+            switch (command) {
+                case "send":
+                    blocks.peek().add(new Statement(Op.Send, lineNumber, args, null, null, null));
+                    break;
+                case "hex":
+                    if (!VARIABLE.matcher(args).find() && !args.matches("[0-9A-Fa-f\\s]*"))
+                        throw new ParseException("line " + lineNumber + ": invalid HEX bytes", lineNumber);
+                    blocks.peek().add(new Statement(Op.Hex, lineNumber, args, null, null, null));
+                    break;
+                case "wait":
+                    checkArgs(args, 1, 1, lineNumber, "wait <ms>");
+                    blocks.peek().add(new Statement(Op.Wait, lineNumber, args, null, null, null));
+                    break;
+                case "expect": {
+                    if (args.isEmpty())
+                        throw new ParseException("line " + lineNumber + ": expect <regex> [<ms>]", lineNumber);
+                    String regex = args;
+                    String timeout = null;
+                    int pos = args.lastIndexOf(' ');
+                    if (pos > 0 && args.substring(pos + 1).matches("\\d+|\\$\\{\\w+\\}")) {
+                        regex = args.substring(0, pos).trim();
+                        timeout = args.substring(pos + 1);
+                    }
+                    Pattern pattern = null;
+                    if (!VARIABLE.matcher(regex).find()) {
+                        try {
+                            pattern = Pattern.compile(regex);
+                        } catch (PatternSyntaxException e) {
+                            throw new ParseException("line " + lineNumber + ": " + e.getDescription(), lineNumber);
+                        }
+                    }
+                    blocks.peek().add(new Statement(Op.Expect, lineNumber, regex, timeout, pattern, null));
+                    break;
+                }
+                case "set":
+                case "add": {
+                    String[] nameValue = args.split("\\s+", 2);
+                    if (nameValue.length != 2 || !nameValue[0].matches("\\w+"))
+                        throw new ParseException("line " + lineNumber + ": " + command + " <name> <value>", lineNumber);
+                    Op op = command.equals("set") ? Op.Set : Op.Add;
+                    blocks.peek().add(new Statement(op, lineNumber, nameValue[0], nameValue[1], null, null));
+                    break;
+                }
+                case "loop":
+                    checkArgs(args, 0, 1, lineNumber, "loop [<count>]");
+                    blocks.push(new ArrayList<>());
+                    loopLines.push(lineNumber);
+                    loopCounts.push(args);
+                    break;
+                case "end": {
+                    if (loopLines.isEmpty())
+                        throw new ParseException("line " + lineNumber + ": end without loop", lineNumber);
+                    ArrayList<Statement> body = blocks.pop();
+                    if (body.isEmpty())
+                        throw new ParseException("line " + loopLines.peek() + ": empty loop", loopLines.peek());
+                    String count = loopCounts.pop();
+                    blocks.peek().add(new Statement(Op.Loop, loopLines.pop(), count.isEmpty() ? null : count, null, null, body));
+                    break;
+                }
+                default:
+                    throw new ParseException("line " + lineNumber + ": unknown command '" + words[0] + "'", lineNumber);
+            }
+        }
+        if (!loopLines.isEmpty())
+            throw new ParseException("line " + loopLines.peek() + ": loop without end", loopLines.peek());
+        return new Script(name, blocks.pop());
+    }
+
+    private static void checkArgs(String args, int min, int max, int lineNumber, String usage) throws ParseException {
+        int count = args.isEmpty() ? 0 : args.split("\\s+").length;
+        if (count < min || count > max)
+            throw new ParseException("line " + lineNumber + ": " + usage, lineNumber);
+    }
+
+    /**
+     * @throws IllegalStateException if another script is running
+     */
+    synchronized void start(Script script, byte[] newline, Listener listener) {
+        if (isRunning())
+            throw new IllegalStateException("script already running");
+        synchronized (lines) {
+            lines.clear();
+            line.reset();
+            lineDiscard = false;
+        }
+        collecting = true;
+        running = executor.submit(() -> {
+            Exception error = null;
+            try {
+                new Execution(newline).run(script.statements);
+            } catch (InterruptedException | InterruptedIOException ignored) {
+                // stopped, also while output is blocked by a full write queue
+            } catch (Exception e) {
+                error = e;
+            }
+            collecting = false;
+            listener.onScriptFinished(script, error);
+        });
+    }
+
+    synchronized void stop() {
+        if (running != null)
+            running.cancel(true);
+    }
+
+    synchronized boolean isRunning() {
+        return running != null && !running.isDone();
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * collect received lines for expect, called from receive thread
+     */
+    void onRead(byte[] data) {
+        if (!collecting)
+            return;
+        synchronized (lines) {
+            for (byte b : data) {
+                if (b == '\n') {
+                    if (!lineDiscard) {
+                        byte[] bytes = line.toByteArray();
+                        int length = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+                        if (lines.size() == MAX_LINES)
+                            lines.removeFirst();
+                        lines.add(new String(bytes, 0, length));
+                    }
+                    line.reset();
+                    lineDiscard = false;
+                } else if (line.size() < MAX_LINE_LENGTH) {
+                    line.write(b);
+                } else {
+                    lineDiscard = true; // skip overlong line
+                }
+            }
+            lines.notifyAll();
+        }
+    }
+
+    /**
+     * execution state of one script run, only used in script thread
+     */
+    private class Execution {
+        private final byte[] newline;
+        private final HashMap<String, String> variables = new HashMap<>();
+        private long next = System.nanoTime(); // time line for wait
+
+        Execution(byte[] newline) {
+            this.newline = newline;
+        }
+
+        void run(ArrayList<Statement> statements) throws IOException, InterruptedException {
+            for (Statement statement : statements) {
+                if (Thread.interrupted())
+                    throw new InterruptedException();
+                switch (statement.op) {
+                    case Send: {
+                        byte[] text = substitute(statement.arg1).getBytes();
+                        byte[] data = new byte[text.length + newline.length];
+                        System.arraycopy(text, 0, data, 0, text.length);
+                        System.arraycopy(newline, 0, data, text.length, newline.length);
+                        send(data);
+                        break;
+                    }
+                    case Hex:
+                        send(TextUtil.fromHexString(substitute(statement.arg1)));
+                        break;
+                    case Wait:
+                        next += number(statement, statement.arg1) * 1_000_000;
+                        long now = System.nanoTime();
+                        if (next < now)
+                            next = now; // late, e.g. after expect, don't try to catch up
+                        sleepUntil(next);
+                        break;
+                    case Expect:
+                        expect(statement);
+                        break;
+                    case Set:
+                        variables.put(statement.arg1, substitute(statement.arg2));
+                        break;
+                    case Add:
+                        long value = number(statement, variables.containsKey(statement.arg1) ? variables.get(statement.arg1) : "0");
+                        variables.put(statement.arg1, Long.toString(value + number(statement, statement.arg2)));
+                        break;
+                    case Loop:
+                        long count = statement.arg1 == null ? Long.MAX_VALUE : number(statement, statement.arg1);
+                        for (long i = 0; i < count; i++) {
+                            if (Thread.currentThread().isInterrupted())
+                                throw new InterruptedException(); // also if the body never sleeps
+                            run(statement.body);
+                        }
+                        break;
+                }
+            }
+        }
+
+        private void send(byte[] data) throws IOException {
+            synchronized (lines) {
+                lines.clear();
+            }
+            output.write(data);
+        }
+
+        private void expect(Statement statement) throws IOException, InterruptedException {
+            Pattern pattern = statement.pattern;
+            if (pattern == null) {
+                try {
+                    pattern = Pattern.compile(substitute(statement.arg1));
+                } catch (PatternSyntaxException e) {
+                    throw new IOException("line " + statement.line + ": " + e.getDescription());
+                }
+            }
+            long timeout = statement.arg2 == null ? DEFAULT_EXPECT_TIMEOUT : number(statement, statement.arg2);
+            long deadline = System.nanoTime() + timeout * 1_000_000;
+            synchronized (lines) {
+                while (true) {
+                    while (!lines.isEmpty()) {
+                        Matcher matcher = pattern.matcher(lines.removeFirst());
+                        if (matcher.find()) {
+                            for (int i = 1; i <= matcher.groupCount(); i++)
+                                variables.put(Integer.toString(i), matcher.group(i) != null ? matcher.group(i) : "");
+                            next = System.nanoTime();
+                            return;
+                        }
+                    }
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0)
+                        throw new IOException("line " + statement.line + ": timeout waiting for '" + pattern.pattern() + "'");
+                    lines.wait(remaining / 1_000_000, (int) (remaining % 1_000_000));
+                }
+            }
+        }
+
+        private void sleepUntil(long deadline) throws InterruptedException {
+            long remaining;
+            while ((remaining = deadline - System.nanoTime()) > 0) {
+                if (remaining > SPIN_NANOS)
+                    LockSupport.parkNanos(this, remaining - SPIN_NANOS);
+                else
+                    Thread.yield();
+                if (Thread.interrupted())
+                    throw new InterruptedException();
+            }
+        }
+
+        private String substitute(String text) throws IOException {
+            if (text.indexOf('$') < 0)
+                return text;
+            Matcher matcher = VARIABLE.matcher(text);
+            StringBuffer sb = new StringBuffer();
+            while (matcher.find()) {
+                String value = variables.get(matcher.group(1));
+                if (value == null)
+                    throw new IOException("undefined variable '" + matcher.group(1) + "'");
+                matcher.appendReplacement(sb, Matcher.quoteReplacement(value));
+            }
+            matcher.appendTail(sb);
+            return sb.toString();
+        }
+
+        private long number(Statement statement, String text) throws IOException {
+            String value = substitute(text).trim();
+            try {
+                return Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                throw new IOException("line " + statement.line + ": '" + value + "' is not a number");
+            }
+        }
+    }
+
+}
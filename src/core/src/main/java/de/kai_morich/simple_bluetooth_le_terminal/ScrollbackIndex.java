@@ -0,0 +1,328 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * session history of received data with incremental search index
+ *   - data is stored in fixed size blocks, oldest blocks are dropped above MAX_SIZE
+ *   - each block has a bloom filter of case folded byte trigrams, so search only
+ *     scans blocks that can contain the pattern
+ *   - each block has a line start index, to report line numbers of matches
+ *   - each block has the receive time of its chunks, for export with timestamps
+ *
+ * append() is called with Channel.Data only, from its read lane thread of ReadDispatcher, not the
+ * transport callback thread, search() and forEachChunk() from a background thread.
+ * Full blocks are immutable, so only the current block is copied while holding the lock
+ */
+class ScrollbackIndex {
+
+    static final int BLOCK_SIZE = 64 * 1024;
+    static final long MAX_SIZE = 64L * 1024 * 1024;
+    private static final int FILTER_BITS = 64 * 1024; // ~15% filled with trigrams of 64k text
+    private static final int CONTEXT_SIZE = 40;
+
+    interface ChunkVisitor {
+        void visit(long time, byte[] data, int offset, int length) throws IOException;
+    }
+
+    static class Hit {
+        final long offset; // of match in session
+        final long line;   // 0-based line of match in session
+        final byte[] context; // part of line around match
+        final int contextOffset; // of match in context
+
+        Hit(long offset, long line, byte[] context, int contextOffset) {
+            this.offset = offset;
+            this.line = line;
+            this.context = context;
+            this.contextOffset = contextOffset;
+        }
+    }
+
+    private static class Block {
+        final long offset;    // of data[0] in session
+        final long firstLine; // line of data[0] in session
+        final byte[] data;
+        final long[] filter;
+        int length;
+        int[] lineStarts; // offsets in block following '\n'
+        int lines;
+        int[] chunkStarts; // offsets in block of received chunks
+        long[] chunkTimes;
+        int chunks;
+
+        Block(long offset, long firstLine) {
+            this.offset = offset;
+            this.firstLine = firstLine;
+            data = new byte[BLOCK_SIZE];
+            filter = new long[FILTER_BITS / 64];
+            lineStarts = new int[64];
+            chunkStarts = new int[64];
+            chunkTimes = new long[64];
+        }
+
+        Block(Block other) {
+            offset = other.offset;
+            firstLine = other.firstLine;
+            data = Arrays.copyOf(other.data, other.length);
+            filter = other.filter.clone();
+            length = other.length;
+            lineStarts = Arrays.copyOf(other.lineStarts, other.lines);
+            lines = other.lines;
+            chunkStarts = Arrays.copyOf(other.chunkStarts, other.chunks);
+            chunkTimes = Arrays.copyOf(other.chunkTimes, other.chunks);
+            chunks = other.chunks;
+        }
+
+        void addChunk(int start, long time) {
+            if (chunks == chunkStarts.length) {
+                chunkStarts = Arrays.copyOf(chunkStarts, chunks * 2);
+                chunkTimes = Arrays.copyOf(chunkTimes, chunks * 2);
+            }
+            chunkStarts[chunks] = start;
+            chunkTimes[chunks++] = time;
+        }
+
+        long line(int pos) {
+            int lo = 0, hi = lines; // count line starts <= pos
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (lineStarts[mid] <= pos) lo = mid + 1;
+                else hi = mid;
+            }
+            return firstLine + lo;
+        }
+    }
+
+    private final ArrayDeque<Block> blocks = new ArrayDeque<>();
+    private Block current;
+    private long size;  // bytes appended since clear, including dropped blocks
+    private long lines;
+    private int trigram; // last two folded bytes, also across blocks
+
+    ScrollbackIndex() {
+        clear();
+    }
+
+    synchronized void clear() {
+        blocks.clear();
+        current = new Block(0, 0);
+        size = 0;
+        lines = 0;
+        trigram = 0;
+    }
+
+    synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * oldest available offset, might be > 0 if blocks were dropped
+     */
+    synchronized long getStart() {
+        return blocks.isEmpty() ? current.offset : blocks.peekFirst().offset;
+    }
+
+    /**
+     * @param time receive time in milliseconds
+     */
+    synchronized void append(byte[] data, long time) {
+        append(data, 0, data.length, time);
+    }
+
+    synchronized void append(byte[] data, int offset, int length, long time) {
+        int end = offset + length;
+        while (offset < end) {
+            if (current.length == BLOCK_SIZE) {
+                blocks.addLast(current);
+                current = new Block(size, lines);
+                if ((long) blocks.size() * BLOCK_SIZE > MAX_SIZE)
+                    blocks.removeFirst();
+            }
+            Block block = current;
+            int n = Math.min(end - offset, BLOCK_SIZE - block.length);
+            block.addChunk(block.length, time); // chunks spanning blocks are split
+            System.arraycopy(data, offset, block.data, block.length, n);
+            for (int i = 0; i < n; i++) {
+                byte b = data[offset + i];
+                trigram = ((trigram << 8) | fold(b)) & 0xffffff;
+                if (size + i >= 2)
+                    setBit(block.filter, trigram);
+                if (b == '\n') {
+                    if (block.lines == block.lineStarts.length)
+                        block.lineStarts = Arrays.copyOf(block.lineStarts, block.lines * 2);
+                    block.lineStarts[block.lines++] = block.length + i + 1;
+                    lines++;
+                }
+            }
+            block.length += n;
+            size += n;
+            offset += n;
+        }
+    }
+
+    /**
+     * visit received chunks in order, blocking append() only while copying the current block
+     */
+    void forEachChunk(ChunkVisitor visitor) throws IOException {
+        for (Block block : snapshot()) {
+            for (int i = 0; i < block.chunks; i++) {
+                int start = block.chunkStarts[i];
+                int end = i + 1 < block.chunks ? block.chunkStarts[i + 1] : block.length;
+                visitor.visit(block.chunkTimes[i], block.data, start, end - start);
+            }
+        }
+    }
+
+    private synchronized Block[] snapshot() {
+        Block[] snapshot = new Block[blocks.size() + 1];
+        blocks.toArray(snapshot);
+        snapshot[snapshot.length - 1] = new Block(current);
+        return snapshot;
+    }
+
+    /**
+     * @param ignoreCase ASCII letters only
+     */
+    ArrayList<Hit> search(byte[] pattern, boolean ignoreCase, int maxHits) {
+        ArrayList<Hit> hits = new ArrayList<>();
+        if (pattern.length == 0 || pattern.length > BLOCK_SIZE)
+            return hits;
+        Block[] snapshot = snapshot();
+        int[] trigrams = trigrams(pattern);
+        // Boyer-Moore-Horspool shift by last byte of window
+        int m = pattern.length;
+        int[] shift = new int[256];
+        Arrays.fill(shift, m);
+        for (int j = 0; j < m - 1; j++) {
+            shift[pattern[j] & 0xff] = m - 1 - j;
+            if (ignoreCase)
+                shift[fold(pattern[j])] = shift[upper(pattern[j])] = m - 1 - j;
+        }
+        for (int b = 0; b < snapshot.length && hits.size() < maxHits; b++) {
+            Block block = snapshot[b];
+            // matches spanning from previous block
+            if (b > 0 && pattern.length > 1) {
+                Block prev = snapshot[b - 1];
+                for (int i = Math.max(0, prev.length - pattern.length + 1); i < prev.length && hits.size() < maxHits; i++) {
+                    if (matches(snapshot, b - 1, i, pattern, ignoreCase))
+                        hits.add(hit(snapshot, b - 1, i, pattern.length));
+                }
+            }
+            if (!mightContain(block.filter, trigrams))
+                continue;
+            int last = block.length - m;
+            for (int i = 0; i <= last && hits.size() < maxHits; i += shift[block.data[i + m - 1] & 0xff]) {
+                if (matches(block.data, i, pattern, ignoreCase))
+                    hits.add(hit(snapshot, b, i, m));
+            }
+        }
+        return hits;
+    }
+
+    /**
+     * number of blocks passing the bloom filter pre-check, i.e. scanned by search()
+     */
+    int countCandidates(byte[] pattern) {
+        int[] trigrams = trigrams(pattern);
+        int count = 0;
+        for (Block block : snapshot())
+            if (mightContain(block.filter, trigrams))
+                count++;
+        return count;
+    }
+
+    private static int[] trigrams(byte[] pattern) {
+        int[] trigrams = new int[Math.max(0, pattern.length - 2)];
+        for (int i = 0; i < trigrams.length; i++)
+            trigrams[i] = (fold(pattern[i]) << 16) | (fold(pattern[i + 1]) << 8) | fold(pattern[i + 2]);
+        return trigrams;
+    }
+
+    private static boolean matches(byte[] data, int pos, byte[] pattern, boolean ignoreCase) {
+        for (int j = 0; j < pattern.length; j++) {
+            byte c = data[pos + j];
+            if (c != pattern[j] && !(ignoreCase && fold(c) == fold(pattern[j])))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * match starting in snapshot[b] and continuing in following blocks
+     */
+    private static boolean matches(Block[] snapshot, int b, int pos, byte[] pattern, boolean ignoreCase) {
+        for (int j = 0; j < pattern.length; j++) {
+            while (pos >= snapshot[b].length) {
+                pos -= snapshot[b].length;
+                if (++b == snapshot.length)
+                    return false;
+            }
+            byte c = snapshot[b].data[pos++];
+            if (c != pattern[j] && !(ignoreCase && fold(c) == fold(pattern[j])))
+                return false;
+        }
+        return true;
+    }
+
+    private static Hit hit(Block[] snapshot, int b, int pos, int length) {
+        Block block = snapshot[b];
+        long offset = block.offset + pos;
+        Block lastBlock = snapshot[snapshot.length - 1];
+        long start = Math.max(offset - CONTEXT_SIZE, snapshot[0].offset);
+        long end = Math.min(offset + length + CONTEXT_SIZE, lastBlock.offset + lastBlock.length);
+        for (long i = offset - 1; i >= start; i--) {
+            if (byteAt(snapshot, i) == '\n') {
+                start = i + 1;
+                break;
+            }
+        }
+        for (long i = offset + length; i < end; i++) {
+            byte c = byteAt(snapshot, i);
+            if (c == '\n' || c == '\r') {
+                end = i;
+                break;
+            }
+        }
+        byte[] context = new byte[(int) (end - start)];
+        for (int i = 0; i < context.length; i++)
+            context[i] = byteAt(snapshot, start + i);
+        return new Hit(offset, block.line(pos), context, (int) (offset - start));
+    }
+
+    private static byte byteAt(Block[] snapshot, long offset) {
+        int b = (int) ((offset - snapshot[0].offset) / BLOCK_SIZE);
+        Block block = snapshot[b];
+        return block.data[(int) (offset - block.offset)];
+    }
+
+    private static int fold(byte b) {
+        return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b & 0xff;
+    }
+
+    private static int upper(byte b) {
+        return b >= 'a' && b <= 'z' ? b - ('a' - 'A') : b & 0xff;
+    }
+
+    private static int hash(int trigram) {
+        return (trigram * 0x9E3779B1) >>> (32 - 16); // FILTER_BITS = 2^16
+    }
+
+    private static void setBit(long[] filter, int trigram) {
+        int bit = hash(trigram);
+        filter[bit >>> 6] |= 1L << bit;
+    }
+
+    private static boolean mightContain(long[] filter, int[] trigrams) {
+        for (int trigram : trigrams) {
+            int bit = hash(trigram);
+            if ((filter[bit >>> 6] & (1L << bit)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+}
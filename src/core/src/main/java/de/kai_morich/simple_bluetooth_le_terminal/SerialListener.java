@@ -6,6 +6,6 @@ interface SerialListener {
     void onSerialConnect      ();
     void onSerialConnectError (Exception e);
     void onSerialRead         (byte[] data);                // socket -> service
-    void onSerialRead         (ArrayDeque<byte[]> datas);   // service -> UI thread
+    void onSerialRead         (ArrayDeque<byte[]> datas);   // service -> UI thread, datas only valid during call
     void onSerialIoError      (Exception e);
 }
@@ -0,0 +1,103 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import java.io.IOException;
+
+/**
+ * connection to a serial device, used by SerialService
+ * implemented by SerialSocket for BLE devices and by DeviceSimulator
+ *
+ * listener methods are called from one thread per connection, e.g. the GATT callback thread
+ */
+interface SerialTransport {
+
+    interface WriteListener {
+        void onWriteNext(); // write queue shrunk, called from callback thread
+    }
+
+    /**
+     * source of received data. Data is the serial stream passed to SerialListener,
+     * devices can send other channels with separate characteristics
+     */
+    enum Channel { Data, Telemetry, Log, Ack }
+
+    interface ChannelListener {
+        void onChannelRead(Channel channel, byte[] data); // not for Data, called from same thread as SerialListener
+    }
+
+    String getName();
+
+    String getAddress();
+
+    /**
+     * name of serial profile found while connecting
+     */
+    String getProfile();
+
+    void setWriteListener(WriteListener writeListener);
+
+    void setChannelListener(ChannelListener channelListener);
+
+    /**
+     * limit write rate to what the device can absorb, null to write as fast as possible
+     */
+    void setWritePacer(WritePacer pacer);
+
+    /**
+     * take received data from pool, ignored if data is allocated elsewhere, e.g. by the BLE stack.
+     * The listener releases data to the pool after its last use
+     */
+    void setBufferPool(BufferPool pool);
+
+    /**
+     * max length of data written with one write
+     */
+    int getPayloadSize();
+
+    /**
+     * number of writes queued or in progress
+     */
+    int getWriteQueueSize();
+
+    /**
+     * number of writes queued in priority lane, and highest number since connect
+     */
+    int getWriteQueueDepth(WriteQueue.Priority priority);
+
+    int getMaxWriteQueueDepth(WriteQueue.Priority priority);
+
+    /**
+     * number of writes expired or superseded since connect
+     */
+    long getDroppedWriteCount();
+
+    LinkMetrics getLinkMetrics();
+
+    /**
+     * request connection interval, ignored if not supported
+     */
+    void setConnectionPriority(ConnectionGovernor.Mode mode);
+
+    /**
+     * sample signal strength into LinkMetrics, ignored if not supported or busy
+     */
+    void requestRssi();
+
+    /**
+     * connect-success and most connect-errors are returned asynchronously to listener
+     */
+    void connect(SerialListener listener) throws IOException;
+
+    void disconnect();
+
+    /**
+     * write with WriteQueue.Priority.Normal
+     */
+    void write(byte[] data) throws IOException;
+
+    /**
+     * high priority data is written before queued normal data, after the chunk in progress.
+     * Expired, superseded and on disconnect remaining requests are reported to the request listener
+     */
+    void write(WriteRequest request) throws IOException;
+
+}
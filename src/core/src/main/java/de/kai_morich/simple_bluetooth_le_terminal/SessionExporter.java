@@ -0,0 +1,239 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * stream session data or scrollback text to a channel
+ *
+ * output is formatted chunk by chunk into a fixed size buffer, which is written whenever full,
+ * so memory use does not depend on session size
+ */
+class SessionExporter {
+
+    enum Format {
+        Raw     ("bin", "application/octet-stream"),
+        HexDump ("txt", "text/plain"),
+        Csv     ("csv", "text/csv"),
+        Text    ("txt", "text/plain");
+
+        final String extension;
+        final String mimeType;
+
+        Format(String extension, String mimeType) {
+            this.extension = extension;
+            this.mimeType = mimeType;
+        }
+    }
+
+    interface TextSource {
+        /**
+         * copy text from offset into chars, at most chars.length
+         * @return number of chars copied
+         */
+        int getChars(int offset, char[] chars) throws IOException;
+    }
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    static final int TEXT_CHUNK_SIZE = 4096;
+    private static final byte[] HEX_DIGITS = {'0','1','2','3','4','5','6','7','8','9','A','B','C','D','E','F'};
+
+    private final WritableByteChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.US);
+    private final Date date = new Date();
+
+    // HexDump state, lines continue across chunks
+    private final byte[] hexLine = new byte[16];
+    private int hexLineLength;
+    private long hexAddress;
+
+    // Text state, CR+LF can be split across chunks
+    private boolean pendingCr;
+
+    SessionExporter(WritableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * received data of session
+     */
+    void exportSession(ScrollbackIndex scrollback, Format format) throws IOException {
+        hexAddress = scrollback.getStart();
+        if (format == Format.Csv)
+            put("time,length,hex,text\n");
+        scrollback.forEachChunk((time, data, offset, length) -> {
+            switch (format) {
+                case Raw:     putRaw(data, offset, length); break;
+                case HexDump: putHexDump(data, offset, length); break;
+                case Csv:     putCsv(time, data, offset, length); break;
+                case Text:    putText(data, offset, length); break;
+            }
+        });
+        if (format == Format.HexDump && hexLineLength > 0)
+            putHexLine();
+        flush();
+    }
+
+    /**
+     * scrollback text as UTF-8, copied and encoded in chunks of TEXT_CHUNK_SIZE chars
+     */
+    void exportText(int length, TextSource source) throws IOException {
+        CharsetEncoder encoder = Charset.forName("UTF-8").newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        char[] chars = new char[Math.min(TEXT_CHUNK_SIZE, Math.max(2, length))];
+        int pos = 0;
+        while (pos < length) {
+            int count = source.getChars(pos, chars);
+            if (count <= 0)
+                throw new IOException("text truncated");
+            if (pos + count < length && count > 1 && Character.isHighSurrogate(chars[count - 1]))
+                count--; // keep surrogate pair in one chunk
+            encode(encoder, CharBuffer.wrap(chars, 0, count), false);
+            pos += count;
+        }
+        encode(encoder, CharBuffer.allocate(0), true);
+        while (encoder.flush(buffer) == CoderResult.OVERFLOW)
+            flush();
+        flush();
+    }
+
+    private void encode(CharsetEncoder encoder, CharBuffer chars, boolean endOfInput) throws IOException {
+        while (encoder.encode(chars, buffer, endOfInput) == CoderResult.OVERFLOW)
+            flush();
+    }
+
+    private void putRaw(byte[] data, int offset, int length) throws IOException {
+        while (length > 0) {
+            int n = Math.min(length, buffer.remaining());
+            buffer.put(data, offset, n);
+            offset += n;
+            length -= n;
+            if (!buffer.hasRemaining())
+                flush();
+        }
+    }
+
+    /**
+     * 00000000  48 65 6C 6C 6F 0D 0A 00  00 00 00 00 00 00 00 00  |Hello...........|
+     */
+    private void putHexDump(byte[] data, int offset, int length) throws IOException {
+        for (int i = offset; i < offset + length; i++) {
+            hexLine[hexLineLength++] = data[i];
+            if (hexLineLength == hexLine.length)
+                putHexLine();
+        }
+    }
+
+    private void putHexLine() throws IOException {
+        for (int shift = 28; shift >= 0; shift -= 4)
+            put(HEX_DIGITS[(int) (hexAddress >>> shift) & 0xf]);
+        put(' ');
+        for (int i = 0; i < hexLine.length; i++) {
+            put(' ');
+            if (i == 8)
+                put(' ');
+            if (i < hexLineLength) {
+                putHex(hexLine[i]);
+            } else {
+                put(' ');
+                put(' ');
+            }
+        }
+        put(' ');
+        put(' ');
+        put('|');
+        for (int i = 0; i < hexLineLength; i++) {
+            int c = hexLine[i] & 0xff;
+            put(c >= 32 && c < 127 ? c : '.');
+        }
+        put('|');
+        put('\n');
+        hexAddress += hexLineLength;
+        hexLineLength = 0;
+    }
+
+    /**
+     * one line per received chunk, text uses caret notation for control characters
+     */
+    private void putCsv(long time, byte[] data, int offset, int length) throws IOException {
+        date.setTime(time);
+        put(dateFormat.format(date));
+        put(',');
+        put(Integer.toString(length));
+        put(',');
+        for (int i = offset; i < offset + length; i++) {
+            if (i > offset)
+                put(' ');
+            putHex(data[i]);
+        }
+        put(',');
+        put('"');
+        for (int i = offset; i < offset + length; i++) {
+            int c = data[i] & 0xff;
+            if (c < 32 || c == 127) {
+                put('^');
+                put(c ^ 64);
+            } else if (c == '"') {
+                put('"');
+                put('"');
+            } else {
+                put(c);
+            }
+        }
+        put('"');
+        put('\n');
+    }
+
+    /**
+     * CR+LF and single CR as LF, other control characters except TAB removed
+     */
+    private void putText(byte[] data, int offset, int length) throws IOException {
+        for (int i = offset; i < offset + length; i++) {
+            int c = data[i] & 0xff;
+            if (c == '\n' && pendingCr) {
+                pendingCr = false;
+                continue;
+            }
+            pendingCr = c == '\r';
+            if (c == '\r' || c == '\n')
+                put('\n');
+            else if (c >= 32 && c != 127 || c == '\t')
+                put(c);
+        }
+    }
+
+    private void putHex(byte b) throws IOException {
+        put(HEX_DIGITS[(b >> 4) & 0xf]);
+        put(HEX_DIGITS[b & 0xf]);
+    }
+
+    private void put(String s) throws IOException {
+        for (int i = 0; i < s.length(); i++)
+            put(s.charAt(i)); // ASCII only
+    }
+
+    private void put(int b) throws IOException {
+        if (!buffer.hasRemaining())
+            flush();
+        buffer.put((byte) b);
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+
+}
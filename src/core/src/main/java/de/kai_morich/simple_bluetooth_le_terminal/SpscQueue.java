@@ -0,0 +1,93 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * single producer / single consumer queue, lock free as long as the ring does not overflow
+ *   - producer and consumer each own one index, published with ordered stores (lazySet)
+ *   - ring slots are reused, so no allocation per element
+ *   - if the ring is full, elements go to a synchronized overflow queue. The producer keeps
+ *     using it until the consumer has emptied it, so the element order is preserved
+ */
+final class SpscQueue<E> {
+
+    private final AtomicReferenceArray<E> ring;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong(); // next index to poll, written by consumer
+    private final AtomicLong tail = new AtomicLong(); // next index to offer, written by producer
+    private final ArrayDeque<E> overflow = new ArrayDeque<>();
+    private volatile boolean overflowed;
+
+    /**
+     * @param capacity rounded up to power of 2
+     */
+    SpscQueue(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        ring = new AtomicReferenceArray<>(size);
+        mask = size - 1;
+    }
+
+    /**
+     * producer thread only
+     */
+    void offer(E e) {
+        if (!overflowed) {
+            long t = tail.get();
+            if (t - head.get() <= mask) {
+                ring.lazySet((int) t & mask, e);
+                tail.lazySet(t + 1);
+                return;
+            }
+        }
+        synchronized (overflow) {
+            overflow.add(e);
+            overflowed = true;
+        }
+    }
+
+    /**
+     * consumer thread only
+     * @return null if empty
+     */
+    E poll() {
+        E e = pollRing();
+        if (e != null || !overflowed)
+            return e;
+        synchronized (overflow) {
+            // ring might have been filled after pollRing(), its elements are older than the overflow elements
+            e = pollRing();
+            if (e != null)
+                return e;
+            e = overflow.poll();
+            if (overflow.isEmpty())
+                overflowed = false;
+            return e;
+        }
+    }
+
+    private E pollRing() {
+        long h = head.get();
+        if (h == tail.get())
+            return null;
+        int index = (int) h & mask;
+        E e = ring.get(index);
+        ring.lazySet(index, null);
+        head.lazySet(h + 1);
+        return e;
+    }
+
+    /**
+     * approximate, if called while other thread modifies queue
+     */
+    int size() {
+        int size = (int) (tail.get() - head.get());
+        if (overflowed) {
+            synchronized (overflow) {
+                size += overflow.size();
+            }
+        }
+        return size;
+    }
+}
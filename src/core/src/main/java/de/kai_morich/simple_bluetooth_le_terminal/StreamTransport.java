@@ -0,0 +1,339 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+
+/**
+ * SerialTransport over a byte stream, e.g. an LE L2CAP connection-oriented channel, which has
+ * much less per-packet overhead than GATT notifications and writes
+ *
+ *   read thread:  opens the stream with the Connector, then reads until disconnect
+ *   write thread: writes WriteQueue chunks one after another, a chunk is confirmed when write() returned
+ *
+ * chunks have Connection.getPayloadSize(), so each write is one L2CAP SDU and high priority
+ * data still waits for one chunk at most
+ *
+ * the stream comes from a Connector, so the transport can run against a local stand-in, e.g.
+ * piped streams as in Benchmark
+ *
+ * SerialListener methods are called from the read thread, WriteListener and request listeners from the write thread
+ */
+class StreamTransport implements SerialTransport {
+
+    interface Connection extends Closeable {
+        InputStream getInputStream() throws IOException;
+        OutputStream getOutputStream() throws IOException;
+        int getPayloadSize(); // max length of one write
+    }
+
+    interface Connector {
+        Connection open() throws IOException; // blocking, called from read thread
+    }
+
+    private static final int READ_BUFFER_SIZE = 4096;
+
+    private final String name;
+    private final String address;
+    private final String profile;
+    private final Connector connector;
+    private final WriteQueue writeQueue = new WriteQueue();
+    private final LinkMetrics linkMetrics = new LinkMetrics();
+    private volatile SerialListener listener;
+    private volatile WriteListener writeListener;
+    private volatile int payloadSize = READ_BUFFER_SIZE;
+    private volatile BufferPool pool;
+
+    // guarded by writeQueue
+    private Thread readThread, writeThread;
+    private Connection connection;
+    private boolean connected, closed, failed;
+    private byte[] nextChunk; // taken from queue, not yet written
+
+    StreamTransport(String name, String address, String profile, Connector connector) {
+        this.name = name;
+        this.address = address;
+        this.profile = profile;
+        this.connector = connector;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public String getAddress() {
+        return address;
+    }
+
+    @Override
+    public String getProfile() {
+        return profile;
+    }
+
+    @Override
+    public void setWriteListener(WriteListener writeListener) {
+        this.writeListener = writeListener;
+    }
+
+    /**
+     * stream has Data channel only
+     */
+    @Override
+    public void setChannelListener(ChannelListener channelListener) {
+    }
+
+    @Override
+    public void setWritePacer(WritePacer pacer) {
+        synchronized (writeQueue) {
+            writeQueue.setPacer(pacer);
+            writeQueue.notifyAll(); // queued chunks might be allowed now
+        }
+    }
+
+    @Override
+    public void setBufferPool(BufferPool pool) {
+        this.pool = pool;
+    }
+
+    @Override
+    public int getPayloadSize() {
+        return payloadSize;
+    }
+
+    @Override
+    public int getWriteQueueSize() {
+        synchronized (writeQueue) {
+            return writeQueue.size();
+        }
+    }
+
+    @Override
+    public int getWriteQueueDepth(WriteQueue.Priority priority) {
+        synchronized (writeQueue) {
+            return writeQueue.getDepth(priority);
+        }
+    }
+
+    @Override
+    public int getMaxWriteQueueDepth(WriteQueue.Priority priority) {
+        synchronized (writeQueue) {
+            return writeQueue.getMaxDepth(priority);
+        }
+    }
+
+    @Override
+    public long getDroppedWriteCount() {
+        synchronized (writeQueue) {
+            return writeQueue.getDroppedCount();
+        }
+    }
+
+    @Override
+    public LinkMetrics getLinkMetrics() {
+        return linkMetrics;
+    }
+
+    @Override
+    public void setConnectionPriority(ConnectionGovernor.Mode mode) {
+        // not supported by streams
+    }
+
+    @Override
+    public void requestRssi() {
+        // not supported by streams
+    }
+
+    @Override
+    public void connect(SerialListener listener) throws IOException {
+        synchronized (writeQueue) {
+            if (readThread != null)
+                throw new IOException("already connected");
+            this.listener = listener;
+            readThread = new Thread(this::run, name + " read");
+            readThread.start();
+        }
+    }
+
+    @Override
+    public void disconnect() {
+        Connection connection;
+        ArrayList<WriteRequest> finished;
+        synchronized (writeQueue) {
+            listener = null;
+            closed = true;
+            connected = false;
+            connection = this.connection;
+            this.connection = null;
+            if (writeThread != null)
+                writeThread.interrupt();
+            nextChunk = null;
+            writeQueue.clear();
+            finished = writeQueue.pollFinished();
+            writeQueue.notifyAll();
+        }
+        close(connection); // unblocks read thread
+        notifyFinished(finished);
+    }
+
+    @Override
+    public void write(byte[] data) throws IOException {
+        write(new WriteRequest(data));
+    }
+
+    @Override
+    public void write(WriteRequest request) throws IOException {
+        ArrayList<WriteRequest> finished;
+        synchronized (writeQueue) {
+            if (!connected)
+                throw new IOException("not connected");
+            byte[] data0 = writeQueue.add(request, payloadSize, true);
+            if (data0 != null)
+                nextChunk = data0;
+            writeQueue.notifyAll(); // also if held back by pacer
+            linkMetrics.setWriteQueueSize(writeQueue.size());
+            finished = writeQueue.pollFinished();
+        }
+        notifyFinished(finished);
+    }
+
+    private static void notifyFinished(ArrayList<WriteRequest> finished) {
+        if (finished != null)
+            for (WriteRequest request : finished)
+                request.notifyFinished();
+    }
+
+    private static void close(Connection connection) {
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void run() {
+        Connection connection;
+        InputStream in;
+        OutputStream out;
+        try {
+            connection = connector.open();
+        } catch (IOException e) {
+            SerialListener listener = this.listener;
+            if (listener != null)
+                listener.onSerialConnectError(e);
+            return;
+        }
+        try {
+            in = connection.getInputStream();
+            out = connection.getOutputStream();
+        } catch (IOException e) {
+            close(connection);
+            SerialListener listener = this.listener;
+            if (listener != null)
+                listener.onSerialConnectError(e);
+            return;
+        }
+        int payloadSize = connection.getPayloadSize() > 0 ? connection.getPayloadSize() : READ_BUFFER_SIZE;
+        synchronized (writeQueue) {
+            if (closed) { // disconnect() while opening
+                close(connection);
+                return;
+            }
+            this.connection = connection;
+            this.payloadSize = payloadSize;
+            connected = true;
+            writeThread = new Thread(() -> writeLoop(out), name + " write");
+            writeThread.start();
+        }
+        linkMetrics.setMtu(payloadSize, payloadSize);
+        SerialListener listener = this.listener;
+        if (listener != null)
+            listener.onSerialConnect();
+        byte[] buffer = new byte[Math.max(READ_BUFFER_SIZE, payloadSize)];
+        try {
+            int length;
+            while ((length = in.read(buffer)) >= 0) {
+                if (length == 0)
+                    continue;
+                linkMetrics.onRead(length);
+                listener = this.listener;
+                if (listener != null) {
+                    BufferPool pool = this.pool;
+                    byte[] data = pool != null ? pool.acquire(length) : new byte[length];
+                    System.arraycopy(buffer, 0, data, 0, length);
+                    listener.onSerialRead(data);
+                }
+            }
+            onIoError(new IOException("connection closed by device"));
+        } catch (IOException e) {
+            onIoError(e);
+        }
+    }
+
+    private void writeLoop(OutputStream out) {
+        try {
+            while (true) {
+                byte[] data;
+                synchronized (writeQueue) {
+                    while (!closed && nextChunk == null) {
+                        if (writeQueue.isBlocked()) // by pacer
+                            nextChunk = writeQueue.next(true);
+                        if (nextChunk == null) {
+                            long delay = writeQueue.getPacerDelay();
+                            writeQueue.wait(delay > 0 ? Math.max(1, delay / 1_000_000) : 0);
+                        }
+                    }
+                    if (closed)
+                        return;
+                    data = nextChunk;
+                    nextChunk = null;
+                }
+                linkMetrics.onWriteStart(data.length, System.nanoTime());
+                out.write(data);
+                out.flush();
+                linkMetrics.onWriteDone(System.nanoTime());
+                ArrayList<WriteRequest> finished;
+                synchronized (writeQueue) {
+                    if (closed)
+                        return;
+                    nextChunk = writeQueue.next(true);
+                    linkMetrics.setWriteQueueSize(writeQueue.size());
+                    finished = writeQueue.pollFinished();
+                }
+                notifyFinished(finished);
+                WriteListener writeListener = this.writeListener;
+                if (writeListener != null)
+                    writeListener.onWriteNext();
+            }
+        } catch (InterruptedException ignored) {
+            // disconnect
+        } catch (IOException e) {
+            onIoError(e);
+        }
+    }
+
+    /**
+     * reported once, not after disconnect() closed the stream
+     */
+    private void onIoError(IOException e) {
+        SerialListener listener;
+        ArrayList<WriteRequest> finished;
+        synchronized (writeQueue) {
+            if (closed || failed)
+                return;
+            failed = true;
+            connected = false;
+            writeQueue.resetPending();
+            finished = writeQueue.pollFinished();
+            listener = this.listener;
+        }
+        notifyFinished(finished);
+        if (listener != null)
+            listener.onSerialIoError(e);
+    }
+
+}
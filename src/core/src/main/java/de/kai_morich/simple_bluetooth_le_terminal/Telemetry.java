@@ -0,0 +1,308 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+/**
+ * numeric readings parsed from received text lines, e.g. "23.5,1013" or "temp=23.5 hum:45"
+ *   - the n-th number in a line goes to channel n, named by the label before it if any
+ *   - values and times are kept in primitive ring buffers per channel, so parsing does
+ *     not allocate once a channel exists
+ *
+ * onRead() is called from one read lane thread of ReadDispatcher, not the transport callback
+ * thread, copy() from the UI thread. The lock is only contended by the UI thread
+ */
+class Telemetry {
+
+    static final int MAX_CHANNELS = 8;
+    static final int CAPACITY = 16384; // points per channel, power of 2
+    private static final int MAX_LINE_LENGTH = 256;
+    private static final double[] POWERS_OF_10 = new double[23];
+
+    static {
+        POWERS_OF_10[0] = 1;
+        for (int i = 1; i < POWERS_OF_10.length; i++)
+            POWERS_OF_10[i] = POWERS_OF_10[i - 1] * 10;
+    }
+
+    static class Channel {
+        final String name;
+        private final long[] times = new long[CAPACITY];
+        private final float[] values = new float[CAPACITY];
+        private long count; // total, index in ring is count % CAPACITY
+
+        Channel(String name) {
+            this.name = name;
+        }
+    }
+
+    private final byte[] line = new byte[MAX_LINE_LENGTH];
+    private int lineLength;
+    private boolean lineDiscard;
+    private final Channel[] channels = new Channel[MAX_CHANNELS];
+    private volatile int channelCount;
+    private volatile long updates;
+    private double number; // result of parseNumber(), avoids boxing
+
+    /**
+     * incremented on new values, to redraw only when changed
+     */
+    long getUpdates() {
+        return updates;
+    }
+
+    int getChannelCount() {
+        return channelCount;
+    }
+
+    Channel getChannel(int index) {
+        return channels[index];
+    }
+
+    synchronized void clear() {
+        for (int i = 0; i < channelCount; i++)
+            channels[i] = null;
+        channelCount = 0;
+        lineLength = 0;
+        lineDiscard = false;
+        updates++;
+    }
+
+    /**
+     * @param time in microseconds, monotonic
+     */
+    synchronized void onRead(byte[] data, long time) {
+        for (byte b : data) {
+            if (b == '\n' || b == '\r') {
+                if (!lineDiscard && lineLength > 0)
+                    parseLine(time);
+                lineLength = 0;
+                lineDiscard = false;
+            } else if (lineLength < line.length) {
+                line[lineLength++] = b;
+            } else {
+                lineDiscard = true;
+            }
+        }
+    }
+
+    private void parseLine(long time) {
+        int channel = 0;
+        int pos = 0;
+        boolean added = false;
+        while (pos < lineLength && channel < MAX_CHANNELS) {
+            int start = pos;
+            // number starts at token boundary, so 'ch1' is not read as 1
+            if (isNumberStart(pos) && (pos == 0 || !isWordChar(line[pos - 1]))) {
+                int end = parseNumber(pos);
+                if (end > pos) {
+                    Channel c = channels[channel];
+                    if (c == null) {
+                        c = new Channel(label(start, channel));
+                        channels[channel] = c;
+                        channelCount = channel + 1;
+                    }
+                    int index = (int) (c.count & (CAPACITY - 1));
+                    c.times[index] = time;
+                    c.values[index] = (float) number;
+                    c.count++;
+                    channel++;
+                    added = true;
+                    pos = end;
+                    continue;
+                }
+            }
+            pos++;
+        }
+        if (added)
+            updates++;
+    }
+
+    /**
+     * parse [+-]digits[.digits][e[+-]digits] without allocation
+     * @return end position, or start if no number
+     */
+    private int parseNumber(int start) {
+        int pos = start;
+        boolean negative = false;
+        if (line[pos] == '-' || line[pos] == '+') {
+            negative = line[pos] == '-';
+            pos++;
+        }
+        long mantissa = 0;
+        int exponent = 0;
+        int digits = 0;
+        while (pos < lineLength && line[pos] >= '0' && line[pos] <= '9') {
+            if (mantissa < 100_000_000_000_000_000L) mantissa = mantissa * 10 + (line[pos] - '0');
+            else exponent++;
+            pos++;
+            digits++;
+        }
+        if (pos < lineLength && line[pos] == '.') {
+            pos++;
+            while (pos < lineLength && line[pos] >= '0' && line[pos] <= '9') {
+                if (mantissa < 100_000_000_000_000_000L) {
+                    mantissa = mantissa * 10 + (line[pos] - '0');
+                    exponent--;
+                }
+                pos++;
+                digits++;
+            }
+        }
+        if (digits == 0)
+            return start;
+        if (pos + 1 < lineLength && (line[pos] == 'e' || line[pos] == 'E')) {
+            int p = pos + 1;
+            boolean expNegative = false;
+            if (line[p] == '-' || line[p] == '+') {
+                expNegative = line[p] == '-';
+                p++;
+            }
+            int e = 0;
+            int expDigits = 0;
+            while (p < lineLength && line[p] >= '0' && line[p] <= '9' && expDigits < 3) {
+                e = e * 10 + (line[p] - '0');
+                p++;
+                expDigits++;
+            }
+            if (expDigits > 0) {
+                exponent += expNegative ? -e : e;
+                pos = p;
+            }
+        }
+        if (pos < lineLength && isWordChar(line[pos]))
+            return start; // e.g. 12ab
+        double value = mantissa;
+        if (exponent > 0)
+            value = exponent < POWERS_OF_10.length ? value * POWERS_OF_10[exponent] : Math.pow(10, exponent) * value;
+        else if (exponent < 0)
+            value = -exponent < POWERS_OF_10.length ? value / POWERS_OF_10[-exponent] : value / Math.pow(10, -exponent);
+        number = negative ? -value : value;
+        return pos;
+    }
+
+    private boolean isNumberStart(int pos) {
+        byte b = line[pos];
+        if (b >= '0' && b <= '9')
+            return true;
+        if ((b == '-' || b == '+' || b == '.') && pos + 1 < lineLength) {
+            byte c = line[pos + 1];
+            return c >= '0' && c <= '9' || c == '.' && b != '.';
+        }
+        return false;
+    }
+
+    private static boolean isWordChar(byte b) {
+        return b >= '0' && b <= '9' || b >= 'A' && b <= 'Z' || b >= 'a' && b <= 'z' || b == '_';
+    }
+
+    /**
+     * label before number, e.g. 'temp' for 'temp=23.5' or 'temp: 23.5', else channel number
+     */
+    private String label(int numberStart, int channel) {
+        int end = numberStart;
+        while (end > 0 && line[end - 1] == ' ')
+            end--;
+        if (end > 0 && (line[end - 1] == '=' || line[end - 1] == ':')) {
+            end--;
+            while (end > 0 && line[end - 1] == ' ')
+                end--;
+            int start = end;
+            while (start > 0 && isWordChar(line[start - 1]))
+                start--;
+            if (start < end)
+                return new String(line, start, end - start);
+        }
+        return Integer.toString(channel + 1);
+    }
+
+    /**
+     * time of last value in any channel
+     */
+    synchronized long getLastTime() {
+        long time = Long.MIN_VALUE;
+        for (int i = 0; i < channelCount; i++) {
+            Channel c = channels[i];
+            if (c.count > 0)
+                time = Math.max(time, c.times[(int) ((c.count - 1) & (CAPACITY - 1))]);
+        }
+        return time;
+    }
+
+    /**
+     * copy points of channel with time >= since
+     * @return number of points copied, at most times.length
+     */
+    synchronized int copy(int channelIndex, long since, long[] times, float[] values) {
+        Channel c = channels[channelIndex];
+        if (c == null)
+            return 0;
+        int available = (int) Math.min(Math.min(c.count, CAPACITY), times.length);
+        long first = c.count - available;
+        // skip points before since, times are ascending
+        long lo = first, hi = c.count;
+        while (lo < hi) {
+            long mid = (lo + hi) >>> 1;
+            if (c.times[(int) (mid & (CAPACITY - 1))] < since) lo = mid + 1;
+            else hi = mid;
+        }
+        int n = (int) (c.count - lo);
+        int index = (int) (lo & (CAPACITY - 1));
+        int n1 = Math.min(n, CAPACITY - index);
+        System.arraycopy(c.times, index, times, 0, n1);
+        System.arraycopy(c.values, index, values, 0, n1);
+        System.arraycopy(c.times, 0, times, n1, n - n1);
+        System.arraycopy(c.values, 0, values, n1, n - n1);
+        return n;
+    }
+
+    /**
+     * Largest-Triangle-Three-Buckets downsampling (Steinarsson 2013), keeps first and last
+     * point and per bucket the point forming the largest triangle with its neighbours,
+     * so peaks survive unlike with plain decimation
+     * @return number of points in out arrays, count if count <= threshold
+     */
+    static int lttb(long[] x, float[] y, int count, int threshold, long[] outX, float[] outY) {
+        if (threshold >= count || threshold < 3) {
+            int n = Math.min(count, outX.length);
+            System.arraycopy(x, 0, outX, 0, n);
+            System.arraycopy(y, 0, outY, 0, n);
+            return n;
+        }
+        long x0 = x[0]; // relative x, keeps precision of doubles
+        double bucketSize = (double) (count - 2) / (threshold - 2);
+        int a = 0;
+        int out = 0;
+        outX[out] = x[0];
+        outY[out++] = y[0];
+        for (int i = 0; i < threshold - 2; i++) {
+            int rangeStart = (int) (i * bucketSize) + 1;
+            int rangeEnd = (int) ((i + 1) * bucketSize) + 1;
+            // average of next bucket
+            int nextStart = rangeEnd;
+            int nextEnd = Math.min((int) ((i + 2) * bucketSize) + 1, count);
+            double avgX = 0, avgY = 0;
+            for (int j = nextStart; j < nextEnd; j++) {
+                avgX += x[j] - x0;
+                avgY += y[j];
+            }
+            int nextCount = nextEnd - nextStart;
+            avgX /= nextCount;
+            avgY /= nextCount;
+            double ax = x[a] - x0, ay = y[a];
+            double maxArea = -1;
+            int maxIndex = rangeStart;
+            for (int j = rangeStart; j < rangeEnd; j++) {
+                double area = Math.abs((ax - avgX) * (y[j] - ay) - (ax - (x[j] - x0)) * (avgY - ay));
+                if (area > maxArea) {
+                    maxArea = area;
+                    maxIndex = j;
+                }
+            }
+            outX[out] = x[maxIndex];
+            outY[out++] = y[maxIndex];
+            a = maxIndex;
+        }
+        outX[out] = x[count - 1];
+        outY[out++] = y[count - 1];
+        return out;
+    }
+
+}
@@ -0,0 +1,81 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * decode received fragments as one UTF-8 stream
+ *   - incomplete multibyte sequences at the end of a fragment are kept until the next fragment
+ *   - with CR+LF newline, CR directly before LF is removed, also if CR and LF come in
+ *     separate fragments. A CR at the end of a fragment is held back until the next fragment
+ *
+ * the returned buffer is reused by the next decode() call, only accessed in main thread
+ */
+class TextDecoder {
+
+    private final CharsetDecoder decoder = Charset.forName("UTF-8").newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private ByteBuffer in = ByteBuffer.allocate(256);
+    private CharBuffer out = CharBuffer.allocate(256);
+    private boolean crlf;
+    private boolean pendingCr;
+
+    /**
+     * @param crlf remove CR before LF
+     */
+    void setCrLf(boolean crlf) {
+        if (this.crlf && !crlf)
+            pendingCr = false;
+        this.crlf = crlf;
+    }
+
+    void reset() {
+        decoder.reset();
+        in.clear();
+        pendingCr = false;
+    }
+
+    CharSequence decode(byte[] data) {
+        if (in.remaining() < data.length) {
+            ByteBuffer buffer = ByteBuffer.allocate(Integer.highestOneBit(in.position() + data.length) << 1);
+            in.flip();
+            buffer.put(in);
+            in = buffer;
+        }
+        in.put(data);
+        in.flip();
+        int capacity = in.remaining() + 1; // UTF-8 never has more chars than bytes, +1 for pending CR
+        if (out.capacity() < capacity)
+            out = CharBuffer.allocate(Integer.highestOneBit(capacity) << 1);
+        out.clear();
+        if (pendingCr)
+            out.put('\r');
+        decoder.decode(in, out, false);
+        in.compact(); // keeps incomplete sequence
+        // CR/LF normalization in place
+        char[] chars = out.array();
+        int length = out.position();
+        int pos = 0;
+        pendingCr = false;
+        for (int i = 0; i < length; i++) {
+            char c = chars[i];
+            if (crlf && c == '\r') {
+                if (i + 1 == length) {
+                    pendingCr = true;
+                    break;
+                }
+                if (chars[i + 1] == '\n')
+                    continue;
+            }
+            chars[pos++] = c;
+        }
+        out.position(0);
+        out.limit(pos);
+        return out;
+    }
+
+}
@@ -0,0 +1,85 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+final class TextUtil {
+
+    final static String newline_crlf = "\r\n";
+    final static String newline_lf = "\n";
+
+    static byte[] fromHexString(final CharSequence s) {
+        byte[] buf = new byte[hexLength(s)];
+        fromHexString(s, buf, 0);
+        return buf;
+    }
+
+    /**
+     * @return number of bytes in HEX string, non HEX characters are ignored
+     */
+    static int hexLength(final CharSequence s) {
+        int nibbles = 0;
+        for(int pos = 0; pos<s.length(); pos++)
+            if(hexDigit(s.charAt(pos)) >= 0)
+                nibbles++;
+        return (nibbles+1) / 2;
+    }
+
+    /**
+     * parse HEX string directly into buf, which needs hexLength(s) bytes from offset
+     * @return offset after last byte
+     */
+    static int fromHexString(final CharSequence s, byte[] buf, int offset) {
+        int b = 0;
+        int nibble = 0;
+        for(int pos = 0; pos<s.length(); pos++) {
+            int d = hexDigit(s.charAt(pos));
+            if(d < 0)
+                continue;
+            b = b*16 + d;
+            if(++nibble == 2) {
+                buf[offset++] = (byte)b;
+                nibble = 0;
+                b = 0;
+            }
+        }
+        if(nibble>0)
+            buf[offset++] = (byte)b;
+        return offset;
+    }
+
+    private static int hexDigit(char c) {
+        if(c>='0' && c<='9') return c-'0';
+        if(c>='A' && c<='F') return c-'A'+10;
+        if(c>='a' && c<='f') return c-'a'+10;
+        return -1;
+    }
+
+    static String toHexString(final byte[] buf) {
+        return toHexString(buf, 0, buf.length);
+    }
+
+    static String toHexString(final byte[] buf, int begin, int end) {
+        StringBuilder sb = new StringBuilder(3*(end-begin));
+        toHexString(sb, buf, begin, end);
+        return sb.toString();
+    }
+
+    static void toHexString(StringBuilder sb, final byte[] buf) {
+        toHexString(sb, buf, 0, buf.length);
+    }
+
+    static void toHexString(StringBuilder sb, final byte[] buf, int begin, int end) {
+        for(int pos=begin; pos<end; pos++) {
+            if(sb.length()>0)
+                sb.append(' ');
+            int c;
+            c = (buf[pos]&0xff) / 16;
+            if(c >= 10) c += 'A'-10;
+            else        c += '0';
+            sb.append((char)c);
+            c = (buf[pos]&0xff) % 16;
+            if(c >= 10) c += 'A'-10;
+            else        c += '0';
+            sb.append((char)c);
+        }
+    }
+
+}
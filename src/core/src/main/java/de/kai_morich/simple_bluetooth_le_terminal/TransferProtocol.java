@@ -0,0 +1,149 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+/**
+ * framing of windowed file transfer, shared by TransferSender and TransferReceiver
+ *
+ * frame: A5 5A type length16 payload crc16, little endian, CRC-16/CCITT over type, length and payload
+ *   START  sender    size32 blockSize16 crc32 name   receiver answers ACK, next > 0 to resume
+ *   DATA   sender    block32 data
+ *   END    sender                                    receiver answers FIN
+ *   ACK    receiver  next32 bitmap32                 all blocks < next received, bit i set if block next+1+i received
+ *   FIN    receiver  status8                         FIN_OK if complete with matching CRC-32
+ *   ABORT  both      reason
+ */
+class TransferProtocol {
+
+    static final int START = 1;
+    static final int DATA  = 2;
+    static final int END   = 3;
+    static final int ACK   = 4;
+    static final int FIN   = 5;
+    static final int ABORT = 6;
+
+    static final int FIN_OK = 0;
+    static final int FIN_CRC_ERROR = 1;
+
+    static final int WINDOW = 32; // blocks, limited by ACK bitmap
+    static final int BLOCK_SIZE = 1024;
+    static final int MAX_PAYLOAD = 4 + BLOCK_SIZE;
+    static final int HEADER_SIZE = 5;
+    static final int OVERHEAD = HEADER_SIZE + 2;
+
+    private static final int MAGIC1 = 0xA5;
+    private static final int MAGIC2 = 0x5A;
+    private static final char[] CRC16_TABLE = new char[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i << 8;
+            for (int j = 0; j < 8; j++)
+                crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x1021 : crc << 1;
+            CRC16_TABLE[i] = (char) crc;
+        }
+    }
+
+    interface FrameListener {
+        void onFrame(int type, byte[] payload, int offset, int length);
+    }
+
+    private TransferProtocol() {}
+
+    static int crc16(byte[] data, int offset, int length) {
+        int crc = 0xffff;
+        for (int i = offset; i < offset + length; i++)
+            crc = (crc << 8 & 0xff00) ^ CRC16_TABLE[(crc >> 8 ^ data[i]) & 0xff];
+        return crc;
+    }
+
+    /**
+     * @return frame with payloadLength bytes reserved after header, filled by caller before calling seal()
+     */
+    static byte[] frame(int type, int payloadLength) {
+        byte[] frame = new byte[payloadLength + OVERHEAD];
+        frame[0] = (byte) MAGIC1;
+        frame[1] = (byte) MAGIC2;
+        frame[2] = (byte) type;
+        putShort(frame, 3, payloadLength);
+        return frame;
+    }
+
+    static byte[] seal(byte[] frame) {
+        int crc = crc16(frame, 2, frame.length - 4);
+        putShort(frame, frame.length - 2, crc);
+        return frame;
+    }
+
+    static void putShort(byte[] data, int offset, int value) {
+        data[offset] = (byte) value;
+        data[offset + 1] = (byte) (value >> 8);
+    }
+
+    static void putInt(byte[] data, int offset, int value) {
+        putShort(data, offset, value);
+        putShort(data, offset + 2, value >> 16);
+    }
+
+    static int getShort(byte[] data, int offset) {
+        return (data[offset] & 0xff) | (data[offset + 1] & 0xff) << 8;
+    }
+
+    static int getInt(byte[] data, int offset) {
+        return getShort(data, offset) | getShort(data, offset + 2) << 16;
+    }
+
+    /**
+     * find frames in received byte stream. After a CRC error, the search continues at the byte
+     * following the bad frame start, so a frame hidden in corrupted data is not lost
+     */
+    static class Decoder {
+        private final byte[] buffer = new byte[2 * (MAX_PAYLOAD + OVERHEAD)];
+        private final FrameListener listener;
+        private int length;
+
+        Decoder(FrameListener listener) {
+            this.listener = listener;
+        }
+
+        void reset() {
+            length = 0;
+        }
+
+        void feed(byte[] data, int offset, int count) {
+            while (count > 0) {
+                int n = Math.min(count, buffer.length - length);
+                System.arraycopy(data, offset, buffer, length, n);
+                length += n;
+                offset += n;
+                count -= n;
+                parse();
+            }
+        }
+
+        private void parse() {
+            int pos = 0;
+            while (true) {
+                while (pos < length && (buffer[pos] & 0xff) != MAGIC1)
+                    pos++;
+                if (pos + HEADER_SIZE > length)
+                    break;
+                int payloadLength = getShort(buffer, pos + 3);
+                if ((buffer[pos + 1] & 0xff) != MAGIC2 || payloadLength > MAX_PAYLOAD) {
+                    pos++;
+                    continue;
+                }
+                int frameLength = payloadLength + OVERHEAD;
+                if (pos + frameLength > length)
+                    break;
+                if (crc16(buffer, pos + 2, frameLength - 4) != getShort(buffer, pos + frameLength - 2)) {
+                    pos++;
+                    continue;
+                }
+                listener.onFrame(buffer[pos + 2] & 0xff, buffer, pos + HEADER_SIZE, payloadLength);
+                pos += frameLength;
+            }
+            System.arraycopy(buffer, pos, buffer, 0, length - pos);
+            length -= pos;
+        }
+    }
+
+}
@@ -0,0 +1,190 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+import static de.kai_morich.simple_bluetooth_le_terminal.TransferProtocol.*;
+
+/**
+ * reference receiver for TransferProtocol, e.g. for device firmware or simulator
+ *   - blocks are appended to <name>.<crc32>.part in order, blocks received ahead are kept in
+ *     a buffer of WINDOW blocks, so the part file always contains a complete prefix
+ *   - on START for a part file with same name and CRC-32, the transfer resumes after the prefix
+ *   - after END with all blocks received and matching CRC-32, the part file is renamed to <name>
+ *
+ * not thread safe, onRead() is called from one receive thread
+ */
+class TransferReceiver implements TransferProtocol.FrameListener {
+
+    interface Output {
+        void write(byte[] data) throws IOException;
+    }
+
+    private final File dir;
+    private final Output output;
+    private final TransferProtocol.Decoder decoder = new TransferProtocol.Decoder(this);
+    private final byte[][] window = new byte[WINDOW][];
+
+    private FileChannel file;
+    private File partFile, targetFile;
+    private long size, crc, blocks, next;
+    private int blockSize;
+    private String finished; // part file name of last completed transfer, to repeat lost FIN
+    private IOException error;
+
+    TransferReceiver(File dir, Output output) {
+        this.dir = dir;
+        this.output = output;
+    }
+
+    void onRead(byte[] data, int offset, int length) throws IOException {
+        decoder.feed(data, offset, length);
+        if (error != null) {
+            IOException e = error;
+            error = null;
+            throw e;
+        }
+    }
+
+    /**
+     * @return file of last completed transfer, or null
+     */
+    File getFile() {
+        return finished != null ? targetFile : null;
+    }
+
+    void close() {
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException ignored) {
+            }
+            file = null;
+        }
+    }
+
+    @Override
+    public void onFrame(int type, byte[] payload, int offset, int length) {
+        try {
+            switch (type) {
+                case START: onStart(payload, offset, length); break;
+                case DATA:  onData(payload, offset, length); break;
+                case END:   onEnd(); break;
+                case ABORT: close(); break;
+            }
+        } catch (IOException e) {
+            close();
+            error = e;
+            try {
+                output.write(seal(frame(ABORT, 0)));
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void onStart(byte[] payload, int offset, int length) throws IOException {
+        if (length < 10)
+            return;
+        close();
+        size = getInt(payload, offset) & 0xffffffffL;
+        blockSize = getShort(payload, offset + 4);
+        crc = getInt(payload, offset + 6) & 0xffffffffL;
+        String name = new File(new String(payload, offset + 10, length - 10)).getName(); // no path
+        if (blockSize == 0 || blockSize > BLOCK_SIZE || name.isEmpty() || name.startsWith("."))
+            throw new IOException("invalid START");
+        blocks = (size + blockSize - 1) / blockSize;
+        targetFile = new File(dir, name);
+        partFile = new File(dir, name + "." + Long.toHexString(crc) + ".part");
+        for (int i = 0; i < window.length; i++)
+            window[i] = null;
+        if (partFile.getName().equals(finished) && targetFile.length() == size) {
+            next = blocks; // complete, FIN was lost
+        } else {
+            finished = null;
+            file = new RandomAccessFile(partFile, "rw").getChannel();
+            long length0 = Math.min(file.size(), size);
+            next = length0 == size ? blocks : length0 / blockSize;
+            file.truncate(next * blockSize);
+            file.position(next * blockSize);
+        }
+        sendAck();
+    }
+
+    private void onData(byte[] payload, int offset, int length) throws IOException {
+        if (file == null || length < 4)
+            return;
+        long block = getInt(payload, offset) & 0xffffffffL;
+        int expected = (int) Math.min(blockSize, size - block * blockSize);
+        if (block >= next && block < next + WINDOW && block < blocks && length - 4 == expected) {
+            int slot = (int) (block % WINDOW);
+            if (window[slot] == null) {
+                window[slot] = new byte[expected];
+                System.arraycopy(payload, offset + 4, window[slot], 0, expected);
+            }
+            while (next < blocks && window[(int) (next % WINDOW)] != null) {
+                slot = (int) (next % WINDOW);
+                ByteBuffer buffer = ByteBuffer.wrap(window[slot]);
+                while (buffer.hasRemaining())
+                    file.write(buffer);
+                window[slot] = null;
+                next++;
+            }
+        }
+        sendAck(); // also for duplicates, previous ACK might be lost
+    }
+
+    private void onEnd() throws IOException {
+        if (file == null && finished == null)
+            return;
+        if (next < blocks) {
+            sendAck();
+            return;
+        }
+        int status = FIN_OK;
+        if (finished == null) {
+            file.force(false);
+            boolean ok = crc32(file) == crc;
+            close();
+            if (ok && (targetFile.delete() || !targetFile.exists()) && partFile.renameTo(targetFile)) {
+                finished = partFile.getName();
+            } else {
+                partFile.delete();
+                status = FIN_CRC_ERROR;
+            }
+        }
+        byte[] frame = frame(FIN, 1);
+        frame[HEADER_SIZE] = (byte) status;
+        output.write(seal(frame));
+    }
+
+    private void sendAck() throws IOException {
+        int bitmap = 0;
+        for (int i = 0; i < 32; i++) {
+            long block = next + 1 + i;
+            if (block < blocks && window[(int) (block % WINDOW)] != null)
+                bitmap |= 1 << i;
+        }
+        byte[] frame = frame(ACK, 8);
+        putInt(frame, HEADER_SIZE, (int) next);
+        putInt(frame, HEADER_SIZE + 4, bitmap);
+        output.write(seal(frame));
+    }
+
+    private static long crc32(FileChannel file) throws IOException {
+        CRC32 crc = new CRC32();
+        ByteBuffer buffer = ByteBuffer.allocate(BLOCK_SIZE);
+        long position = 0;
+        int n;
+        while ((n = file.read(buffer, position)) > 0) {
+            crc.update(buffer.array(), 0, n);
+            position += n;
+            buffer.clear();
+        }
+        return crc.getValue();
+    }
+
+}
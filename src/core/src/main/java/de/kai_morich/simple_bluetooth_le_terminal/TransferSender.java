@@ -0,0 +1,304 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import static de.kai_morich.simple_bluetooth_le_terminal.TransferProtocol.*;
+
+/**
+ * send file with TransferProtocol, keeping up to WINDOW blocks unacknowledged
+ *   - blocks missing in the ACK bitmap are retransmitted selectively, the oldest
+ *     unacknowledged block after retransmit timeout
+ *   - retransmit timeout follows measured round trip time (RFC 6298, Karn's rule)
+ *   - the receiver answers START with the first missing block, so a transfer
+ *     interrupted by disconnect continues from there when started again
+ *   - blocks are read from file on demand, also for retransmit, so memory use is constant
+ */
+class TransferSender implements TransferProtocol.FrameListener {
+
+    private static final int MAX_QUEUED_WRITES = 8; // keep socket busy without queueing a whole window
+    private static final int MAX_NAME_LENGTH = 255;
+    private static final long INITIAL_RTO = 1_000_000_000; // nanos
+    private static final long MIN_RTO = 300_000_000;
+    private static final long MAX_RTO = 8_000_000_000L;
+    private static final int MAX_TIMEOUTS = 8; // consecutive, without progress
+    private static final long PROGRESS_INTERVAL = 200_000_000;
+    private static final long WAIT_TIMEOUT = 100; // millis
+
+    private final FileChannel channel;
+    private final String name;
+    private final FileSender.Output output;
+    private final FileSender.Listener listener;
+    private final TransferProtocol.Decoder decoder = new TransferProtocol.Decoder(this);
+    private final Object lock = new Object();
+    private final Thread thread;
+
+    // guarded by lock, updated by onFrame()
+    private long blocks;
+    private long base = -1; // first unacknowledged block, -1 until START is acknowledged
+    private long next;      // next block not sent yet
+    private final long[] sentAt = new long[WINDOW];
+    private final boolean[] acked = new boolean[WINDOW];
+    private final boolean[] retransmitted = new boolean[WINDOW];
+    private final ArrayDeque<Long> retransmits = new ArrayDeque<>();
+    private int finStatus = -1;
+    private boolean aborted;
+    private long srtt, rttvar, rto = INITIAL_RTO;
+    private int timeouts;
+
+    TransferSender(FileChannel channel, String name, FileSender.Output output, FileSender.Listener listener) {
+        this.channel = channel;
+        this.name = name;
+        this.output = output;
+        this.listener = listener;
+        thread = new Thread(this::run, "transfer");
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    void cancel() {
+        thread.interrupt();
+    }
+
+    boolean isRunning() {
+        return thread.isAlive();
+    }
+
+    /**
+     * socket write queue shrunk
+     */
+    void onWriteNext() {
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * received data, called from receive thread
+     */
+    void onRead(byte[] data) {
+        synchronized (lock) {
+            decoder.feed(data, 0, data.length);
+        }
+    }
+
+    @Override
+    public void onFrame(int type, byte[] payload, int offset, int length) {
+        long now = System.nanoTime();
+        if (type == ACK && length >= 8 && base >= 0) {
+            long ackNext = getInt(payload, offset) & 0xffffffffL;
+            int bitmap = getInt(payload, offset + 4);
+            if (ackNext > next)
+                return; // invalid
+            // one round trip sample per ACK, from the last sent block that is newly acknowledged
+            // and was not retransmitted. Blocks already in a previous bitmap waited for a lost block
+            long sampleSentAt = 0;
+            boolean sample = false;
+            for (; base < ackNext; base++) {
+                int slot = (int) (base % WINDOW);
+                if (!acked[slot] && !retransmitted[slot] && (!sample || sentAt[slot] - sampleSentAt > 0)) {
+                    sampleSentAt = sentAt[slot];
+                    sample = true;
+                }
+                acked[slot] = false;
+                retransmitted[slot] = false;
+                timeouts = 0;
+            }
+            long highest = -1;
+            for (int i = 0; i < 32 && ackNext + 1 + i < next; i++) {
+                if ((bitmap & (1 << i)) != 0) {
+                    int slot = (int) ((ackNext + 1 + i) % WINDOW);
+                    if (!acked[slot] && !retransmitted[slot] && (!sample || sentAt[slot] - sampleSentAt > 0)) {
+                        sampleSentAt = sentAt[slot];
+                        sample = true;
+                    }
+                    acked[slot] = true;
+                    highest = ackNext + 1 + i;
+                }
+            }
+            if (sample)
+                updateRto(now - sampleSentAt);
+            // blocks before highest received block are lost, if sent early enough to be included in this ACK
+            for (long block = base; block < highest; block++) {
+                int slot = (int) (block % WINDOW);
+                if (!acked[slot] && now - sentAt[slot] > srtt && !retransmits.contains(block))
+                    retransmits.add(block);
+            }
+        } else if (type == ACK && length >= 8) {
+            base = next = getInt(payload, offset) & 0xffffffffL; // START acknowledged
+        } else if (type == FIN && length >= 1) {
+            finStatus = payload[offset] & 0xff;
+        } else if (type == ABORT) {
+            aborted = true;
+        }
+        lock.notifyAll();
+    }
+
+    private void updateRto(long rtt) {
+        if (srtt == 0) {
+            srtt = rtt;
+            rttvar = rtt / 2;
+        } else {
+            rttvar += (Math.abs(srtt - rtt) - rttvar) / 4;
+            srtt += (rtt - srtt) / 8;
+        }
+        rto = Math.min(MAX_RTO, Math.max(MIN_RTO, srtt + 4 * rttvar));
+    }
+
+    private void run() {
+        long sent = 0;
+        long size = 0;
+        Exception error = null;
+        try {
+            size = channel.size();
+            if (size > 0xffffffffL)
+                throw new IOException("file too large");
+            blocks = (size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+            ByteBuffer buffer = ByteBuffer.allocate(BLOCK_SIZE);
+            byte[] start = startFrame(size, crc32(buffer));
+            long resendAt = System.nanoTime();
+            synchronized (lock) {
+                while (base < 0) {
+                    checkAborted();
+                    long now = System.nanoTime();
+                    if (now >= resendAt) {
+                        if (timeouts++ == MAX_TIMEOUTS)
+                            throw new IOException("no response from receiver");
+                        output.write(start);
+                        resendAt = now + rto;
+                    }
+                    lock.wait(WAIT_TIMEOUT);
+                }
+                timeouts = 0;
+            }
+            long startTime = System.nanoTime();
+            long resumed = base * BLOCK_SIZE;
+            long lastProgress = startTime;
+            while (true) {
+                long block;
+                boolean retransmit;
+                synchronized (lock) {
+                    checkAborted();
+                    if (base == blocks)
+                        break;
+                    long now = System.nanoTime();
+                    int slot = (int) (base % WINDOW);
+                    if (base < next && now - sentAt[slot] > rto && !retransmits.contains(base)) {
+                        if (++timeouts > MAX_TIMEOUTS)
+                            throw new IOException("no response from receiver");
+                        rto = Math.min(MAX_RTO, rto * 2);
+                        retransmits.addFirst(base);
+                    }
+                    if (output.getWriteQueueSize() >= MAX_QUEUED_WRITES
+                            || retransmits.isEmpty() && (next == blocks || next == base + WINDOW)) {
+                        lock.wait(WAIT_TIMEOUT);
+                        continue;
+                    }
+                    retransmit = !retransmits.isEmpty();
+                    block = retransmit ? retransmits.removeFirst() : next++;
+                    slot = (int) (block % WINDOW);
+                    if (block < base || acked[slot] && retransmit)
+                        continue; // acknowledged in the meantime
+                    sentAt[slot] = now;
+                    retransmitted[slot] |= retransmit;
+                    sent = base * BLOCK_SIZE - resumed;
+                }
+                output.write(dataFrame(block, buffer));
+                long now = System.nanoTime();
+                if (now - lastProgress >= PROGRESS_INTERVAL) {
+                    lastProgress = now;
+                    listener.onFileProgress(Math.min(size, sent + resumed), size, sent * 1_000_000_000L / (now - startTime));
+                }
+            }
+            sent = size - resumed;
+            listener.onFileProgress(size, size, sent * 1_000_000_000L / Math.max(1, System.nanoTime() - startTime));
+            byte[] end = seal(frame(END, 0));
+            resendAt = System.nanoTime();
+            timeouts = 0;
+            synchronized (lock) {
+                while (finStatus < 0) {
+                    checkAborted();
+                    long now = System.nanoTime();
+                    if (now >= resendAt) {
+                        if (timeouts++ == MAX_TIMEOUTS)
+                            throw new IOException("no response from receiver");
+                        output.write(end);
+                        resendAt = now + rto;
+                    }
+                    lock.wait(WAIT_TIMEOUT);
+                }
+            }
+            if (finStatus != FIN_OK)
+                throw new IOException("CRC error reported by receiver");
+            sent = size;
+        } catch (InterruptedException e) {
+            error = new InterruptedIOException("canceled");
+            try {
+                output.write(seal(frame(ABORT, 0)));
+            } catch (IOException ignored) {
+            }
+        } catch (Exception e) {
+            error = Thread.interrupted() ? new InterruptedIOException("canceled") : e; // interrupt closes channel
+        }
+        synchronized (lock) {
+            if (error != null && base > 0)
+                sent = base * BLOCK_SIZE;
+        }
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        listener.onFileFinished(Math.min(sent, size), size, error);
+    }
+
+    private void checkAborted() throws IOException {
+        if (aborted)
+            throw new IOException("aborted by receiver");
+    }
+
+    private long crc32(ByteBuffer buffer) throws IOException {
+        CRC32 crc = new CRC32();
+        long position = 0;
+        int n;
+        buffer.clear();
+        while ((n = channel.read(buffer, position)) > 0) {
+            crc.update(buffer.array(), 0, n);
+            position += n;
+            buffer.clear();
+        }
+        return crc.getValue();
+    }
+
+    private byte[] startFrame(long size, long crc) {
+        byte[] nameBytes = name.getBytes();
+        if (nameBytes.length > MAX_NAME_LENGTH)
+            nameBytes = Arrays.copyOf(nameBytes, MAX_NAME_LENGTH);
+        byte[] frame = frame(START, 10 + nameBytes.length);
+        putInt(frame, HEADER_SIZE, (int) size);
+        putShort(frame, HEADER_SIZE + 4, BLOCK_SIZE);
+        putInt(frame, HEADER_SIZE + 6, (int) crc);
+        System.arraycopy(nameBytes, 0, frame, HEADER_SIZE + 10, nameBytes.length);
+        return seal(frame);
+    }
+
+    private byte[] dataFrame(long block, ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        long position = block * BLOCK_SIZE;
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) <= 0)
+                break; // end of file
+        }
+        byte[] frame = frame(DATA, 4 + buffer.position());
+        putInt(frame, HEADER_SIZE, (int) block);
+        System.arraycopy(buffer.array(), 0, frame, HEADER_SIZE + 4, buffer.position());
+        return seal(frame);
+    }
+
+}
@@ -0,0 +1,119 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * result of a WriteRequest, done when the last chunk is confirmed by the transport,
+ * or failed with an IOException if the request was dropped or rejected
+ *
+ * used instead of CompletableFuture, which needs Android 7 while the app supports Android 4.3.
+ * Waiting threads block in get(), others can register a callback with whenDone()
+ *
+ * thread safe, completed from the transport callback thread
+ */
+class WriteFuture implements Future<Void>, WriteRequest.Listener {
+
+    interface Callback {
+        void onDone(IOException e); // e is null if written, called from completing thread
+    }
+
+    private boolean done;
+    private IOException exception;
+    private Callback callback;
+
+    /**
+     * completes the future, as listener of the request
+     */
+    @Override
+    public void onWriteFinished(WriteRequest request, WriteRequest.DropReason reason) {
+        if (reason == null)
+            complete(null);
+        else
+            complete(new IOException("write " + reason.name().toLowerCase(Locale.US)));
+    }
+
+    /**
+     * @param e null if written, else the reason why the request was not written
+     * @return false if already done
+     */
+    boolean complete(IOException e) {
+        Callback callback;
+        synchronized (this) {
+            if (done)
+                return false;
+            done = true;
+            exception = e;
+            callback = this.callback;
+            this.callback = null;
+            notifyAll();
+        }
+        if (callback != null)
+            callback.onDone(e);
+        return true;
+    }
+
+    /**
+     * called at once if already done, else from the completing thread. Replaces a previous callback
+     */
+    void whenDone(Callback callback) {
+        IOException e;
+        synchronized (this) {
+            if (!done) {
+                this.callback = callback;
+                return;
+            }
+            e = exception;
+        }
+        callback.onDone(e);
+    }
+
+    /**
+     * writes cannot be canceled once queued
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    @Override
+    public synchronized Void get() throws InterruptedException, ExecutionException {
+        while (!done)
+            wait();
+        return result();
+    }
+
+    @Override
+    public synchronized Void get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        long remaining;
+        while (!done) {
+            remaining = deadline - System.nanoTime();
+            if (remaining <= 0)
+                throw new TimeoutException();
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return result();
+    }
+
+    private Void result() throws ExecutionException {
+        if (exception != null)
+            throw new ExecutionException(exception);
+        return null;
+    }
+
+}
@@ -0,0 +1,99 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+/**
+ * bound for the number of writes queued in a SerialTransport. If a write would exceed capacity
+ *   Block:  wait until enough writes completed, not to be used from main thread
+ *   Fail:   throw QueueFullException
+ *   Signal: queue anyway and tell the listener to pause until the queue drained below capacity
+ * a write is always accepted by an empty queue, even if larger than capacity
+ */
+class WriteGate {
+
+    enum Backpressure { Block, Fail, Signal }
+
+    interface Listener {
+        void onBackpressure(boolean full); // called from writing or callback thread
+    }
+
+    static class QueueFullException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        QueueFullException() {
+            super("write queue full");
+        }
+    }
+
+    private static final long POLL_INTERVAL = 100; // ms, in case a transport misses onWriteNext
+
+    private final int capacity;
+    private final Listener listener;
+    private boolean signaled; // guarded by this
+
+    /**
+     * @param capacity in chunks of payload size, like SerialTransport.getWriteQueueSize()
+     * @param listener for Signal, can be null
+     */
+    WriteGate(int capacity, Listener listener) {
+        if(capacity <= 0)
+            throw new IllegalArgumentException("capacity");
+        this.capacity = capacity;
+        this.listener = listener;
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * call before writing data to transport
+     */
+    synchronized void acquire(SerialTransport transport, int length, Backpressure backpressure) throws IOException {
+        int payloadSize = transport.getPayloadSize();
+        int chunks = Math.max(1, (length + payloadSize - 1) / payloadSize);
+        int size;
+        while((size = transport.getWriteQueueSize()) > 0 && size + chunks > capacity) {
+            switch (backpressure) {
+                case Fail:
+                    throw new QueueFullException();
+                case Signal:
+                    if(!signaled) {
+                        signaled = true;
+                        if(listener != null)
+                            listener.onBackpressure(true);
+                    }
+                    return;
+                default:
+                    try {
+                        wait(POLL_INTERVAL);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("write interrupted");
+                    }
+            }
+        }
+    }
+
+    /**
+     * call from SerialTransport.WriteListener.onWriteNext
+     */
+    synchronized void onWriteNext(SerialTransport transport) {
+        notifyAll();
+        if(signaled && transport.getWriteQueueSize() < capacity) {
+            signaled = false;
+            if(listener != null)
+                listener.onBackpressure(false);
+        }
+    }
+
+    /**
+     * wake blocked writers, e.g. on disconnect
+     */
+    synchronized void reset() {
+        signaled = false;
+        notifyAll();
+    }
+
+}
@@ -0,0 +1,130 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * token bucket limiting writes to the rate a slower downstream link absorbs,
+ * e.g. a serial bridge forwarding to a 9600 baud UART with 64 byte receive buffer
+ *   - the bucket holds the free space of the downstream buffer, refilled at the baud rate
+ *   - a write is allowed when the downstream buffer can take it, so nothing is dropped there.
+ *     Writes larger than the buffer are allowed when the buffer is empty
+ *
+ * the baud rate alone does not cover a device that stops reading while busy, e.g. while handling
+ * a command or while printing the reply. For devices replying one line per command line, replies
+ * are used as credits: the bytes written since the last replied line must fit into the receive buffer.
+ * A line without reply within REPLY_TIMEOUT is counted as replied, so a lost reply does not stall
+ *
+ * not thread safe, except onRead()
+ */
+class WritePacer {
+
+    private static final int BITS_PER_BYTE = 10; // with start and stop bit
+    static final long REPLY_TIMEOUT = 1_000_000_000; // nanos, Stream.setTimeout() default
+    static final long REPLY_POLL_INTERVAL = 2_000_000;
+
+    private final int baudRate;
+    private final int bufferSize;
+    private final boolean replies;
+    private final long byteTime; // nanos
+    private long drainedAt;      // time when downstream buffer will be empty
+    private boolean started;
+
+    // reply credits
+    private final AtomicInteger replyCount = new AtomicInteger(); // received, not yet accounted
+    private final ArrayDeque<Long> lineEnds = new ArrayDeque<>();  // offsets in written bytes after '\n'
+    private final ArrayDeque<Long> lineTimes = new ArrayDeque<>(); // nanos when written
+    private long written; // bytes
+    private long replied; // bytes up to last replied line
+
+    WritePacer(int baudRate, int bufferSize) {
+        this(baudRate, bufferSize, false);
+    }
+
+    /**
+     * @param replies true if device replies one line per command line
+     */
+    WritePacer(int baudRate, int bufferSize, boolean replies) {
+        if (baudRate <= 0 || bufferSize <= 0)
+            throw new IllegalArgumentException("invalid baud rate or buffer size");
+        this.baudRate = baudRate;
+        this.bufferSize = bufferSize;
+        this.replies = replies;
+        byteTime = BITS_PER_BYTE * 1_000_000_000L / baudRate;
+    }
+
+    int getBaudRate() {
+        return baudRate;
+    }
+
+    int getBufferSize() {
+        return bufferSize;
+    }
+
+    boolean hasReplies() {
+        return replies;
+    }
+
+    /**
+     * received data, called from any thread
+     */
+    void onRead(byte[] data) {
+        if (!replies)
+            return;
+        int lines = 0;
+        for (byte b : data)
+            if (b == '\n')
+                lines++;
+        if (lines > 0)
+            replyCount.addAndGet(lines);
+    }
+
+    /**
+     * @return 0 if length bytes can be written now, then they are accounted,
+     *         else nanos to wait before trying again
+     */
+    long acquire(int length, long now) {
+        if (!started || now - drainedAt > 0) {
+            drainedAt = now;
+            started = true;
+        }
+        long backlog = drainedAt - now + length * byteTime;
+        long wait = length > bufferSize ? drainedAt - now : backlog - bufferSize * byteTime;
+        if (wait > 0)
+            return wait;
+        drainedAt += length * byteTime;
+        return 0;
+    }
+
+    /**
+     * as acquire(length, now), and with replies also wait for reply credits
+     */
+    long acquire(byte[] data, int offset, int length, long now) {
+        if (!replies)
+            return acquire(length, now);
+        for (int n = replyCount.getAndSet(0); n > 0 && !lineEnds.isEmpty(); n--)
+            removeLine();
+        while (!lineEnds.isEmpty() && now - lineTimes.peekFirst() >= REPLY_TIMEOUT)
+            removeLine();
+        long unreplied = lineEnds.isEmpty() ? 0 : written - replied; // bytes without line end are paced by rate only
+        if (unreplied > 0 && unreplied + length > bufferSize)
+            return Math.max(1, Math.min(REPLY_POLL_INTERVAL, lineTimes.peekFirst() + REPLY_TIMEOUT - now));
+        long wait = acquire(length, now);
+        if (wait > 0)
+            return wait;
+        for (int i = 0; i < length; i++) {
+            if (data[offset + i] == '\n') {
+                lineEnds.add(written + i + 1);
+                lineTimes.add(now);
+            }
+        }
+        written += length;
+        return 0;
+    }
+
+    private void removeLine() {
+        replied = lineEnds.removeFirst();
+        lineTimes.removeFirst();
+    }
+
+}
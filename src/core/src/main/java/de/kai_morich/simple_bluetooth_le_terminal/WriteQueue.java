@@ -0,0 +1,274 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * queue of characteristic writes. Data is split into chunks of payload size,
+ * at most one chunk is pending, i.e. written but not yet confirmed.
+ * With a WritePacer, chunks are held back until the downstream link can take them
+ *
+ * each Priority has its own lane. The next chunk is taken from the highest non-empty lane,
+ * so a stop command is written after the pending chunk and not behind queued file or script
+ * data, even if a long message is partially written. The preempted message continues with its
+ * next chunk afterwards. Within a lane, messages are not interleaved
+ *
+ * expired and superseded WriteRequests are removed. Completed and removed requests are
+ * collected for the caller, see pollFinished()
+ *
+ * not thread safe, callers synchronize on the queue
+ */
+class WriteQueue {
+
+    enum Priority { High, Normal } // in order of precedence
+
+    private static class Message {
+        final WriteRequest request;
+        final byte[] data;
+        final int payloadSize;
+        int offset;
+        int chunks; // remaining
+
+        Message(WriteRequest request, int payloadSize) {
+            this.request = request;
+            this.data = request.data;
+            this.payloadSize = payloadSize;
+            chunks = Math.max(1, (data.length + payloadSize - 1) / payloadSize);
+        }
+
+        int nextLength() {
+            return Math.min(payloadSize, data.length - offset);
+        }
+
+        byte[] nextChunk() {
+            int length = nextLength();
+            byte[] chunk = offset == 0 && length == data.length ? data : Arrays.copyOfRange(data, offset, offset + length);
+            offset += length;
+            chunks--;
+            return chunk;
+        }
+    }
+
+    private static class Lane {
+        final ArrayDeque<Message> messages = new ArrayDeque<>();
+        Message current; // partially written
+        int depth;       // chunks, including current message
+        int maxDepth;
+    }
+
+    private final ArrayList<Lane> lanes = new ArrayList<>();
+    private int size;
+    private WriteRequest pendingRequest; // last chunk pending
+    private ArrayList<WriteRequest> finished; // with listener, not yet polled
+    private long droppedCount;
+    private boolean pending;
+    private WritePacer pacer;
+    private long pacerDelay;
+
+    WriteQueue() {
+        for (int i = 0; i < Priority.values().length; i++)
+            lanes.add(new Lane());
+    }
+
+    /**
+     * @param pacer null to write as fast as possible
+     */
+    void setPacer(WritePacer pacer) {
+        this.pacer = pacer;
+        pacerDelay = 0;
+    }
+
+    WritePacer getPacer() {
+        return pacer;
+    }
+
+    byte[] add(byte[] data, int payloadSize, boolean canWrite) {
+        return add(new WriteRequest(data), payloadSize, canWrite);
+    }
+
+    /**
+     * @param canWrite false if writing is blocked, e.g. by missing flow control credits
+     * @return first chunk, to be written now by caller, or null if queued behind pending write
+     */
+    byte[] add(WriteRequest request, int payloadSize, boolean canWrite) {
+        pacerDelay = 0;
+        if (request.getSupersedeKey() != null)
+            supersede(request.getSupersedeKey());
+        Message message = new Message(request, payloadSize);
+        Lane lane = lanes.get(request.priority.ordinal());
+        lane.messages.add(message);
+        lane.depth += message.chunks;
+        lane.maxDepth = Math.max(lane.maxDepth, lane.depth);
+        size += message.chunks;
+        if (pending || !canWrite)
+            return null;
+        return take();
+    }
+
+    /**
+     * pending write confirmed, or write unblocked
+     * @return next chunk, to be written now by caller, or null if none
+     */
+    byte[] next(boolean canWrite) {
+        pacerDelay = 0;
+        if (pending && pendingRequest != null) {
+            pendingRequest.complete();
+            addFinished(pendingRequest);
+        }
+        pendingRequest = null;
+        pending = false;
+        return canWrite ? take() : null;
+    }
+
+    private byte[] take() {
+        long now = System.nanoTime();
+        Lane lane = null;
+        for (int i = 0; i < lanes.size() && lane == null; i++) {
+            Lane candidate = lanes.get(i);
+            Message message;
+            while (candidate.current == null && (message = candidate.messages.pollFirst()) != null) {
+                if (!message.request.isExpired(now))
+                    candidate.current = message;
+                else
+                    drop(candidate, message, WriteRequest.DropReason.Expired);
+            }
+            if (candidate.current != null)
+                lane = candidate;
+        }
+        if (lane == null)
+            return null;
+        Message current = lane.current;
+        if (!acquire(current, now))
+            return null;
+        byte[] chunk = current.nextChunk();
+        if (current.chunks == 0) {
+            pendingRequest = current.request;
+            lane.current = null;
+        }
+        lane.depth--;
+        size--;
+        pending = true;
+        return chunk;
+    }
+
+    private boolean acquire(Message message, long now) {
+        pacerDelay = pacer != null ? pacer.acquire(message.data, message.offset, message.nextLength(), now) : 0;
+        return pacerDelay == 0;
+    }
+
+    private void supersede(String key) {
+        for (Lane lane : lanes) {
+            for (Iterator<Message> it = lane.messages.iterator(); it.hasNext(); ) {
+                Message message = it.next();
+                if (key.equals(message.request.getSupersedeKey())) {
+                    it.remove();
+                    drop(lane, message, WriteRequest.DropReason.Superseded);
+                }
+            }
+        }
+    }
+
+    /**
+     * message already removed from lane
+     */
+    private void drop(Lane lane, Message message, WriteRequest.DropReason reason) {
+        lane.depth -= message.chunks;
+        size -= message.chunks;
+        droppedCount++;
+        message.request.drop(reason);
+        addFinished(message.request);
+    }
+
+    private void addFinished(WriteRequest request) {
+        if (request.getListener() != null) {
+            if (finished == null)
+                finished = new ArrayList<>();
+            finished.add(request);
+        }
+    }
+
+    /**
+     * requests with listener completed or dropped since last call. The caller should call
+     * WriteRequest.notifyFinished() after releasing the lock on this queue
+     * @return null if none
+     */
+    ArrayList<WriteRequest> pollFinished() {
+        ArrayList<WriteRequest> result = finished;
+        finished = null;
+        return result;
+    }
+
+    /**
+     * number of expired, superseded or cleared requests
+     */
+    long getDroppedCount() {
+        return droppedCount;
+    }
+
+    /**
+     * if add() or next() returned null because of the pacer, nanos until next() should be called
+     */
+    long getPacerDelay() {
+        return pacerDelay;
+    }
+
+    /**
+     * chunks queued but not written because writing was blocked
+     */
+    boolean isBlocked() {
+        return !pending && size > 0;
+    }
+
+    /**
+     * pending write failed or was dropped, keep remaining chunks
+     */
+    void resetPending() {
+        if (pendingRequest != null) {
+            pendingRequest.drop(WriteRequest.DropReason.Disconnected);
+            addFinished(pendingRequest);
+            pendingRequest = null;
+        }
+        pending = false;
+    }
+
+    /**
+     * drop all requests not yet completely written, and reset depth statistics
+     */
+    void clear() {
+        resetPending();
+        for (Lane lane : lanes) {
+            if (lane.current != null)
+                drop(lane, lane.current, WriteRequest.DropReason.Disconnected);
+            lane.current = null;
+            Message message;
+            while ((message = lane.messages.pollFirst()) != null)
+                drop(lane, message, WriteRequest.DropReason.Disconnected);
+            lane.maxDepth = 0;
+        }
+        droppedCount = 0;
+    }
+
+    /**
+     * number of chunks queued or pending
+     */
+    int size() {
+        return size + (pending ? 1 : 0);
+    }
+
+    /**
+     * number of chunks queued in lane, without pending chunk
+     */
+    int getDepth(Priority priority) {
+        return lanes.get(priority.ordinal()).depth;
+    }
+
+    /**
+     * highest depth of lane since clear()
+     */
+    int getMaxDepth(Priority priority) {
+        return lanes.get(priority.ordinal()).maxDepth;
+    }
+
+}
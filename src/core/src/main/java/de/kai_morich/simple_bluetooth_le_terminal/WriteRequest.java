@@ -0,0 +1,106 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import java.util.Locale;
+
+/**
+ * data to write, with priority and optional deadline and supersede key
+ *
+ *   - a request not started before its deadline is dropped, e.g. after a slow link or flow control stall
+ *   - a request replaces queued requests with the same supersede key, e.g. key "LED" for
+ *     "LED ON" and "LED OFF", so only the latest state is sent
+ *
+ * requests already partially written are never dropped
+ */
+class WriteRequest {
+
+    enum DropReason { Expired, Superseded, Disconnected }
+
+    interface Listener {
+        void onWriteFinished(WriteRequest request, DropReason reason); // reason is null if last chunk was confirmed
+    }
+
+    final byte[] data;
+    final WriteQueue.Priority priority;
+    private long deadline; // System.nanoTime(), 0 if none
+    private String supersedeKey;
+    private Listener listener;
+    private DropReason dropReason;
+    private boolean finished;
+
+    WriteRequest(byte[] data) {
+        this(data, WriteQueue.Priority.Normal);
+    }
+
+    WriteRequest(byte[] data, WriteQueue.Priority priority) {
+        this.data = data;
+        this.priority = priority;
+    }
+
+    /**
+     * drop if not started within timeout
+     */
+    WriteRequest setTimeout(long millis) {
+        deadline = System.nanoTime() + millis * 1_000_000L;
+        if(deadline == 0)
+            deadline = 1;
+        return this;
+    }
+
+    /**
+     * supersede key of a text command: the command without its last word, which is taken as value,
+     * so "LED ON" and "led  off" replace each other, and "SET A 1" replaces "SET A 2" but not "SET B 2"
+     * @return null for single word commands, e.g. "STOP", which are actions and not states
+     */
+    static String commandKey(String command) {
+        String[] words = command.trim().toUpperCase(Locale.US).split("\\s+");
+        if (words.length < 2)
+            return null;
+        StringBuilder sb = new StringBuilder(words[0]);
+        for (int i = 1; i < words.length - 1; i++)
+            sb.append(' ').append(words[i]);
+        return sb.toString();
+    }
+
+    WriteRequest setSupersedeKey(String supersedeKey) {
+        this.supersedeKey = supersedeKey;
+        return this;
+    }
+
+    String getSupersedeKey() {
+        return supersedeKey;
+    }
+
+    /**
+     * @param listener called from writing or callback thread, after the write queue is unlocked
+     */
+    WriteRequest setListener(Listener listener) {
+        this.listener = listener;
+        return this;
+    }
+
+    Listener getListener() {
+        return listener;
+    }
+
+    boolean isExpired(long now) {
+        return deadline != 0 && now - deadline >= 0;
+    }
+
+    void drop(DropReason reason) {
+        dropReason = reason;
+        finished = true;
+    }
+
+    void complete() {
+        finished = true;
+    }
+
+    /**
+     * call listener of request completed or dropped by WriteQueue
+     */
+    void notifyFinished() {
+        if(listener != null && finished)
+            listener.onWriteFinished(this, dropReason);
+    }
+
+}
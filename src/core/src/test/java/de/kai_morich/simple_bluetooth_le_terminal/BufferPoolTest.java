@@ -0,0 +1,41 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class BufferPoolTest {
+
+    @Test
+    public void releasedBufferIsReused() {
+        BufferPool pool = new BufferPool(4);
+        byte[] buffer = pool.acquire(20);
+        assertEquals(20, buffer.length);
+        pool.release(buffer);
+        assertSame(buffer, pool.acquire(20));
+        assertEquals(0, pool.size());
+    }
+
+    @Test
+    public void otherLengthIsDropped() {
+        BufferPool pool = new BufferPool(4);
+        byte[] buffer = pool.acquire(20);
+        pool.release(buffer);
+        byte[] other = pool.acquire(10);
+        assertEquals(10, other.length);
+        assertEquals(0, pool.size());
+        pool.release(other);
+        assertNotSame(buffer, pool.acquire(20));
+    }
+
+    @Test
+    public void limitedToCapacity() {
+        BufferPool pool = new BufferPool(2);
+        for (int i = 0; i < 5; i++)
+            pool.release(new byte[20]);
+        assertEquals(2, pool.size());
+    }
+
+}
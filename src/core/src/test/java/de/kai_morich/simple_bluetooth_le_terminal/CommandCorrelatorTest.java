@@ -0,0 +1,40 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CommandCorrelatorTest {
+
+    @Test
+    public void batchedAndSplitReplies() {
+        CommandCorrelator correlator = new CommandCorrelator();
+        correlator.onWrite("LED ON\r\n".getBytes(), 0);
+        correlator.onWrite("FAN OFF\r\n".getBytes(), 0);
+        correlator.onWrite("LED OFF\r\n".getBytes(), 0);
+        // serial modules batch output into notifications of payload size
+        correlator.onRead("LED turned ON\r\nFan tur".getBytes(), 1_000_000);
+        correlator.onRead("ned OFF via relay\r\nLED turned OFF\r\n".getBytes(), 2_000_000);
+        assertFalse(correlator.hasPending());
+        String summary = correlator.getSummary();
+        assertTrue(summary, summary.contains("LED ON\n  sent 1, ack 1, rejected 0, timeout 0"));
+        assertTrue(summary, summary.contains("FAN OFF\n  sent 1, ack 1, rejected 0, timeout 0"));
+        assertTrue(summary, summary.contains("LED OFF\n  sent 1, ack 1, rejected 0, timeout 0"));
+        assertFalse(summary, summary.contains("unmatched"));
+    }
+
+    @Test
+    public void rejectedAndTimedOut() {
+        CommandCorrelator correlator = new CommandCorrelator();
+        correlator.onWrite("BLINK\n".getBytes(), 0);
+        correlator.onWrite("LED ON\n".getBytes(), 0);
+        correlator.onRead("Unknown command. Use LED ON/OFF or FAN ON/OFF.\n".getBytes(), 1_000_000);
+        correlator.expire(CommandCorrelator.DEFAULT_TIMEOUT_NANOS);
+        String summary = correlator.getSummary();
+        assertTrue(summary, summary.contains("BLINK\n  sent 1, ack 0, rejected 1, timeout 0"));
+        assertTrue(summary, summary.contains("LED ON\n  sent 1, ack 0, rejected 0, timeout 1"));
+        assertTrue(summary, summary.contains("unacknowledged: 'LED ON'"));
+    }
+
+}
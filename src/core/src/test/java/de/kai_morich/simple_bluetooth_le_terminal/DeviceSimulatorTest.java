@@ -0,0 +1,66 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class DeviceSimulatorTest {
+
+    /**
+     * collects received text lines
+     */
+    private static class Lines implements SerialListener {
+        final LinkedBlockingQueue<String> lines = new LinkedBlockingQueue<>();
+        private final StringBuilder line = new StringBuilder();
+
+        @Override public void onSerialConnect() {}
+        @Override public void onSerialConnectError(Exception e) {}
+        @Override public void onSerialRead(ArrayDeque<byte[]> datas) {}
+        @Override public void onSerialIoError(Exception e) {}
+
+        @Override
+        public void onSerialRead(byte[] data) {
+            for (byte b : data) {
+                if (b == '\n') {
+                    lines.add(line.toString().trim());
+                    line.setLength(0);
+                } else {
+                    line.append((char) b);
+                }
+            }
+        }
+
+        String poll() throws InterruptedException {
+            return lines.poll(5, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void taggedReply() throws Exception {
+        DeviceSimulator simulator = new DeviceSimulator();
+        Lines lines = new Lines();
+        simulator.connect(lines);
+        simulator.write("LED ON #7\n".getBytes());
+        simulator.write("led off\n".getBytes());
+        assertEquals("LED turned ON #7", lines.poll());
+        assertEquals("LED turned OFF", lines.poll());
+        simulator.disconnect();
+    }
+
+    @Test
+    public void reconnect() throws Exception {
+        DeviceSimulator simulator = new DeviceSimulator();
+        simulator.connect(new Lines());
+        simulator.disconnect();
+        Lines lines = new Lines();
+        simulator.connect(lines);
+        simulator.write("FAN ON\n".getBytes());
+        assertEquals("Fan turned ON via relay", lines.poll());
+        simulator.disconnect();
+    }
+
+}
@@ -0,0 +1,43 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import java.util.ArrayList;
+
+/**
+ * SerialTransport with a write queue size set by the test, writes are only recorded
+ */
+class FakeTransport implements SerialTransport {
+
+    final ArrayList<byte[]> written = new ArrayList<>();
+    volatile int payloadSize = 20;
+    volatile int writeQueueSize;
+    private final LinkMetrics linkMetrics = new LinkMetrics();
+
+    @Override public String getName() { return "fake"; }
+    @Override public String getAddress() { return "fake"; }
+    @Override public String getProfile() { return "fake"; }
+    @Override public void setWriteListener(WriteListener writeListener) {}
+    @Override public void setChannelListener(ChannelListener channelListener) {}
+    @Override public void setWritePacer(WritePacer pacer) {}
+    @Override public void setBufferPool(BufferPool pool) {}
+    @Override public int getPayloadSize() { return payloadSize; }
+    @Override public int getWriteQueueSize() { return writeQueueSize; }
+    @Override public int getWriteQueueDepth(WriteQueue.Priority priority) { return 0; }
+    @Override public int getMaxWriteQueueDepth(WriteQueue.Priority priority) { return 0; }
+    @Override public long getDroppedWriteCount() { return 0; }
+    @Override public LinkMetrics getLinkMetrics() { return linkMetrics; }
+    @Override public void setConnectionPriority(ConnectionGovernor.Mode mode) {}
+    @Override public void requestRssi() {}
+    @Override public void connect(SerialListener listener) {}
+    @Override public void disconnect() {}
+
+    @Override
+    public synchronized void write(byte[] data) {
+        written.add(data);
+    }
+
+    @Override
+    public void write(WriteRequest request) {
+        write(request.data);
+    }
+
+}
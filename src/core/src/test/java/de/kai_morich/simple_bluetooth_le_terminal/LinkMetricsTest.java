@@ -0,0 +1,80 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LinkMetricsTest {
+
+    @Test
+    public void counters() {
+        LinkMetrics metrics = new LinkMetrics();
+        metrics.setMtu(247, 244);
+        metrics.onRead(100);
+        metrics.onRead(20);
+        metrics.onWriteStart(50, 1_000_000);
+        metrics.onWriteDone(2_000_000);
+        metrics.onWriteDone(3_000_000); // without start
+        LinkMetrics.Snapshot snapshot = metrics.snapshot();
+        assertEquals(120, snapshot.rxBytes);
+        assertEquals(50, snapshot.txBytes);
+        assertEquals(247, snapshot.mtu);
+        assertEquals(244, snapshot.payloadSize);
+        assertEquals(1, snapshot.writeCount);
+        assertEquals(LinkMetrics.UNKNOWN, snapshot.rssi);
+    }
+
+    @Test
+    public void writeLatencyPercentiles() {
+        LinkMetrics metrics = new LinkMetrics();
+        for (int i = 0; i < 99; i++) {
+            metrics.onWriteStart(20, 1_000_000);
+            metrics.onWriteDone(2_000_000); // 1 ms
+        }
+        metrics.onWriteStart(20, 1_000_000);
+        metrics.onWriteDone(101_000_000);
+        LinkMetrics.Snapshot snapshot = metrics.snapshot();
+        assertEquals(1000, snapshot.writeP50Micros);
+        assertEquals(1000, snapshot.writeP99Micros);
+        metrics.onWriteStart(20, 1_000_000);
+        metrics.onWriteDone(101_000_000);
+        snapshot = metrics.snapshot();
+        assertEquals(1000, snapshot.writeP50Micros);
+        assertEquals(100_000, snapshot.writeP99Micros);
+    }
+
+    @Test
+    public void writeLatencyWindow() {
+        LinkMetrics metrics = new LinkMetrics();
+        for (int i = 0; i < 2 * LinkMetrics.LATENCY_WINDOW; i++) {
+            metrics.onWriteStart(20, 1_000_000);
+            metrics.onWriteDone(2_000_000);
+        }
+        for (int i = 0; i < LinkMetrics.LATENCY_WINDOW; i++) {
+            metrics.onWriteStart(20, 1_000_000);
+            metrics.onWriteDone(8_500_000); // e.g. after connection interval was raised
+        }
+        LinkMetrics.Snapshot snapshot = metrics.snapshot();
+        assertEquals(3 * LinkMetrics.LATENCY_WINDOW, snapshot.writeCount);
+        assertEquals(7500, snapshot.writeP50Micros);
+        assertEquals(7500, snapshot.writeP99Micros);
+    }
+
+    @Test
+    public void format() {
+        LinkMetrics metrics = new LinkMetrics();
+        metrics.setMtu(23, 20);
+        LinkMetrics.Snapshot previous = metrics.snapshot();
+        previous.time -= 1_000_000_000;
+        metrics.onRead(2048);
+        metrics.setRssi(-60);
+        String text = metrics.snapshot().format(previous);
+        assertTrue(text, text.startsWith("rx 2.0 kB/s"));
+        assertTrue(text, text.contains("mtu 23  payload 20"));
+        assertTrue(text, text.contains("rssi -60 dBm"));
+        assertFalse(text, text.contains("credits"));
+    }
+
+}
@@ -0,0 +1,64 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+public class ReadDispatcherTest {
+
+    private ReadDispatcher dispatcher;
+
+    @After
+    public void shutdown() {
+        if (dispatcher != null)
+            dispatcher.shutdown();
+    }
+
+    @Test
+    public void orderedPerChannelOffCallbackThread() throws Exception {
+        ArrayList<Integer> received = new ArrayList<>();
+        Thread[] threads = new Thread[1];
+        CountDownLatch done = new CountDownLatch(1);
+        dispatcher = new ReadDispatcher((channel, data) -> {
+            threads[0] = Thread.currentThread();
+            received.add(data[0] & 0xff);
+            if (received.size() == 200)
+                done.countDown();
+        });
+        for (int i = 0; i < 200; i++)
+            dispatcher.offer(SerialTransport.Channel.Data, new byte[] {(byte) i});
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertNotSame(Thread.currentThread(), threads[0]);
+        for (int i = 0; i < 200; i++)
+            assertEquals(i, (int) received.get(i));
+    }
+
+    @Test
+    public void slowChannelDoesNotDelayOthers() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch ack = new CountDownLatch(1);
+        dispatcher = new ReadDispatcher((channel, data) -> {
+            try {
+                if (channel == SerialTransport.Channel.Data)
+                    release.await();
+                else
+                    ack.countDown();
+            } catch (InterruptedException ignored) {
+            }
+        });
+        dispatcher.offer(SerialTransport.Channel.Data, new byte[1]);
+        dispatcher.offer(SerialTransport.Channel.Data, new byte[1]);
+        dispatcher.offer(SerialTransport.Channel.Ack, new byte[1]);
+        assertTrue(ack.await(5, TimeUnit.SECONDS));
+        assertTrue(dispatcher.size() >= 1);
+        release.countDown();
+    }
+
+}
@@ -0,0 +1,132 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ScriptEngineTest {
+
+    private static final byte[] NEWLINE = "\n".getBytes();
+
+    private final ArrayList<String> sent = new ArrayList<>();
+    private ScriptEngine.Output reply; // called after each write
+    private final ScriptEngine engine = new ScriptEngine(data -> {
+        synchronized (sent) {
+            sent.add(new String(data));
+        }
+        if (reply != null)
+            reply.write(data);
+    });
+
+    @After
+    public void shutdown() {
+        engine.shutdown();
+    }
+
+    private Exception run(String text) throws Exception {
+        CountDownLatch done = new CountDownLatch(1);
+        Exception[] error = new Exception[1];
+        engine.start(ScriptEngine.parse("test", text), NEWLINE, (script, e) -> {
+            error[0] = e;
+            done.countDown();
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        return error[0];
+    }
+
+    private static int parseError(String text) {
+        try {
+            ScriptEngine.parse("test", text);
+        } catch (ParseException e) {
+            return e.getErrorOffset();
+        }
+        fail();
+        return 0;
+    }
+
+    @Test
+    public void parseErrors() {
+        assertEquals(2, parseError("send a\nfoo"));
+        assertEquals(1, parseError("end"));
+        assertEquals(2, parseError("# comment\nloop 2\nsend a"));
+        assertEquals(1, parseError("hex 0g"));
+        assertEquals(1, parseError("wait"));
+        assertEquals(1, parseError("expect (x"));
+        assertEquals(2, parseError("send a\nloop\nend"));
+        assertEquals(2, parseError("loop 2\nloop\n# comment\nend\nend"));
+    }
+
+    @Test
+    public void sendLoopAndVariables() throws Exception {
+        assertNull(run("set i 0\nloop 3\nadd i 1\nsend LED ${i}\nend\nhex 41 42"));
+        assertEquals("[LED 1\n, LED 2\n, LED 3\n, AB]", sent.toString());
+    }
+
+    @Test
+    public void waitKeepsTimeLine() throws Exception {
+        long start = System.nanoTime();
+        assertNull(run("loop 5\nwait 20\nend"));
+        long millis = (System.nanoTime() - start) / 1_000_000;
+        assertTrue(millis >= 100 && millis < 1000);
+    }
+
+    @Test
+    public void expectStoresGroups() throws Exception {
+        reply = data -> engine.onRead("temp=23\r\n".getBytes());
+        assertNull(run("send T\nexpect temp=(\\d+) 1000\nsend got ${1}"));
+        assertEquals("[T\n, got 23\n]", sent.toString());
+    }
+
+    @Test
+    public void expectTimeout() throws Exception {
+        Exception e = run("send T\nexpect never 50");
+        assertTrue(e instanceof IOException);
+        assertTrue(e.getMessage().startsWith("line 2: timeout"));
+    }
+
+    @Test
+    public void undefinedVariable() throws Exception {
+        Exception e = run("send ${x}");
+        assertTrue(e instanceof IOException);
+    }
+
+    @Test(timeout = 5000)
+    public void stopEndlessLoop() throws Exception {
+        CountDownLatch done = new CountDownLatch(1);
+        engine.start(ScriptEngine.parse("test", "loop\nsend a\nwait 1\nend"), NEWLINE, (script, e) -> done.countDown());
+        Thread.sleep(50);
+        assertTrue(engine.isRunning());
+        engine.stop();
+        done.await();
+        assertFalse(engine.isRunning());
+    }
+
+    @Test(timeout = 5000)
+    public void stopBusyLoop() throws Exception {
+        CountDownLatch done = new CountDownLatch(1);
+        engine.start(ScriptEngine.parse("test", "loop\nset a 1\nend"), NEWLINE, (script, e) -> done.countDown());
+        Thread.sleep(50);
+        engine.stop();
+        done.await();
+        assertFalse(engine.isRunning());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void singleScript() throws Exception {
+        ScriptEngine.Script script = ScriptEngine.parse("test", "wait 1000");
+        engine.start(script, NEWLINE, (s, e) -> {});
+        engine.start(script, NEWLINE, (s, e) -> {});
+    }
+
+}
@@ -0,0 +1,178 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ScrollbackIndexTest {
+
+    private static final int BLOCK_SIZE = ScrollbackIndex.BLOCK_SIZE;
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * lines of 'x', so the blocks contain only few trigrams
+     */
+    private static byte[] filler(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++)
+            data[i] = (byte) (i % 16 == 15 ? '\n' : 'x');
+        return data;
+    }
+
+    private static ArrayList<Long> offsets(ArrayList<ScrollbackIndex.Hit> hits) {
+        ArrayList<Long> offsets = new ArrayList<>();
+        for (ScrollbackIndex.Hit hit : hits)
+            offsets.add(hit.offset);
+        return offsets;
+    }
+
+    private static String context(ScrollbackIndex.Hit hit) {
+        return new String(hit.context, StandardCharsets.US_ASCII);
+    }
+
+    @Test
+    public void bloomPreCheck() {
+        ScrollbackIndex index = new ScrollbackIndex();
+        byte[] data = filler(3 * BLOCK_SIZE);
+        System.arraycopy(bytes("Needle"), 0, data, BLOCK_SIZE + 100, 6);
+        index.append(data, 0);
+        assertEquals(1, index.countCandidates(bytes("needle"))); // case folded
+        assertEquals(1, index.countCandidates(bytes("NEEDLE")));
+        assertEquals(0, index.countCandidates(bytes("absent")));
+        assertEquals(3, index.countCandidates(bytes("xxx")));
+        assertEquals(3, index.countCandidates(bytes("ab"))); // no trigram, all blocks scanned
+        assertEquals(Arrays.asList(BLOCK_SIZE + 100L), offsets(index.search(bytes("needle"), true, 10)));
+        assertEquals(0, index.search(bytes("needle"), false, 10).size()); // filter passed, but no match
+        assertEquals(0, index.search(bytes("absent"), true, 10).size());
+        assertEquals(0, index.search(bytes("ab"), true, 10).size());
+    }
+
+    @Test
+    public void search() {
+        ScrollbackIndex index = new ScrollbackIndex();
+        index.append(bytes("abc abcabd\n"), 0);
+        index.append(bytes("xABCABD abcab"), 0);
+        index.append(bytes("d\r\n"), 0);
+        ArrayList<ScrollbackIndex.Hit> hits = index.search(bytes("abcabd"), false, 10);
+        assertEquals(Arrays.asList(4L, 19L), offsets(hits));
+        assertEquals(0, hits.get(0).line);
+        assertEquals("abc abcabd", context(hits.get(0)));
+        assertEquals(4, hits.get(0).contextOffset);
+        assertEquals(1, hits.get(1).line);
+        assertEquals("xABCABD abcabd", context(hits.get(1)));
+        assertEquals(8, hits.get(1).contextOffset);
+        assertEquals(Arrays.asList(4L, 12L, 19L), offsets(index.search(bytes("abcabd"), true, 10)));
+        assertEquals(Arrays.asList(4L, 12L), offsets(index.search(bytes("AbCaBd"), true, 2))); // maxHits
+        assertEquals(Arrays.asList(10L, 26L), offsets(index.search(bytes("\n"), false, 10)));
+    }
+
+    @Test
+    public void searchMatchesNaiveSearch() {
+        Random random = new Random(1);
+        byte[] data = new byte[3 * BLOCK_SIZE + 1000];
+        for (int i = 0; i < data.length; i++)
+            data[i] = (byte) "abcA\n".charAt(random.nextInt(5));
+        ScrollbackIndex index = new ScrollbackIndex();
+        for (int pos = 0; pos < data.length; ) { // odd chunk sizes
+            int n = Math.min(data.length - pos, 1 + random.nextInt(5000));
+            index.append(data, pos, n, 0);
+            pos += n;
+        }
+        for (int k = 0; k < 50; k++) {
+            int length = 1 + random.nextInt(8);
+            int start = random.nextInt(data.length - length);
+            byte[] pattern = Arrays.copyOfRange(data, start, start + length);
+            for (boolean ignoreCase : new boolean[]{false, true}) {
+                ArrayList<Long> expected = new ArrayList<>();
+                for (int i = 0; i + length <= data.length; i++) {
+                    int j = 0;
+                    while (j < length && (data[i + j] == pattern[j]
+                            || ignoreCase && Character.toLowerCase(data[i + j]) == Character.toLowerCase(pattern[j])))
+                        j++;
+                    if (j == length)
+                        expected.add((long) i);
+                }
+                assertEquals(new String(pattern, StandardCharsets.US_ASCII) + " ignoreCase=" + ignoreCase,
+                        expected, offsets(index.search(pattern, ignoreCase, Integer.MAX_VALUE)));
+            }
+        }
+    }
+
+    @Test
+    public void matchSpanningBlocks() {
+        ScrollbackIndex index = new ScrollbackIndex();
+        byte[] data = filler(BLOCK_SIZE - 3);
+        data[data.length - 1] = ' ';
+        index.append(data, 0);
+        index.append(bytes("needle xx\n"), 0);
+        long lines = BLOCK_SIZE / 16 - 1; // filler lines before
+        ArrayList<ScrollbackIndex.Hit> hits = index.search(bytes("NEEDLE"), true, 10);
+        assertEquals(Arrays.asList(BLOCK_SIZE - 3L), offsets(hits));
+        assertEquals(lines, hits.get(0).line);
+        assertEquals("xxxxxxxxxxxx needle xx", context(hits.get(0)));
+        assertEquals(13, hits.get(0).contextOffset);
+        assertEquals(Arrays.asList(BLOCK_SIZE - 4L), offsets(index.search(bytes(" ne"), false, 10)));
+        assertEquals(Arrays.asList(BLOCK_SIZE - 1L), offsets(index.search(bytes("edle"), false, 10)));
+    }
+
+    @Test
+    public void hexPattern() {
+        ScrollbackIndex index = new ScrollbackIndex();
+        byte[] data = new byte[2 * BLOCK_SIZE];
+        for (int i = 0; i < data.length; i++)
+            data[i] = (byte) i;
+        index.append(data, 0);
+        byte[] pattern = {(byte) 0xfe, (byte) 0xff, 0x00, 0x01}; // each 256 bytes, also spanning blocks
+        ArrayList<ScrollbackIndex.Hit> hits = index.search(pattern, false, Integer.MAX_VALUE);
+        assertEquals(data.length / 256 - 1, hits.size());
+        for (int i = 0; i < hits.size(); i++)
+            assertEquals(254 + 256L * i, hits.get(i).offset);
+        assertTrue(offsets(hits).contains(BLOCK_SIZE - 2L));
+        // hex search is case sensitive, 0x41 'A' does not match 0x61 'a'
+        assertEquals(Arrays.asList(0x41L, 0x141L), offsets(index.search(new byte[]{0x41, 0x42}, false, 2)));
+        assertEquals(Arrays.asList(0x61L, 0x161L), offsets(index.search(new byte[]{0x61, 0x62}, false, 2)));
+        assertEquals(Arrays.asList(0x41L, 0x61L), offsets(index.search(new byte[]{0x61, 0x62}, true, 2)));
+    }
+
+    @Test
+    public void eviction() throws IOException {
+        ScrollbackIndex index = new ScrollbackIndex();
+        byte[] data = filler(BLOCK_SIZE);
+        long blocks = ScrollbackIndex.MAX_SIZE / BLOCK_SIZE + 2;
+        for (long i = 0; i < blocks; i++) {
+            byte[] marker = bytes(i == 0 ? "first" : i == blocks - 1 ? "last!" : "xxxxx");
+            System.arraycopy(marker, 0, data, 0, 5);
+            index.append(data, i);
+        }
+        assertEquals(blocks * BLOCK_SIZE, index.getSize());
+        // oldest block dropped, MAX_SIZE in full blocks kept plus the current block
+        assertEquals(BLOCK_SIZE, index.getStart());
+        assertEquals(0, index.search(bytes("first"), false, 10).size());
+        ArrayList<ScrollbackIndex.Hit> hits = index.search(bytes("last!"), false, 10);
+        assertEquals(Arrays.asList((blocks - 1) * BLOCK_SIZE), offsets(hits));
+        assertEquals((blocks - 1) * BLOCK_SIZE / 16, hits.get(0).line); // lines of dropped blocks still counted
+        long[] first = new long[]{-1};
+        long[] size = new long[1];
+        index.forEachChunk((time, chunk, offset, length) -> {
+            if (first[0] < 0)
+                first[0] = time;
+            size[0] += length;
+        });
+        assertEquals(1, first[0]);
+        assertEquals(ScrollbackIndex.MAX_SIZE + BLOCK_SIZE, size[0]);
+        index.clear();
+        assertEquals(0, index.getSize());
+        assertEquals(0, index.getStart());
+    }
+
+}
@@ -0,0 +1,30 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.channels.Channels;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SessionExporterTest {
+
+    @Test
+    public void textInChunks() throws Exception {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; text.length() < 3 * SessionExporter.TEXT_CHUNK_SIZE; i++)
+            text.append("line ").append(i).append(" \ud83d\ude00\n"); // surrogate pairs at varying offsets
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        int[] calls = new int[1];
+        new SessionExporter(Channels.newChannel(stream)).exportText(text.length(), (offset, chars) -> {
+            calls[0]++;
+            int count = Math.min(chars.length, text.length() - offset);
+            text.getChars(offset, offset + count, chars, 0);
+            return count;
+        });
+        assertEquals(text.toString(), stream.toString("UTF-8"));
+        assertTrue(calls[0] >= 3);
+    }
+
+}
@@ -0,0 +1,124 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class StreamTransportTest {
+
+    private static final int PAYLOAD_SIZE = 4;
+
+    private final LinkedBlockingQueue<String> events = new LinkedBlockingQueue<>();
+    private final List<Integer> writeLengths = Collections.synchronizedList(new ArrayList<>());
+    private PipedInputStream deviceIn;   // written by transport
+    private PipedOutputStream deviceOut; // read by transport
+    private StreamTransport transport;
+
+    private final SerialListener listener = new SerialListener() {
+        @Override public void onSerialConnect() { events.add("connect"); }
+        @Override public void onSerialConnectError(Exception e) { events.add("connect error: " + e.getMessage()); }
+        @Override public void onSerialRead(byte[] data) { events.add("read: " + new String(data)); }
+        @Override public void onSerialRead(ArrayDeque<byte[]> datas) {}
+        @Override public void onSerialIoError(Exception e) { events.add("io error: " + e.getMessage()); }
+    };
+
+    @Before
+    public void setUp() throws IOException {
+        PipedOutputStream out = new PipedOutputStream();
+        deviceIn = new PipedInputStream(out, 1024);
+        PipedInputStream in = new PipedInputStream(1024);
+        deviceOut = new PipedOutputStream(in);
+        OutputStream recordingOut = new OutputStream() {
+            @Override public void write(int b) throws IOException { write(new byte[] {(byte) b}, 0, 1); }
+            @Override public void write(byte[] b, int off, int len) throws IOException { writeLengths.add(len); out.write(b, off, len); }
+            @Override public void flush() throws IOException { out.flush(); }
+            @Override public void close() throws IOException { out.close(); }
+        };
+        transport = new StreamTransport("test", "test", "test", () -> new StreamTransport.Connection() {
+            @Override public InputStream getInputStream() { return in; }
+            @Override public OutputStream getOutputStream() { return recordingOut; }
+            @Override public int getPayloadSize() { return PAYLOAD_SIZE; }
+            @Override public void close() throws IOException { recordingOut.close(); in.close(); }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        transport.disconnect();
+    }
+
+    private String poll() throws InterruptedException {
+        return events.poll(5, TimeUnit.SECONDS);
+    }
+
+    private String readDevice(int length) throws IOException {
+        byte[] data = new byte[length];
+        for (int offset = 0; offset < length; )
+            offset += deviceIn.read(data, offset, length - offset);
+        return new String(data);
+    }
+
+    @Test(expected = IOException.class)
+    public void writeBeforeConnect() throws IOException {
+        transport.write("abc".getBytes());
+    }
+
+    @Test
+    public void writeInChunksOfPayloadSize() throws Exception {
+        transport.connect(listener);
+        assertEquals("connect", poll());
+        assertEquals(PAYLOAD_SIZE, transport.getPayloadSize());
+        transport.write(new WriteRequest("abcdefghij".getBytes()).setListener((request, reason) -> events.add("written: " + reason)));
+        assertEquals("abcdefghij", readDevice(10));
+        assertEquals("written: null", poll());
+        assertEquals("[4, 4, 2]", writeLengths.toString());
+        assertEquals(0, transport.getWriteQueueSize());
+        assertEquals(10, transport.getLinkMetrics().snapshot().txBytes);
+    }
+
+    @Test
+    public void read() throws Exception {
+        BufferPool pool = new BufferPool(4);
+        pool.release(new byte[5]);
+        transport.setBufferPool(pool);
+        transport.connect(listener);
+        assertEquals("connect", poll());
+        deviceOut.write("hello".getBytes());
+        deviceOut.flush();
+        assertEquals("read: hello", poll());
+        assertEquals(0, pool.size()); // taken from pool
+        assertEquals(5, transport.getLinkMetrics().snapshot().rxBytes);
+    }
+
+    @Test
+    public void closedByDevice() throws Exception {
+        transport.connect(listener);
+        assertEquals("connect", poll());
+        deviceOut.close();
+        assertEquals("io error: connection closed by device", poll());
+    }
+
+    @Test
+    public void disconnectReportsNoError() throws Exception {
+        transport.connect(listener);
+        assertEquals("connect", poll());
+        transport.disconnect();
+        assertNull(events.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+}
@@ -0,0 +1,128 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+public class TextDecoderTest {
+
+    // 1, 2, 3 and 4 byte sequences and CR in all positions
+    private static final String TEXT = "a\u00e4\u20ac\ud83d\ude00\r\nb\rc\r\r\n\u00e4\r\n";
+    private static final String TEXT_CRLF = "a\u00e4\u20ac\ud83d\ude00\nb\rc\r\n\u00e4\n";
+
+    private static String decode(TextDecoder decoder, byte[]... fragments) {
+        StringBuilder sb = new StringBuilder();
+        for (byte[] fragment : fragments)
+            sb.append(decoder.decode(fragment)); // copy, buffer is reused
+        return sb.toString();
+    }
+
+    private static TextDecoder decoder(boolean crlf) {
+        TextDecoder decoder = new TextDecoder();
+        decoder.setCrLf(crlf);
+        return decoder;
+    }
+
+    @Test
+    public void singleShot() {
+        byte[] data = TEXT.getBytes(StandardCharsets.UTF_8);
+        assertEquals(TEXT, decode(decoder(false), data));
+        assertEquals(TEXT_CRLF, decode(decoder(true), data));
+    }
+
+    @Test
+    public void splitAtEveryOffset() {
+        byte[] data = TEXT.getBytes(StandardCharsets.UTF_8);
+        for (boolean crlf : new boolean[]{false, true}) {
+            String expected = decode(decoder(crlf), data);
+            for (int i = 0; i <= data.length; i++) {
+                for (int j = i; j <= data.length; j++) {
+                    String actual = decode(decoder(crlf),
+                            Arrays.copyOfRange(data, 0, i),
+                            Arrays.copyOfRange(data, i, j),
+                            Arrays.copyOfRange(data, j, data.length));
+                    assertEquals("crlf=" + crlf + " split=" + i + "," + j, expected, actual);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void byteByByte() {
+        byte[] data = TEXT.getBytes(StandardCharsets.UTF_8);
+        TextDecoder decoder = decoder(true);
+        StringBuilder sb = new StringBuilder();
+        for (byte b : data)
+            sb.append(decoder.decode(new byte[]{b}));
+        assertEquals(TEXT_CRLF, sb.toString());
+    }
+
+    @Test
+    public void incompleteSequenceKept() {
+        byte[] data = "\u20ac".getBytes(StandardCharsets.UTF_8);
+        TextDecoder decoder = decoder(false);
+        assertEquals("", decoder.decode(Arrays.copyOf(data, 2)).toString());
+        assertEquals("\u20ac", decoder.decode(Arrays.copyOfRange(data, 2, 3)).toString());
+    }
+
+    @Test
+    public void pendingCr() {
+        TextDecoder decoder = decoder(true);
+        assertEquals("a", decoder.decode("a\r".getBytes()).toString()); // held back
+        assertEquals("\rb", decoder.decode("b".getBytes()).toString()); // not followed by LF
+        assertEquals("c", decoder.decode("c\r".getBytes()).toString());
+        assertEquals("\n", decoder.decode("\n".getBytes()).toString());
+    }
+
+    @Test
+    public void pendingCrClearedBySetCrLf() {
+        TextDecoder decoder = decoder(true);
+        assertEquals("a", decoder.decode("a\r".getBytes()).toString());
+        decoder.setCrLf(false);
+        assertEquals("\nb\r", decoder.decode("\nb\r".getBytes()).toString());
+        decoder.setCrLf(true); // nothing held back in CR mode
+        assertEquals("\n", decoder.decode("\n".getBytes()).toString());
+    }
+
+    @Test
+    public void pendingCrClearedByReset() {
+        TextDecoder decoder = decoder(true);
+        assertEquals("a", decoder.decode(new byte[]{'a', '\r', (byte) 0xe2}).toString());
+        decoder.reset();
+        assertEquals("b", decoder.decode("b".getBytes()).toString());
+    }
+
+    @Test
+    public void bufferGrowth() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 1000; i++)
+            sb.append(i % 3 == 0 ? "\u20ac" : "x\r\n");
+        String text = sb.toString();
+        byte[] data = text.getBytes(StandardCharsets.UTF_8);
+        String expected = text.replace("\r\n", "\n");
+        for (int i : new int[]{1, 255, 256, 257, data.length - 1}) {
+            TextDecoder decoder = decoder(true);
+            // small fragment first, then a fragment larger than the in and out buffers
+            assertEquals("split=" + i, expected, decode(decoder,
+                    Arrays.copyOfRange(data, 0, i),
+                    Arrays.copyOfRange(data, i, data.length)));
+            // buffers stay usable after growing
+            assertEquals("\u00e4\n", decode(decoder, "\u00e4\r\n".getBytes(StandardCharsets.UTF_8)));
+        }
+        TextDecoder decoder = decoder(false);
+        byte[] euro = "\u20ac".getBytes(StandardCharsets.UTF_8);
+        byte[] large = new byte[1 + 3 * 1000];
+        large[0] = euro[2];
+        for (int i = 0; i < 1000; i++)
+            System.arraycopy(euro, 0, large, 1 + 3 * i, 3);
+        // incomplete sequence kept while in buffer grows
+        String actual = decode(decoder, Arrays.copyOf(euro, 2), large);
+        assertEquals(1001, actual.length());
+        for (int i = 0; i < actual.length(); i++)
+            assertEquals('\u20ac', actual.charAt(i));
+    }
+
+}
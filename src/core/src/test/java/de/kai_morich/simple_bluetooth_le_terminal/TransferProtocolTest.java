@@ -0,0 +1,82 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+public class TransferProtocolTest {
+
+    private static byte[] dataFrame(int block, String text) {
+        byte[] data = text.getBytes();
+        byte[] frame = TransferProtocol.frame(TransferProtocol.DATA, 4 + data.length);
+        TransferProtocol.putInt(frame, TransferProtocol.HEADER_SIZE, block);
+        System.arraycopy(data, 0, frame, TransferProtocol.HEADER_SIZE + 4, data.length);
+        return TransferProtocol.seal(frame);
+    }
+
+    private static ArrayList<String> decode(byte[] stream, int chunkSize) {
+        ArrayList<String> frames = new ArrayList<>();
+        TransferProtocol.Decoder decoder = new TransferProtocol.Decoder((type, payload, offset, length) ->
+                frames.add(type + ":" + TransferProtocol.getInt(payload, offset) + ":" + new String(payload, offset + 4, length - 4)));
+        for (int i = 0; i < stream.length; i += chunkSize)
+            decoder.feed(stream, i, Math.min(chunkSize, stream.length - i));
+        return frames;
+    }
+
+    @Test
+    public void crc16() {
+        byte[] data = "123456789".getBytes();
+        assertEquals(0x29b1, TransferProtocol.crc16(data, 0, data.length)); // CRC-16/CCITT-FALSE check value
+    }
+
+    @Test
+    public void littleEndian() {
+        byte[] data = new byte[4];
+        TransferProtocol.putInt(data, 0, 0x12345678);
+        assertEquals(0x78, data[0]);
+        assertEquals(0x12345678, TransferProtocol.getInt(data, 0));
+        assertEquals(0x5678, TransferProtocol.getShort(data, 0));
+    }
+
+    @Test
+    public void framesSplitAcrossChunks() {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (int i = 0; i < 10; i++) {
+            byte[] frame = dataFrame(i, "block " + i);
+            stream.write(frame, 0, frame.length);
+        }
+        for (int chunkSize : new int[] {1, 7, 20, 1000})
+            assertEquals(10, decode(stream.toByteArray(), chunkSize).size());
+        assertEquals("2:3:block 3", decode(stream.toByteArray(), 20).get(3));
+    }
+
+    @Test
+    public void corruptedFrameIsSkipped() {
+        byte[] good1 = dataFrame(1, "one");
+        byte[] bad = dataFrame(2, "two");
+        bad[bad.length - 3] ^= 1;
+        byte[] good3 = dataFrame(3, "three");
+        byte[] stream = new byte[3 + good1.length + bad.length + good3.length];
+        stream[0] = (byte) 0xa5; // garbage with magic
+        System.arraycopy(good1, 0, stream, 3, good1.length);
+        System.arraycopy(bad, 0, stream, 3 + good1.length, bad.length);
+        System.arraycopy(good3, 0, stream, 3 + good1.length + bad.length, good3.length);
+        assertEquals("[2:1:one, 2:3:three]", decode(stream, 5).toString());
+    }
+
+    @Test
+    public void frameHiddenInTruncatedFrame() {
+        byte[] truncated = Arrays.copyOf(dataFrame(1, "lost in the middle"), 10);
+        byte[] good = dataFrame(2, "two");
+        byte[] stream = new byte[truncated.length + 2 * good.length]; // CRC of truncated frame fails when its length arrived
+        System.arraycopy(truncated, 0, stream, 0, truncated.length);
+        System.arraycopy(good, 0, stream, truncated.length, good.length);
+        System.arraycopy(good, 0, stream, truncated.length + good.length, good.length);
+        assertEquals("[2:2:two, 2:2:two]", decode(stream, 4).toString());
+    }
+
+}
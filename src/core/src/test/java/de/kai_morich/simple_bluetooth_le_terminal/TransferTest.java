@@ -0,0 +1,179 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * TransferSender against TransferReceiver over a loopback that drops and corrupts frames
+ */
+public class TransferTest {
+
+    private static final double LOSS = 0.1; // together about 20% of the frames are lost or corrupted
+    private static final double CORRUPTION = 0.1;
+    private static final int BLOCKS = 100;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * frames in both directions go through one queue and link thread, each frame is
+     * dropped or has one bit flipped with given probability
+     */
+    private static class Link {
+        private final LinkedBlockingQueue<Object[]> queue = new LinkedBlockingQueue<>();
+        private final Random random = new Random(42);
+        private final Thread thread;
+        private final TransferReceiver receiver;
+        private final TransferProtocol.Decoder ackDecoder; // of receiver output before loss
+        private volatile TransferSender sender;
+        volatile long ackNext = -1;
+        volatile long firstAckNext = -1;
+        volatile long firstBlock = Long.MAX_VALUE; // lowest block sent
+        volatile Exception receiverError;
+
+        Link(File dir) {
+            receiver = new TransferReceiver(dir, data -> send(false, data));
+            ackDecoder = new TransferProtocol.Decoder((type, payload, offset, length) -> {
+                if (type == TransferProtocol.ACK) {
+                    ackNext = TransferProtocol.getInt(payload, offset) & 0xffffffffL;
+                    if (firstAckNext < 0)
+                        firstAckNext = ackNext;
+                }
+            });
+            thread = new Thread(this::run, "link");
+            thread.start();
+        }
+
+        FileSender.Output output() {
+            return new FileSender.Output() {
+                @Override
+                public void write(byte[] data) {
+                    if (data[2] == TransferProtocol.DATA)
+                        firstBlock = Math.min(firstBlock, TransferProtocol.getInt(data, TransferProtocol.HEADER_SIZE));
+                    send(true, data);
+                }
+                @Override
+                public int getPayloadSize() { return 244; }
+                @Override
+                public int getWriteQueueSize() { return queue.size(); }
+            };
+        }
+
+        private void send(boolean toReceiver, byte[] data) {
+            if (!toReceiver)
+                ackDecoder.feed(data, 0, data.length);
+            synchronized (random) {
+                if (random.nextDouble() < LOSS)
+                    return;
+                if (random.nextDouble() < CORRUPTION) {
+                    data = data.clone();
+                    data[random.nextInt(data.length)] ^= 1 << random.nextInt(8);
+                }
+            }
+            queue.add(new Object[] {toReceiver, data});
+        }
+
+        private void run() {
+            try {
+                while (true) {
+                    Object[] item = queue.take();
+                    byte[] data = (byte[]) item[1];
+                    TransferSender sender = this.sender;
+                    if ((Boolean) item[0]) {
+                        try {
+                            receiver.onRead(data, 0, data.length);
+                        } catch (IOException e) {
+                            receiverError = e;
+                        }
+                    } else if (sender != null) {
+                        sender.onRead(data);
+                    }
+                    if (sender != null)
+                        sender.onWriteNext();
+                }
+            } catch (InterruptedException ignored) {
+            }
+        }
+
+        void close() throws InterruptedException {
+            thread.interrupt();
+            thread.join();
+            receiver.close();
+        }
+    }
+
+    private static class Result implements FileSender.Listener {
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile Exception error;
+
+        @Override
+        public void onFileProgress(long sent, long size, long bytesPerSecond) {
+        }
+
+        @Override
+        public void onFileFinished(long sent, long size, Exception e) {
+            error = e;
+            done.countDown();
+        }
+    }
+
+    @Test(timeout = 120_000)
+    public void lossyLinkWithResume() throws Exception {
+        byte[] content = new byte[BLOCKS * TransferProtocol.BLOCK_SIZE - 100];
+        new Random(1).nextBytes(content);
+        File source = folder.newFile("source.bin");
+        Files.write(source.toPath(), content);
+        File dir = folder.newFolder("received");
+
+        // interrupted by cancel, like disconnect in SerialService
+        Link link = new Link(dir);
+        Result result = new Result();
+        link.sender = new TransferSender(open(source), "file.bin", link.output(), result);
+        link.sender.start();
+        while (link.ackNext < BLOCKS / 3 && result.done.getCount() > 0)
+            Thread.sleep(1);
+        link.sender.cancel();
+        assertTrue(result.done.await(10, TimeUnit.SECONDS));
+        assertTrue(result.error instanceof InterruptedIOException);
+        link.close();
+        long resumeAt = link.ackNext;
+        assertFalse(new File(dir, "file.bin").exists());
+
+        // resumed with new receiver, e.g. after device restart, from part file
+        link = new Link(dir);
+        result = new Result();
+        link.sender = new TransferSender(open(source), "file.bin", link.output(), result);
+        link.sender.start();
+        assertTrue(result.done.await(60, TimeUnit.SECONDS));
+        link.close();
+        assertNull(result.error);
+        assertNull(link.receiverError);
+        assertTrue(link.firstAckNext >= BLOCKS / 3 && link.firstAckNext <= resumeAt);
+        assertEquals(link.firstAckNext, link.firstBlock); // not sent again from start
+        assertArrayEquals(content, Files.readAllBytes(new File(dir, "file.bin").toPath()));
+        assertEquals(1, dir.list().length); // part file renamed
+    }
+
+    private static FileChannel open(File file) throws IOException {
+        return new RandomAccessFile(file, "r").getChannel();
+    }
+
+}
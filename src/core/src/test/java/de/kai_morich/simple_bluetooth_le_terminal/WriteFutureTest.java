@@ -0,0 +1,119 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class WriteFutureTest {
+
+    private static void notifyFinished(WriteQueue queue) {
+        ArrayList<WriteRequest> finished = queue.pollFinished();
+        if (finished != null)
+            for (WriteRequest request : finished)
+                request.notifyFinished();
+    }
+
+    private static String failure(WriteFuture future) throws InterruptedException, TimeoutException {
+        try {
+            future.get(1, TimeUnit.SECONDS);
+            fail("written");
+            return null;
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+            return e.getCause().getMessage();
+        }
+    }
+
+    @Test
+    public void doneAfterLastChunkConfirmed() throws Exception {
+        WriteQueue queue = new WriteQueue();
+        WriteFuture future = new WriteFuture();
+        assertNotNull(queue.add(new WriteRequest("aabbcc".getBytes()).setListener(future), 2, true));
+        assertNotNull(queue.next(true)); // first confirmed
+        notifyFinished(queue);
+        assertNotNull(queue.next(true));
+        notifyFinished(queue);
+        assertFalse(future.isDone()); // last chunk pending
+        try {
+            future.get(10, TimeUnit.MILLISECONDS);
+            fail("done");
+        } catch (TimeoutException ignored) {
+        }
+        assertNull(queue.next(true)); // last confirmed
+        notifyFinished(queue);
+        assertTrue(future.isDone());
+        assertNull(future.get());
+    }
+
+    @Test
+    public void completedFromOtherThread() throws Exception {
+        WriteQueue queue = new WriteQueue();
+        WriteFuture future = new WriteFuture();
+        queue.add(new WriteRequest("aa".getBytes()).setListener(future), 20, true);
+        Thread thread = new Thread(() -> {
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException ignored) {
+            }
+            synchronized (queue) {
+                queue.next(true);
+            }
+            notifyFinished(queue);
+        });
+        thread.start();
+        assertNull(future.get(1, TimeUnit.SECONDS));
+        thread.join();
+    }
+
+    @Test
+    public void failsOnExpiry() throws Exception {
+        WriteQueue queue = new WriteQueue();
+        queue.add("aa".getBytes(), 20, true);
+        WriteFuture future = new WriteFuture();
+        queue.add(new WriteRequest("bb".getBytes()).setTimeout(1).setListener(future), 20, true);
+        Thread.sleep(5);
+        assertNull(queue.next(true));
+        notifyFinished(queue);
+        assertEquals("write expired", failure(future));
+    }
+
+    @Test
+    public void failsOnSupersede() throws Exception {
+        WriteQueue queue = new WriteQueue();
+        queue.add("aa".getBytes(), 20, true);
+        WriteFuture off = new WriteFuture();
+        WriteFuture on = new WriteFuture();
+        queue.add(new WriteRequest("LED OFF".getBytes()).setSupersedeKey("LED").setListener(off), 20, true);
+        queue.add(new WriteRequest("LED ON".getBytes()).setSupersedeKey("LED").setListener(on), 20, true);
+        notifyFinished(queue);
+        assertEquals("write superseded", failure(off));
+        assertFalse(on.isDone());
+        queue.next(true);
+        queue.next(true);
+        notifyFinished(queue);
+        assertNull(on.get());
+    }
+
+    @Test
+    public void callbackAndFirstCompletionWins() {
+        WriteFuture future = new WriteFuture();
+        ArrayList<String> results = new ArrayList<>();
+        future.whenDone(e -> results.add(String.valueOf(e == null ? null : e.getMessage())));
+        assertTrue(future.complete(new WriteGate.QueueFullException()));
+        assertFalse(future.complete(null));
+        future.whenDone(e -> results.add("late " + e.getMessage()));
+        assertEquals("[write queue full, late write queue full]", results.toString());
+    }
+
+}
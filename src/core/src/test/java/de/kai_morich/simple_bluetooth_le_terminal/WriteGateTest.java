@@ -0,0 +1,87 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import org.junit.Test;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class WriteGateTest {
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidCapacity() {
+        new WriteGate(0, null);
+    }
+
+    @Test
+    public void emptyQueueAcceptsLargeWrite() throws Exception {
+        FakeTransport transport = new FakeTransport();
+        new WriteGate(2, null).acquire(transport, 1000, WriteGate.Backpressure.Fail);
+    }
+
+    @Test
+    public void failWhenFull() throws Exception {
+        FakeTransport transport = new FakeTransport();
+        WriteGate gate = new WriteGate(4, null);
+        transport.writeQueueSize = 3;
+        gate.acquire(transport, 20, WriteGate.Backpressure.Fail);
+        try {
+            gate.acquire(transport, 21, WriteGate.Backpressure.Fail); // 2 chunks
+            fail();
+        } catch (WriteGate.QueueFullException ignored) {
+        }
+    }
+
+    @Test
+    public void signalOnceUntilDrained() throws Exception {
+        FakeTransport transport = new FakeTransport();
+        ArrayList<Boolean> signals = new ArrayList<>();
+        WriteGate gate = new WriteGate(4, signals::add);
+        transport.writeQueueSize = 4;
+        gate.acquire(transport, 20, WriteGate.Backpressure.Signal);
+        gate.acquire(transport, 20, WriteGate.Backpressure.Signal);
+        gate.onWriteNext(transport);
+        transport.writeQueueSize = 3;
+        gate.onWriteNext(transport);
+        gate.onWriteNext(transport);
+        assertEquals("[true, false]", signals.toString());
+    }
+
+    @Test(timeout = 5000)
+    public void blockUntilDrained() throws Exception {
+        FakeTransport transport = new FakeTransport();
+        WriteGate gate = new WriteGate(4, null);
+        transport.writeQueueSize = 4;
+        Thread drain = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException ignored) {
+            }
+            transport.writeQueueSize = 0;
+            gate.onWriteNext(transport);
+        });
+        long start = System.nanoTime();
+        drain.start();
+        gate.acquire(transport, 20, WriteGate.Backpressure.Block);
+        assertTrue(System.nanoTime() - start >= 40_000_000);
+        drain.join();
+    }
+
+    @Test(timeout = 5000)
+    public void blockIsInterruptible() throws Exception {
+        FakeTransport transport = new FakeTransport();
+        WriteGate gate = new WriteGate(4, null);
+        transport.writeQueueSize = 4;
+        Thread.currentThread().interrupt();
+        try {
+            gate.acquire(transport, 20, WriteGate.Backpressure.Block);
+            fail();
+        } catch (InterruptedIOException ignored) {
+        }
+        assertTrue(Thread.interrupted());
+    }
+
+}
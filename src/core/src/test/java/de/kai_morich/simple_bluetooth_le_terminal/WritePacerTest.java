@@ -0,0 +1,84 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class WritePacerTest {
+
+    private static final long BYTE_TIME = 10 * 1_000_000_000L / 9600;
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidBaudRate() {
+        new WritePacer(0, 64);
+    }
+
+    @Test
+    public void bufferSizeWithoutWait() {
+        WritePacer pacer = new WritePacer(9600, 64);
+        assertEquals(0, pacer.acquire(20, 0));
+        assertEquals(0, pacer.acquire(20, 0));
+        assertEquals(0, pacer.acquire(24, 0));
+        assertEquals(BYTE_TIME, pacer.acquire(1, 0));
+    }
+
+    @Test
+    public void refilledAtBaudRate() {
+        WritePacer pacer = new WritePacer(9600, 64);
+        assertEquals(0, pacer.acquire(64, 0));
+        assertEquals(20 * BYTE_TIME, pacer.acquire(20, 0));
+        assertEquals(0, pacer.acquire(20, 20 * BYTE_TIME));
+        assertTrue(pacer.acquire(1, 20 * BYTE_TIME) > 0);
+    }
+
+    @Test
+    public void largeWriteWhenEmpty() {
+        WritePacer pacer = new WritePacer(9600, 16);
+        assertEquals(0, pacer.acquire(100, 0));
+        assertEquals(100 * BYTE_TIME, pacer.acquire(100, 0));
+        assertEquals(0, pacer.acquire(100, 100 * BYTE_TIME));
+    }
+
+    @Test
+    public void waitForReplyCredits() {
+        WritePacer pacer = new WritePacer(9600, 64, true);
+        byte[] line = "0123456789012345678\n".getBytes(); // 20 bytes
+        long now = 0;
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, pacer.acquire(line, 0, line.length, now));
+            now += line.length * BYTE_TIME; // drained by baud rate, but device is busy
+        }
+        assertTrue(pacer.acquire(line, 0, line.length, now) > 0);
+        pacer.onRead("ok\n".getBytes());
+        assertEquals(0, pacer.acquire(line, 0, line.length, now));
+        assertTrue(pacer.acquire(line, 0, line.length, now + line.length * BYTE_TIME) > 0);
+    }
+
+    @Test
+    public void partialLinePacedByRate() {
+        WritePacer pacer = new WritePacer(9600, 64, true);
+        byte[] data = new byte[40];
+        assertEquals(0, pacer.acquire(data, 0, data.length, 0));
+        assertEquals(0, pacer.acquire(data, 0, data.length, 40 * BYTE_TIME));
+    }
+
+    @Test
+    public void missingReplyTimesOut() {
+        WritePacer pacer = new WritePacer(9600, 16, true);
+        byte[] line = "0123456789\n".getBytes();
+        assertEquals(0, pacer.acquire(line, 0, line.length, 0));
+        long wait = pacer.acquire(line, 0, line.length, WritePacer.REPLY_TIMEOUT - 1);
+        assertEquals(1, wait);
+        assertEquals(0, pacer.acquire(line, 0, line.length, WritePacer.REPLY_TIMEOUT));
+    }
+
+    @Test
+    public void repliesIgnoredWithoutReplies() {
+        WritePacer pacer = new WritePacer(9600, 64);
+        byte[] line = "0123456789012345678\n".getBytes();
+        for (int i = 0; i < 10; i++)
+            assertEquals(0, pacer.acquire(line, 0, line.length, i * line.length * BYTE_TIME));
+    }
+
+}
@@ -0,0 +1,145 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class WriteQueueTest {
+
+    private static String drain(WriteQueue queue, byte[] first) {
+        StringBuilder sb = new StringBuilder();
+        for (byte[] chunk = first; chunk != null; chunk = queue.next(true))
+            sb.append(sb.length() > 0 ? "|" : "").append(new String(chunk));
+        return sb.toString();
+    }
+
+    @Test
+    public void chunksOfPayloadSize() {
+        WriteQueue queue = new WriteQueue();
+        byte[] first = queue.add("abcdefghij".getBytes(), 4, true);
+        assertEquals(3, queue.size());
+        assertEquals("abcd|efgh|ij", drain(queue, first));
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void singleChunkIsNotCopied() {
+        WriteQueue queue = new WriteQueue();
+        byte[] data = "abc".getBytes();
+        assertSame(data, queue.add(data, 20, true));
+    }
+
+    @Test
+    public void queuedBehindPendingWrite() {
+        WriteQueue queue = new WriteQueue();
+        byte[] first = queue.add("aa".getBytes(), 20, true);
+        assertArrayEquals("aa".getBytes(), first);
+        assertNull(queue.add("bb".getBytes(), 20, true));
+        assertEquals(2, queue.size());
+        assertArrayEquals("bb".getBytes(), queue.next(true));
+        assertNull(queue.next(true));
+    }
+
+    @Test
+    public void blockedUntilCanWrite() {
+        WriteQueue queue = new WriteQueue();
+        assertNull(queue.add("aa".getBytes(), 20, false));
+        assertTrue(queue.isBlocked());
+        assertNull(queue.next(false));
+        assertArrayEquals("aa".getBytes(), queue.next(true));
+        assertFalse(queue.isBlocked());
+    }
+
+    @Test
+    public void highPriorityBeforeQueuedNormal() {
+        WriteQueue queue = new WriteQueue();
+        byte[] first = queue.add("aaaa".getBytes(), 2, true);
+        queue.add("bbbb".getBytes(), 2, true);
+        queue.add(new WriteRequest("STOP".getBytes(), WriteQueue.Priority.High), 4, true);
+        assertEquals(1, queue.getDepth(WriteQueue.Priority.High));
+        assertEquals("aa|STOP|aa|bb|bb", drain(queue, first));
+        assertEquals(0, queue.getDepth(WriteQueue.Priority.Normal));
+        assertEquals(3, queue.getMaxDepth(WriteQueue.Priority.Normal));
+    }
+
+    @Test
+    public void clearDropsPreemptedMessage() {
+        WriteQueue queue = new WriteQueue();
+        ArrayList<String> reasons = new ArrayList<>();
+        WriteRequest.Listener listener = (request, reason) -> reasons.add(new String(request.data) + ":" + reason);
+        queue.add(new WriteRequest("aaaa".getBytes()).setListener(listener), 2, true);
+        queue.add(new WriteRequest("STOPSTOP".getBytes(), WriteQueue.Priority.High).setListener(listener), 4, true);
+        assertArrayEquals("STOP".getBytes(), queue.next(true));
+        queue.clear();
+        for (WriteRequest request : queue.pollFinished())
+            request.notifyFinished();
+        assertEquals("[STOPSTOP:Disconnected, aaaa:Disconnected]", reasons.toString());
+        assertEquals(0, queue.getDepth(WriteQueue.Priority.Normal));
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void supersededRequestIsDropped() {
+        WriteQueue queue = new WriteQueue();
+        ArrayList<String> finished = new ArrayList<>();
+        WriteRequest.Listener listener = (request, reason) -> finished.add(new String(request.data) + ":" + reason);
+        byte[] first = queue.add(new WriteRequest("LED ON".getBytes()).setListener(listener), 20, true);
+        queue.add(new WriteRequest("LED OFF".getBytes()).setSupersedeKey("LED").setListener(listener), 20, true);
+        queue.add(new WriteRequest("LED ON".getBytes()).setSupersedeKey("LED").setListener(listener), 20, true);
+        for (WriteRequest request : queue.pollFinished())
+            request.notifyFinished();
+        assertEquals("[LED OFF:Superseded]", finished.toString());
+        assertEquals("LED ON|LED ON", drain(queue, first));
+        for (WriteRequest request : queue.pollFinished())
+            request.notifyFinished();
+        assertEquals("[LED OFF:Superseded, LED ON:null, LED ON:null]", finished.toString());
+        assertEquals(1, queue.getDroppedCount());
+    }
+
+    @Test
+    public void expiredRequestIsDropped() throws InterruptedException {
+        WriteQueue queue = new WriteQueue();
+        byte[] first = queue.add("aa".getBytes(), 20, true);
+        WriteRequest request = new WriteRequest("bb".getBytes()).setTimeout(1);
+        queue.add(request, 20, true);
+        Thread.sleep(5);
+        assertEquals("aa", drain(queue, first));
+        assertEquals(1, queue.getDroppedCount());
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void clearDropsRemaining() {
+        WriteQueue queue = new WriteQueue();
+        ArrayList<WriteRequest.DropReason> reasons = new ArrayList<>();
+        WriteRequest.Listener listener = (request, reason) -> reasons.add(reason);
+        queue.add(new WriteRequest("aaaa".getBytes()).setListener(listener), 2, true);
+        queue.add(new WriteRequest("bb".getBytes()).setListener(listener), 2, true);
+        queue.clear();
+        for (WriteRequest request : queue.pollFinished())
+            request.notifyFinished();
+        assertEquals("[Disconnected, Disconnected]", reasons.toString());
+        assertEquals(0, queue.size());
+        assertNull(queue.pollFinished());
+    }
+
+    @Test
+    public void pacerHoldsBackChunks() {
+        WriteQueue queue = new WriteQueue();
+        queue.setPacer(new WritePacer(9600, 4));
+        byte[] first = queue.add("aaaa".getBytes(), 4, true);
+        assertArrayEquals("aaaa".getBytes(), first);
+        assertNull(queue.next(true)); // nothing queued
+        assertNull(queue.add("bbbb".getBytes(), 4, true));
+        assertTrue(queue.getPacerDelay() > 0);
+        assertTrue(queue.isBlocked());
+    }
+
+}
@@ -0,0 +1,20 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class WriteRequestTest {
+
+    @Test
+    public void commandKey() {
+        assertEquals("LED", WriteRequest.commandKey("LED ON"));
+        assertEquals("LED", WriteRequest.commandKey(" led\toff "));
+        assertEquals("SET A", WriteRequest.commandKey("set a 1"));
+        assertEquals("SET A", WriteRequest.commandKey("SET  A 2"));
+        assertNull(WriteRequest.commandKey("STOP"));
+        assertNull(WriteRequest.commandKey("  "));
+    }
+
+}
@@ -0,0 +1,26 @@
+#include <string.h>
+#include "arduino_mock.h"
+
+#define PIN_COUNT 20
+
+static int8_t pin_mode[PIN_COUNT];
+static int8_t pin_value[PIN_COUNT];
+
+void mock_reset(void) {
+    memset(pin_mode, -1, sizeof(pin_mode));
+    memset(pin_value, -1, sizeof(pin_value));
+}
+
+void pinMode(uint8_t pin, uint8_t mode) {
+    if (pin < PIN_COUNT)
+        pin_mode[pin] = (int8_t)mode;
+}
+
+void digitalWrite(uint8_t pin, uint8_t value) {
+    if (pin < PIN_COUNT)
+        pin_value[pin] = (int8_t)value;
+}
+
+int mock_pin(uint8_t pin) {
+    return pin < PIN_COUNT && pin_mode[pin] == OUTPUT ? pin_value[pin] : -1;
+}
@@ -0,0 +1,21 @@
+/*
+ * minimal Arduino API for building the firmware on a host
+ */
+#ifndef ARDUINO_MOCK_H
+#define ARDUINO_MOCK_H
+
+#include <stdint.h>
+
+#define LOW    0
+#define HIGH   1
+#define INPUT  0
+#define OUTPUT 1
+
+void pinMode(uint8_t pin, uint8_t mode);
+void digitalWrite(uint8_t pin, uint8_t value);
+
+/* last value written to pin, -1 if never written or not an output */
+int  mock_pin(uint8_t pin);
+void mock_reset(void);
+
+#endif
@@ -0,0 +1,90 @@
+/*
+ * host driver for the Vexis firmware: feeds command streams through the parser
+ * with mocked pins, checks pin states and replies and measures the time from
+ * newline to handled command
+ *
+ * build and run: make -C src/firmware/host
+ */
+#include <stdio.h>
+#include <string.h>
+#include <time.h>
+#include "arduino_mock.h"
+#include "command_parser.h"
+#include "commands.h"
+
+static char last_reply[64];
+static int  replies;
+static int  failures;
+
+static void reply(void *ctx, const char *text) {
+    (void)ctx;
+    strncpy(last_reply, text, sizeof(last_reply) - 1);
+    replies++;
+}
+
+static void feed(cmd_parser_t *parser, const char *data) {
+    while (*data)
+        cmd_parser_feed(parser, (uint8_t)*data++);
+}
+
+static void check(cmd_parser_t *parser, const char *input, const char *expected_reply, int led, int fan) {
+    int before = replies;
+    last_reply[0] = 0;
+    feed(parser, input);
+    if ((expected_reply ? replies != before + 1 || strcmp(last_reply, expected_reply) != 0 : replies != before)
+            || mock_pin(LED_PIN) != led || mock_pin(RELAY_PIN) != (fan ? LOW : HIGH)) {
+        printf("FAIL %-28s reply '%s' led %d relay %d\n", input, last_reply, mock_pin(LED_PIN), mock_pin(RELAY_PIN));
+        failures++;
+    }
+}
+
+static double now_ns(void) {
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return ts.tv_sec * 1e9 + ts.tv_nsec;
+}
+
+int main(void) {
+    static const char *const unknown = "Unknown command. Use LED ON/OFF or FAN ON/OFF.";
+    static const char *const stream[] = { "LED ON\r\n", "fan on\r\n", "LED OFF\r\n", "FAN OFF\r\n" };
+    cmd_parser_t parser;
+    const int iterations = 1000000;
+    double start, elapsed, newline = 0;
+    int i;
+
+    mock_reset();
+    commands_init();
+    cmd_parser_init(&parser, reply, NULL);
+
+    check(&parser, "LED ON\n",            "LED turned ON",            HIGH, 0);
+    check(&parser, "  fan on \r\n",       "Fan turned ON via relay",  HIGH, 1);
+    check(&parser, "Led Off\r\n",         "LED turned OFF",           LOW,  1);
+    check(&parser, "FAN OFF\r\n",         "Fan turned OFF via relay", LOW,  0);
+    check(&parser, "LED\tON\r\n",         unknown,                    LOW,  0);
+    check(&parser, "LEDON\n",             unknown,                    LOW,  0);
+    check(&parser, "LED ON LED ON LED ON LED ON LED ON\n", unknown,   LOW,  0); /* longer than buffer */
+    check(&parser, "\r\n",                NULL,                       LOW,  0); /* empty line */
+    check(&parser, "LED ",                NULL,                       LOW,  0); /* split across reads */
+    check(&parser, "ON\n",                "LED turned ON",            HIGH, 0);
+
+    /* time per command, from feeding the newline until the handler returned */
+    for (i = 0; i < iterations; i++) {
+        const char *command = stream[i & 3];
+        size_t length = strlen(command);
+        double t;
+        while (length-- > 1)
+            cmd_parser_feed(&parser, (uint8_t)*command++);
+        t = now_ns();
+        cmd_parser_feed(&parser, '\n');
+        newline += now_ns() - t;
+    }
+    start = now_ns();
+    for (i = 0; i < iterations; i++)
+        feed(&parser, stream[i & 3]);
+    elapsed = now_ns() - start;
+
+    printf("%d checks failed\n", failures);
+    printf("%.1f ns per command including parsing, %.1f ns from newline to handled\n",
+           elapsed / iterations, newline / iterations);
+    return failures ? 1 : 0;
+}
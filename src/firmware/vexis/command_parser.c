@@ -0,0 +1,116 @@
+#include <string.h>
+#include "command_parser.h"
+
+#define FNV_OFFSET 2166136261UL
+#define FNV_PRIME  16777619UL
+#define INDEX_SIZE 16 /* power of 2, at least 2x number of commands */
+#define INDEX_EMPTY 0xff
+
+enum { STATE_START, STATE_LINE, STATE_DISCARD };
+
+static const cmd_entry_t *cmd_table;
+static uint32_t cmd_hashes[INDEX_SIZE];
+static uint8_t  cmd_index[INDEX_SIZE]; /* open addressing, linear probing */
+static cmd_handler_fn cmd_unknown;
+
+static uint32_t hash_step(uint32_t hash, uint8_t c) {
+    return (hash ^ c) * FNV_PRIME;
+}
+
+static uint8_t fold(uint8_t c) {
+    return c >= 'a' && c <= 'z' ? (uint8_t)(c - 'a' + 'A') : c;
+}
+
+static int is_space(uint8_t c) {
+    return c == ' ' || c == '\t' || c == '\r';
+}
+
+int cmd_table_init(const cmd_entry_t *table, uint8_t count) {
+    uint8_t i;
+    if (count > INDEX_SIZE / 2)
+        return -1;
+    cmd_table = table;
+    cmd_unknown = 0;
+    memset(cmd_index, INDEX_EMPTY, sizeof(cmd_index));
+    for (i = 0; i < count; i++) {
+        const char *p = table[i].name;
+        uint32_t hash = FNV_OFFSET;
+        uint8_t slot;
+        if (*p == 0) { /* empty name handles unknown commands */
+            cmd_unknown = table[i].handler;
+            continue;
+        }
+        while (*p)
+            hash = hash_step(hash, (uint8_t)*p++);
+        slot = hash & (INDEX_SIZE - 1);
+        while (cmd_index[slot] != INDEX_EMPTY)
+            slot = (slot + 1) & (INDEX_SIZE - 1);
+        cmd_index[slot] = i;
+        cmd_hashes[slot] = hash;
+    }
+    return 0;
+}
+
+void cmd_parser_init(cmd_parser_t *parser, cmd_reply_fn reply, void *reply_ctx) {
+    memset(parser, 0, sizeof(*parser));
+    parser->state = STATE_START;
+    parser->reply = reply;
+    parser->reply_ctx = reply_ctx;
+}
+
+void cmd_reply(cmd_parser_t *parser, const char *text) {
+    if (parser->reply)
+        parser->reply(parser->reply_ctx, text);
+}
+
+static void dispatch(cmd_parser_t *parser) {
+    uint8_t slot = parser->trim_hash & (INDEX_SIZE - 1);
+    if (parser->trim_len == 0)
+        return; /* empty line */
+    if (parser->state != STATE_DISCARD && cmd_table) {
+        while (cmd_index[slot] != INDEX_EMPTY) {
+            const cmd_entry_t *entry = &cmd_table[cmd_index[slot]];
+            if (cmd_hashes[slot] == parser->trim_hash
+                    && strncmp(entry->name, parser->line, parser->trim_len) == 0
+                    && entry->name[parser->trim_len] == 0) {
+                entry->handler(parser);
+                return;
+            }
+            slot = (slot + 1) & (INDEX_SIZE - 1);
+        }
+    }
+    if (cmd_unknown)
+        cmd_unknown(parser);
+}
+
+void cmd_parser_feed(cmd_parser_t *parser, uint8_t b) {
+    if (b == '\n') {
+        dispatch(parser);
+        parser->state = STATE_START;
+        parser->len = parser->trim_len = 0;
+        return;
+    }
+    switch (parser->state) {
+    case STATE_START:
+        if (is_space(b))
+            return;
+        parser->state = STATE_LINE;
+        parser->hash = FNV_OFFSET;
+        /* fall through */
+    case STATE_LINE:
+        if (parser->len == CMD_LINE_MAX) {
+            parser->state = STATE_DISCARD; /* trim_len stays > 0, so handled as unknown */
+            return;
+        }
+        b = fold(b);
+        parser->line[parser->len++] = (char)b;
+        parser->hash = hash_step(parser->hash, b);
+        if (!is_space(b)) {
+            parser->trim_len = parser->len;
+            parser->trim_hash = parser->hash;
+        }
+        return;
+    default: /* STATE_DISCARD */
+        return;
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * non-blocking line parser for Vexis commands
+ *
+ * bytes are fed one at a time as they arrive, a command is handled as soon as its
+ * newline is fed. No heap, no blocking, fixed buffer of CMD_LINE_MAX bytes per stream.
+ * Commands are matched case-insensitive, leading and trailing whitespace and CR are ignored.
+ */
+#ifndef COMMAND_PARSER_H
+#define COMMAND_PARSER_H
+
+#include <stdint.h>
+
+#ifdef __cplusplus
+extern "C" {
+#endif
+
+#define CMD_LINE_MAX 32 /* longer lines are discarded as unknown command */
+
+typedef void (*cmd_reply_fn)(void *ctx, const char *text);
+
+typedef struct {
+    char     line[CMD_LINE_MAX];
+    uint8_t  len;       /* bytes in line, including trailing whitespace */
+    uint8_t  trim_len;  /* bytes up to last non whitespace */
+    uint8_t  state;
+    uint32_t hash;      /* FNV-1a over line, folded to upper case */
+    uint32_t trim_hash; /* hash up to last non whitespace */
+    cmd_reply_fn reply;
+    void    *reply_ctx;
+} cmd_parser_t;
+
+typedef void (*cmd_handler_fn)(cmd_parser_t *parser);
+
+typedef struct {
+    const char     *name;    /* upper case */
+    cmd_handler_fn  handler;
+} cmd_entry_t;
+
+/* build hash index of command table, table must stay valid. Returns 0, or -1 if too many commands */
+int  cmd_table_init(const cmd_entry_t *table, uint8_t count);
+
+void cmd_parser_init(cmd_parser_t *parser, cmd_reply_fn reply, void *reply_ctx);
+void cmd_parser_feed(cmd_parser_t *parser, uint8_t b);
+void cmd_reply(cmd_parser_t *parser, const char *text);
+
+#ifdef __cplusplus
+}
+#endif
+
+#endif
@@ -0,0 +1,47 @@
+#ifdef ARDUINO
+#include <Arduino.h>
+#else
+#include "arduino_mock.h"
+#endif
+#include "command_parser.h"
+#include "commands.h"
+
+static void led_on(cmd_parser_t *parser) {
+    digitalWrite(LED_PIN, HIGH);
+    cmd_reply(parser, "LED turned ON");
+}
+
+static void led_off(cmd_parser_t *parser) {
+    digitalWrite(LED_PIN, LOW);
+    cmd_reply(parser, "LED turned OFF");
+}
+
+static void fan_on(cmd_parser_t *parser) {
+    digitalWrite(RELAY_PIN, LOW); /* energize coil */
+    cmd_reply(parser, "Fan turned ON via relay");
+}
+
+static void fan_off(cmd_parser_t *parser) {
+    digitalWrite(RELAY_PIN, HIGH); /* de-energize coil */
+    cmd_reply(parser, "Fan turned OFF via relay");
+}
+
+static void unknown(cmd_parser_t *parser) {
+    cmd_reply(parser, "Unknown command. Use LED ON/OFF or FAN ON/OFF.");
+}
+
+static const cmd_entry_t commands[] = {
+    { "LED ON",  led_on  },
+    { "LED OFF", led_off },
+    { "FAN ON",  fan_on  },
+    { "FAN OFF", fan_off },
+    { "",        unknown },
+};
+
+void commands_init(void) {
+    pinMode(LED_PIN, OUTPUT);
+    pinMode(RELAY_PIN, OUTPUT);
+    digitalWrite(LED_PIN, LOW);    /* LED off at start */
+    digitalWrite(RELAY_PIN, HIGH); /* relay off at start */
+    cmd_table_init(commands, sizeof(commands) / sizeof(commands[0]));
+}
@@ -0,0 +1,20 @@
+/*
+ * Vexis command set: LED ON/OFF, FAN ON/OFF
+ */
+#ifndef COMMANDS_H
+#define COMMANDS_H
+
+#ifdef __cplusplus
+extern "C" {
+#endif
+
+#define LED_PIN   2  /* LED connected to D2 */
+#define RELAY_PIN 4  /* relay connected to D4, active low */
+
+void commands_init(void);
+
+#ifdef __cplusplus
+}
+#endif
+
+#endif
@@ -0,0 +1,38 @@
+/*
+ * Vexis reference firmware, same commands as arduinocode.txt
+ *
+ * bytes are handled as they arrive from HC-05 (BTSerial) and USB (Serial), each stream
+ * with its own parser, so loop() never blocks and a command is handled right after its newline
+ */
+#include <SoftwareSerial.h>
+#include "command_parser.h"
+#include "commands.h"
+
+// Create software serial on pins 10 (RX) and 11 (TX)
+SoftwareSerial BTSerial(10, 11); // RX, TX
+
+static cmd_parser_t btParser;
+static cmd_parser_t usbParser;
+
+static void replyUsb(void *ctx, const char *text) {
+  Serial.println(text);
+}
+
+void setup() {
+  Serial.begin(9600);     // For debugging on Serial Monitor
+  BTSerial.begin(9600);   // HC-05 default baud rate
+
+  commands_init();
+  cmd_parser_init(&btParser, replyUsb, NULL);
+  cmd_parser_init(&usbParser, replyUsb, NULL);
+
+  Serial.println("Waiting for Bluetooth commands...");
+  Serial.println("Commands: (LED ON, LED OFF, FAN ON, FAN OFF)");
+}
+
+void loop() {
+  while (BTSerial.available())
+    cmd_parser_feed(&btParser, BTSerial.read());
+  while (Serial.available())
+    cmd_parser_feed(&usbParser, Serial.read());
+}